@@ -17,11 +17,16 @@
  */
 package org.apache.s4.comm.core;
 
+import org.apache.s4.comm.tcp.TcpListener;
+
 import java.io.IOException;
 import java.net.DatagramPacket;
 import java.net.DatagramSocket;
 import java.net.InetAddress;
+import java.net.InetSocketAddress;
 import java.net.MulticastSocket;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
 import java.util.Map;
 
 import org.apache.log4j.Logger;
@@ -30,6 +35,8 @@ public class GenericListener {
     private static Logger logger = Logger.getLogger(GenericListener.class);
     private String zkAddress;
     private DatagramSocket socket;
+    private DatagramChannel channel;
+    private TcpListener tcpListener;
     int BUFFER_LENGTH = 65507;
     private DatagramPacket dgram;
     private byte[] bs;
@@ -54,7 +61,15 @@ public class GenericListener {
                 ((MulticastSocket) socket).joinGroup(inetAddress);
             }
             if (mode.equals("unicast")) {
-                socket = new DatagramSocket(port);
+                // the channel allows receiving straight into direct buffers,
+                // from several threads
+                channel = DatagramChannel.open();
+                socket = channel.socket();
+                socket.bind(new InetSocketAddress(port));
+            }
+            if (mode.equals("tcp")) {
+                tcpListener = new TcpListener(port);
+                return;
             }
             String udpBufferSize = System.getProperty("udp.buffer.size");
             if (udpBufferSize == null) {
@@ -72,22 +87,64 @@ public class GenericListener {
 
     public Object receive() {
         try {
-            socket.receive(dgram);
-            byte[] data = new byte[dgram.getLength()];
-            System.arraycopy(dgram.getData(),
-                             dgram.getOffset(),
-                             data,
-                             0,
-                             data.length);
-            Object object = deserializer.deserialize(data);
-            dgram.setLength(BUFFER_LENGTH);
-            return object;
+            return deserializer.deserialize(receiveBytes());
+        } catch (IOException e) {
+            logger.error("error receiving message", e);
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * Receives the next message into the free space of a buffer, without
+     * deserializing it. In unicast mode, the message is received straight
+     * into the buffer, and several threads may receive concurrently. In the
+     * other modes, the message is copied into the buffer, or into a new
+     * buffer if it does not fit in the free space. In unicast mode, the free
+     * space should fit the largest datagram, 65507 bytes: the operating
+     * system discards the excess of larger datagrams.
+     * 
+     * @param buffer
+     *            receives the message from its position on; the position is
+     *            moved past the message
+     * @return a view of the message, from its first byte to its last
+     */
+    public ByteBuffer receive(ByteBuffer buffer) {
+        try {
+            int start = buffer.position();
+            if (channel != null) {
+                channel.receive(buffer);
+            } else {
+                byte[] data = receiveBytes();
+                if (data.length > buffer.remaining()) {
+                    return ByteBuffer.wrap(data);
+                }
+                buffer.put(data);
+            }
+            ByteBuffer message = buffer.duplicate();
+            message.limit(buffer.position());
+            message.position(start);
+            return message.slice();
         } catch (IOException e) {
             logger.error("error receiving message", e);
             throw new RuntimeException(e);
         }
     }
 
+    private synchronized byte[] receiveBytes() throws IOException {
+        if (tcpListener != null) {
+            return tcpListener.receive();
+        }
+        socket.receive(dgram);
+        byte[] data = new byte[dgram.getLength()];
+        System.arraycopy(dgram.getData(),
+                         dgram.getOffset(),
+                         data,
+                         0,
+                         data.length);
+        dgram.setLength(BUFFER_LENGTH);
+        return data;
+    }
+
     /*
      * There is nothing much to do for multicast and unicast
      */
@@ -17,12 +17,13 @@
  */
 package org.apache.s4.comm.core;
 
+import org.apache.s4.comm.tcp.TcpSender;
+
 import java.io.IOException;
 import java.net.DatagramPacket;
 import java.net.DatagramSocket;
-import java.net.InetAddress;
+import java.net.InetSocketAddress;
 import java.net.MulticastSocket;
-import java.util.List;
 import java.util.Map;
 import org.apache.log4j.Logger;
 
@@ -30,6 +31,7 @@ public class GenericSender {
     static Logger logger = Logger.getLogger(GenericSender.class);
     Map<String, String> map;
     private DatagramSocket socket;
+    private TcpSender tcpSender;
     private final String zkAddress;
     ProcessMonitor listenerMonitor;
     int rotationCounter = 0;
@@ -57,6 +59,13 @@ public class GenericSender {
             if (mode.equals("unicast")) {
                 socket = new DatagramSocket();
             }
+            if (mode.equals("tcp")) {
+                String maxPendingBytes = System.getProperty("tcp.max.pending.bytes");
+                if (maxPendingBytes == null) {
+                    maxPendingBytes = "4194304";
+                }
+                tcpSender = new TcpSender(Integer.parseInt(maxPendingBytes));
+            }
             listenerMonitor = CommServiceFactory.getProcessMonitor(this.zkAddress,
                                                                    s4ClusterName,
                                                                    callbackHandler);
@@ -85,11 +94,11 @@ public class GenericSender {
      * @param data
      * @return true if data was successfully sent, false otherwise
      */
-    @SuppressWarnings("unchecked")
     public boolean send(Object data) {
         try {
-            List<Object> destinationList = listenerMonitor.getDestinationList();
-            if (destinationList == null || destinationList.size() == 0) {
+            RoutingTable routingTable = listenerMonitor.getRoutingTable();
+            int destinationCount = routingTable.getDestinationCount();
+            if (destinationCount == 0) {
                 logger.error("Failed to send message: No destination available"
                         + data);
                 return false;
@@ -97,24 +106,30 @@ public class GenericSender {
             byte[] byteBuffer = serializer.serialize(data);
             rotationCounter = rotationCounter + 1;
 
-            int index = rotationCounter % destinationList.size();
-            Map<String, String> dest = (Map<String, String>) destinationList.get(Math.abs(index));
-            InetAddress inetAddress;
-            int port;
-            if (mode.equals("unicast")) {
-                inetAddress = InetAddress.getByName(dest.get("address"));
-                port = Integer.parseInt((dest.get("port")));
+            int index = Math.abs(rotationCounter % destinationCount);
+            InetSocketAddress address;
+            if (mode.equals("tcp") || mode.equals("unicast")) {
+                address = routingTable.getDestinationAddress(index);
             } else if (mode.equals("multicast")) {
-                inetAddress = InetAddress.getByName(dest.get("channel"));
-                port = Integer.parseInt((dest.get("port")));
+                address = routingTable.getDestinationChannel(index);
             } else {
                 logger.error("Failed to send message unknown mode: " + mode);
                 return false;
             }
+            if (address == null) {
+                logger.error("Failed to send message: unresolved destination "
+                        + routingTable.getDestinationList().get(index));
+                return false;
+            }
+            if (tcpSender != null) {
+                int partition = routingTable.getDestinationPartition(index);
+                return tcpSender.send(partition >= 0 ? partition : index,
+                                      address,
+                                      byteBuffer);
+            }
             DatagramPacket dp = new DatagramPacket(byteBuffer,
                                                    byteBuffer.length,
-                                                   inetAddress,
-                                                   port);
+                                                   address);
             socket.send(dp);
         } catch (IOException e) {
             // add retry
@@ -131,22 +146,20 @@ public class GenericSender {
      * @param data
      * @return true if data was successfully sent, false otherwise
      */
-    @SuppressWarnings("unchecked")
     public boolean sendToPartition(int partition, Object data) {
         try {
             byte[] byteBuffer = serializer.serialize(data);
-            Map<Integer, Object> destinationMap = listenerMonitor.getDestinationMap();
+            RoutingTable routingTable = listenerMonitor.getRoutingTable();
             if (logger.isDebugEnabled()) {
-                logger.debug("Destination Map:" + destinationMap);
+                logger.debug("Routing table:" + routingTable);
             }
-            Map<String, String> dest = (Map<String, String>) destinationMap.get(partition);
-            if (dest != null) {
-                InetAddress inetAddress = InetAddress.getByName(dest.get("address"));
-                int port = Integer.parseInt((dest.get("port")));
+            InetSocketAddress address = routingTable.getPartitionAddress(partition);
+            if (address != null && tcpSender != null) {
+                return tcpSender.send(partition, address, byteBuffer);
+            } else if (address != null) {
                 DatagramPacket dp = new DatagramPacket(byteBuffer,
                                                        byteBuffer.length,
-                                                       inetAddress,
-                                                       port);
+                                                       address);
                 socket.send(dp);
             } else {
                 logger.warn("Destination not available for partition:"
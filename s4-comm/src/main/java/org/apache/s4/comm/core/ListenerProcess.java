@@ -19,6 +19,7 @@ package org.apache.s4.comm.core;
 
 import org.apache.s4.comm.util.ConfigParser.Cluster.ClusterType;
 
+import java.nio.ByteBuffer;
 import java.util.HashMap;
 import java.util.Map;
 
@@ -82,6 +83,15 @@ public class ListenerProcess {
         return genericListener.receive();
     }
 
+    /**
+     * Receives the next message, without deserializing it.
+     * 
+     * @see GenericListener#receive(ByteBuffer)
+     */
+    public ByteBuffer listen(ByteBuffer buffer) {
+        return genericListener.receive(buffer);
+    }
+
     public CommEventCallback getCallbackHandler() {
         return callbackHandler;
     }
@@ -32,4 +32,10 @@ public interface ProcessMonitor {
 
     int getTaskCount();
 
+    /**
+     * @return the current routing table; a new instance is published
+     *         whenever the processes change
+     */
+    RoutingTable getRoutingTable();
+
 }
@@ -0,0 +1,187 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.s4.comm.core;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Immutable snapshot of the processes of a cluster, as published by a
+ * {@link ProcessMonitor}, with their addresses resolved once, so that sending
+ * a message only takes an array lookup.
+ * <p>
+ * A monitor publishes a new table, with a higher version, whenever the
+ * processes change; senders read the current table once per message and
+ * therefore always see a consistent one.
+ */
+public final class RoutingTable {
+    private static Logger logger = Logger.getLogger(RoutingTable.class);
+
+    public static final RoutingTable EMPTY = new RoutingTable(0,
+                                                              new ArrayList<Map<String, String>>());
+
+    private final long version;
+    private final List<Object> destinationList;
+    private final Map<Integer, Object> destinationMap;
+    // indexed by partition id
+    private final InetSocketAddress[] partitionAddresses;
+    // in the order of the destination list
+    private final InetSocketAddress[] addresses;
+    private final InetSocketAddress[] channels;
+    private final int[] partitions;
+
+    /**
+     * @param version
+     *            version of the table, increasing with each change
+     * @param processes
+     *            the configuration of each process: "address", "port",
+     *            optional "partition" and, in multicast mode, "channel"
+     */
+    public RoutingTable(long version,
+            List<? extends Map<String, ?>> processes) {
+        this.version = version;
+        int size = processes.size();
+        List<Object> list = new ArrayList<Object>(size);
+        Map<Integer, Object> map = new HashMap<Integer, Object>();
+        addresses = new InetSocketAddress[size];
+        channels = new InetSocketAddress[size];
+        partitions = new int[size];
+        int maxPartition = -1;
+        for (int i = 0; i < size; i++) {
+            Map<String, ?> process = processes.get(i);
+            list.add(process);
+            int port = parsePort(get(process, "port"));
+            addresses[i] = resolve(get(process, "address"), port);
+            channels[i] = resolve(get(process, "channel"), port);
+            partitions[i] = -1;
+            String partition = get(process, "partition");
+            if (partition != null) {
+                partitions[i] = Integer.parseInt(partition);
+                map.put(partitions[i], process);
+                maxPartition = Math.max(maxPartition, partitions[i]);
+            }
+        }
+        partitionAddresses = new InetSocketAddress[maxPartition + 1];
+        for (int i = 0; i < size; i++) {
+            if (partitions[i] >= 0) {
+                partitionAddresses[partitions[i]] = addresses[i];
+            }
+        }
+        destinationList = Collections.unmodifiableList(list);
+        destinationMap = Collections.unmodifiableMap(map);
+    }
+
+    public long getVersion() {
+        return version;
+    }
+
+    /**
+     * @return the address of the process of a partition, or null if there is
+     *         none, or if its address could not be resolved
+     */
+    public InetSocketAddress getPartitionAddress(int partition) {
+        if (partition < 0 || partition >= partitionAddresses.length) {
+            return null;
+        }
+        return partitionAddresses[partition];
+    }
+
+    /**
+     * @return the number of processes
+     */
+    public int getDestinationCount() {
+        return addresses.length;
+    }
+
+    /**
+     * @return the unicast address of the process at the given index, or null
+     */
+    public InetSocketAddress getDestinationAddress(int index) {
+        return addresses[index];
+    }
+
+    /**
+     * @return the multicast channel of the process at the given index, or null
+     */
+    public InetSocketAddress getDestinationChannel(int index) {
+        return channels[index];
+    }
+
+    /**
+     * @return the partition of the process at the given index, or -1
+     */
+    public int getDestinationPartition(int index) {
+        return partitions[index];
+    }
+
+    /**
+     * @return the configuration maps of the processes, unmodifiable
+     */
+    public List<Object> getDestinationList() {
+        return destinationList;
+    }
+
+    /**
+     * @return the configuration maps of the processes by partition,
+     *         unmodifiable
+     */
+    public Map<Integer, Object> getDestinationMap() {
+        return destinationMap;
+    }
+
+    public String toString() {
+        return "version " + version + ": " + destinationList;
+    }
+
+    private static String get(Map<String, ?> process, String name) {
+        Object value = process.get(name);
+        return value == null ? null : String.valueOf(value);
+    }
+
+    private static int parsePort(String port) {
+        if (port == null) {
+            return 0;
+        }
+        try {
+            return Integer.parseInt(port);
+        } catch (NumberFormatException e) {
+            logger.warn("Invalid port " + port);
+            return 0;
+        }
+    }
+
+    private static InetSocketAddress resolve(String host, int port) {
+        if (host == null) {
+            return null;
+        }
+        try {
+            return new InetSocketAddress(InetAddress.getByName(host), port);
+        } catch (UnknownHostException e) {
+            logger.warn("Cannot resolve " + host, e);
+            return null;
+        }
+    }
+}
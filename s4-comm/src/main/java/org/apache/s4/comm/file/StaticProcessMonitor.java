@@ -18,11 +18,10 @@
 package org.apache.s4.comm.file;
 
 import org.apache.s4.comm.core.ProcessMonitor;
+import org.apache.s4.comm.core.RoutingTable;
 import org.apache.s4.comm.util.ConfigUtils;
 import org.apache.s4.comm.util.ConfigParser.Cluster.ClusterType;
 
-import java.util.ArrayList;
-import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 
@@ -30,8 +29,7 @@ import org.apache.log4j.Logger;
 
 public class StaticProcessMonitor implements ProcessMonitor {
     static Logger logger = Logger.getLogger(StaticProcessMonitor.class);
-    private List<Object> destinationList = new ArrayList<Object>();
-    private Map<Integer, Object> destinationMap = new HashMap<Integer, Object>();
+    private volatile RoutingTable routingTable = RoutingTable.EMPTY;
     private int taskCount;
     private final String clusterName;
     private final ClusterType clusterType;
@@ -51,25 +49,24 @@ public class StaticProcessMonitor implements ProcessMonitor {
                                                                              clusterName,
                                                                              clusterType,
                                                                              true);
-        for (Map<String, String> processMap : processList) {
-            destinationList.add(processMap);
-            String key = (String) processMap.get("partition");
-            if (key != null) {
-                destinationMap.put(Integer.parseInt(key), processMap);
-            }
-        }
-        taskCount = destinationList.size();
-        logger.info("Destination List: " + destinationList);
-        logger.info("Destination Map: " + destinationMap);
+        routingTable = new RoutingTable(routingTable.getVersion() + 1,
+                                        processList);
+        taskCount = processList.size();
+        logger.info("Destination List: " + routingTable.getDestinationList());
+        logger.info("Destination Map: " + routingTable.getDestinationMap());
         logger.info("TaskCount: " + taskCount);
     }
 
     public List<Object> getDestinationList() {
-        return destinationList;
+        return routingTable.getDestinationList();
     }
 
     public Map<Integer, Object> getDestinationMap() {
-        return destinationMap;
+        return routingTable.getDestinationMap();
+    }
+
+    public RoutingTable getRoutingTable() {
+        return routingTable;
     }
 
     @Override
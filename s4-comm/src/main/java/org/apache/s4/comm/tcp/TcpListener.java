@@ -0,0 +1,157 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.s4.comm.tcp;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.Queue;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Receives the length prefixed messages sent by {@link TcpSender}s.
+ * <p>
+ * The connections are only read from within {@link #receive()}, when all the
+ * messages already read were returned, so that a receiver which cannot keep
+ * up stops reading, and TCP flow control slows the senders down.
+ */
+public class TcpListener {
+    private static Logger logger = Logger.getLogger(TcpListener.class);
+    private static final int READ_BUFFER_SIZE = 65536;
+    private static final int MAX_MESSAGE_SIZE = 16 * 1024 * 1024;
+
+    private final Selector selector;
+    private final ServerSocketChannel serverChannel;
+    private final Queue<byte[]> received = new ArrayDeque<byte[]>();
+
+    public TcpListener(int port) throws IOException {
+        selector = Selector.open();
+        serverChannel = ServerSocketChannel.open();
+        serverChannel.socket().setReuseAddress(true);
+        serverChannel.socket().bind(new InetSocketAddress(port));
+        serverChannel.configureBlocking(false);
+        serverChannel.register(selector, SelectionKey.OP_ACCEPT);
+    }
+
+    /**
+     * Returns the next message, waiting for one if needed. Not thread safe.
+     */
+    public byte[] receive() throws IOException {
+        while (received.isEmpty()) {
+            selector.select();
+            Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+            while (keys.hasNext()) {
+                SelectionKey key = keys.next();
+                keys.remove();
+                if (!key.isValid()) {
+                    continue;
+                }
+                if (key.isAcceptable()) {
+                    accept();
+                } else if (key.isReadable()) {
+                    read(key);
+                }
+            }
+        }
+        return received.poll();
+    }
+
+    /**
+     * Closes the listener and the connections it accepted, so that their
+     * senders notice and reconnect.
+     */
+    public void close() {
+        try {
+            for (SelectionKey key : selector.keys()) {
+                key.channel().close();
+            }
+            selector.close();
+            serverChannel.close();
+        } catch (IOException e) {
+            logger.warn("Exception closing listener", e);
+        }
+    }
+
+    private void accept() throws IOException {
+        SocketChannel channel = serverChannel.accept();
+        if (channel == null) {
+            return;
+        }
+        channel.configureBlocking(false);
+        channel.register(selector,
+                         SelectionKey.OP_READ,
+                         ByteBuffer.allocate(READ_BUFFER_SIZE));
+        logger.info("Accepted connection from "
+                + channel.socket().getRemoteSocketAddress());
+    }
+
+    private void read(SelectionKey key) {
+        SocketChannel channel = (SocketChannel) key.channel();
+        ByteBuffer buffer = (ByteBuffer) key.attachment();
+        try {
+            int count = channel.read(buffer);
+            if (count < 0) {
+                throw new IOException("Connection closed by peer");
+            }
+
+            buffer.flip();
+            while (buffer.remaining() >= 4) {
+                int length = buffer.getInt(buffer.position());
+                if (length < 0 || length > MAX_MESSAGE_SIZE) {
+                    throw new IOException("Invalid message length " + length);
+                }
+                if (buffer.remaining() < 4 + length) {
+                    break;
+                }
+                buffer.getInt();
+                byte[] message = new byte[length];
+                buffer.get(message);
+                received.add(message);
+            }
+            buffer.compact();
+
+            // make room for a message larger than the buffer
+            if (buffer.position() >= 4) {
+                int length = buffer.getInt(0);
+                if (4 + length > buffer.capacity()) {
+                    ByteBuffer larger = ByteBuffer.allocate(4 + length);
+                    buffer.flip();
+                    larger.put(buffer);
+                    key.attach(larger);
+                }
+            }
+        } catch (IOException e) {
+            logger.info("Closing connection from "
+                    + channel.socket().getRemoteSocketAddress() + ": "
+                    + e.getMessage());
+            key.cancel();
+            try {
+                channel.close();
+            } catch (IOException ce) {
+                // already broken
+            }
+        }
+    }
+}
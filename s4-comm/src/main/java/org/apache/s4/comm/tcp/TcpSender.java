@@ -0,0 +1,319 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.s4.comm.tcp;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Sends messages over persistent TCP connections, one per destination.
+ * <p>
+ * Each message is preceded by its length, as a 4 byte big endian integer.
+ * Messages are appended to the pending buffer of the connection of their
+ * destination, and written by a single I/O thread, which writes as many
+ * pending messages as possible in each call. When the pending buffer of a
+ * connection is full, callers block until the I/O thread makes room, so that
+ * a slow or unreachable destination slows its senders down instead of losing
+ * messages.
+ * <p>
+ * Broken connections are reopened after {@link #RECONNECT_DELAY_MS}, and
+ * when the address of a destination changes, its connection is moved to the
+ * new address. Messages still pending are then sent on the new connection; a
+ * message which was being written when the connection broke is sent again
+ * from its start.
+ */
+public class TcpSender implements Runnable {
+    private static Logger logger = Logger.getLogger(TcpSender.class);
+    public static final long RECONNECT_DELAY_MS = 1000;
+    private static final int MAX_GATHERED_BUFFERS = 64;
+
+    private final int maxPendingBytes;
+    private final Selector selector;
+    private final ConcurrentMap<Integer, Connection> connections = new ConcurrentHashMap<Integer, Connection>();
+    // connections with new data or a new address, for the I/O thread
+    private final Queue<Connection> updates = new ConcurrentLinkedQueue<Connection>();
+
+    /**
+     * @param maxPendingBytes
+     *            size of the pending buffer of each connection
+     */
+    public TcpSender(int maxPendingBytes) {
+        this.maxPendingBytes = maxPendingBytes;
+        try {
+            selector = Selector.open();
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+        Thread t = new Thread(this, "TcpSender");
+        t.setDaemon(true);
+        t.start();
+    }
+
+    /**
+     * Queues a message for a destination, blocking while the pending buffer
+     * of the destination is full.
+     * 
+     * @param destination
+     *            identifies the connection, typically the partition
+     * @return false if the calling thread was interrupted while waiting
+     */
+    public boolean send(int destination, InetSocketAddress address,
+            byte[] data) {
+        Connection connection = connections.get(destination);
+        if (connection == null) {
+            connection = new Connection(destination);
+            Connection existing = connections.putIfAbsent(destination,
+                                                          connection);
+            if (existing != null) {
+                connection = existing;
+            }
+        }
+
+        ByteBuffer message = ByteBuffer.allocate(4 + data.length);
+        message.putInt(data.length);
+        message.put(data);
+        message.flip();
+
+        boolean wakeup;
+        synchronized (connection) {
+            if (!address.equals(connection.address)) {
+                connection.address = address;
+                connection.moved = true;
+            }
+            long waitStart = 0;
+            while (connection.pendingBytes > 0
+                    && connection.pendingBytes + message.remaining() > maxPendingBytes) {
+                if (waitStart == 0) {
+                    waitStart = System.currentTimeMillis();
+                } else if (System.currentTimeMillis() - waitStart > RECONNECT_DELAY_MS) {
+                    logger.warn("Waiting to send to " + address + ", "
+                            + connection.pendingBytes + " bytes pending");
+                    waitStart = System.currentTimeMillis();
+                }
+                try {
+                    connection.wait(RECONNECT_DELAY_MS);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return false;
+                }
+            }
+            wakeup = connection.pending.isEmpty() || connection.moved;
+            connection.pending.add(message);
+            connection.pendingBytes += message.remaining();
+        }
+        if (wakeup) {
+            updates.add(connection);
+            selector.wakeup();
+        }
+        return true;
+    }
+
+    public void run() {
+        while (!Thread.interrupted()) {
+            try {
+                selector.select(RECONNECT_DELAY_MS);
+                Connection update;
+                while ((update = updates.poll()) != null) {
+                    update(update);
+                }
+
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    Connection connection = (Connection) key.attachment();
+                    try {
+                        if (!key.isValid()) {
+                            continue;
+                        }
+                        if (key.isConnectable()) {
+                            connection.channel.finishConnect();
+                            logger.info("Connected to " + connection.address());
+                            updateInterest(connection);
+                        }
+                        if (key.isValid() && key.isWritable()) {
+                            write(connection);
+                        }
+                        if (key.isValid() && key.isReadable()) {
+                            // only the end of the stream is expected
+                            if (connection.channel.read(ByteBuffer.allocate(64)) < 0) {
+                                throw new IOException("Connection closed by peer");
+                            }
+                        }
+                    } catch (IOException e) {
+                        disconnect(connection, e);
+                    }
+                }
+
+                // reconnect
+                long now = System.currentTimeMillis();
+                for (Connection connection : connections.values()) {
+                    if (connection.channel == null && connection.address != null
+                            && now >= connection.reconnectTime) {
+                        update(connection);
+                    }
+                }
+            } catch (Exception e) {
+                logger.error("Exception in TcpSender", e);
+            }
+        }
+    }
+
+    private void update(Connection connection) {
+        boolean moved;
+        synchronized (connection) {
+            moved = connection.moved;
+            connection.moved = false;
+        }
+        if (moved && connection.channel != null) {
+            logger.info("Destination " + connection.destination + " moved to "
+                    + connection.address());
+            close(connection);
+        }
+        if (connection.channel == null) {
+            if (System.currentTimeMillis() < connection.reconnectTime) {
+                return;
+            }
+            try {
+                connection.channel = SocketChannel.open();
+                connection.channel.configureBlocking(false);
+                connection.channel.socket().setTcpNoDelay(true);
+                InetSocketAddress address;
+                synchronized (connection) {
+                    address = connection.address;
+                }
+                connection.connected = connection.channel.connect(address);
+                connection.key = connection.channel.register(selector,
+                                                             0,
+                                                             connection);
+            } catch (IOException e) {
+                disconnect(connection, e);
+                return;
+            }
+        }
+        updateInterest(connection);
+    }
+
+    private void updateInterest(Connection connection) {
+        if (connection.key == null || !connection.key.isValid()) {
+            return;
+        }
+        if (!connection.connected) {
+            connection.connected = connection.channel.isConnected();
+        }
+        if (!connection.connected) {
+            connection.key.interestOps(SelectionKey.OP_CONNECT);
+            return;
+        }
+        boolean hasPending;
+        synchronized (connection) {
+            hasPending = !connection.pending.isEmpty();
+        }
+        connection.key.interestOps(hasPending ? SelectionKey.OP_READ
+                | SelectionKey.OP_WRITE : SelectionKey.OP_READ);
+    }
+
+    private void write(Connection connection) throws IOException {
+        ByteBuffer[] buffers;
+        synchronized (connection) {
+            int count = Math.min(connection.pending.size(), MAX_GATHERED_BUFFERS);
+            buffers = new ByteBuffer[count];
+            Iterator<ByteBuffer> it = connection.pending.iterator();
+            for (int i = 0; i < count; i++) {
+                buffers[i] = it.next();
+            }
+        }
+        long written = connection.channel.write(buffers);
+        synchronized (connection) {
+            while (!connection.pending.isEmpty()
+                    && !connection.pending.peek().hasRemaining()) {
+                ByteBuffer sent = connection.pending.poll();
+                connection.pendingBytes -= sent.limit();
+            }
+            if (written > 0) {
+                connection.notifyAll();
+            }
+        }
+        updateInterest(connection);
+    }
+
+    private void disconnect(Connection connection, IOException cause) {
+        logger.warn("Connection to " + connection.address() + " failed: "
+                + cause.getMessage());
+        close(connection);
+        connection.reconnectTime = System.currentTimeMillis()
+                + RECONNECT_DELAY_MS;
+    }
+
+    private void close(Connection connection) {
+        if (connection.key != null) {
+            connection.key.cancel();
+            connection.key = null;
+        }
+        if (connection.channel != null) {
+            try {
+                connection.channel.close();
+            } catch (IOException e) {
+                // already broken
+            }
+            connection.channel = null;
+        }
+        connection.connected = false;
+        synchronized (connection) {
+            // the message being written goes again from its start
+            ByteBuffer head = connection.pending.peek();
+            if (head != null) {
+                head.rewind();
+            }
+        }
+    }
+
+    static class Connection {
+        final int destination;
+        // guarded by the connection
+        InetSocketAddress address;
+        boolean moved;
+        final ArrayDeque<ByteBuffer> pending = new ArrayDeque<ByteBuffer>();
+        int pendingBytes;
+        // only used by the I/O thread
+        SocketChannel channel;
+        SelectionKey key;
+        boolean connected;
+        long reconnectTime;
+
+        Connection(int destination) {
+            this.destination = destination;
+        }
+
+        synchronized InetSocketAddress address() {
+            return address;
+        }
+    }
+}
@@ -0,0 +1,81 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.s4.comm.util;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Pool of direct buffers of a fixed size, allocated on demand up to a
+ * maximum count. Once all the buffers are in use, {@link #acquire()} waits
+ * for one to be released, which lets the socket buffers of the operating
+ * system absorb the excess instead of the heap.
+ */
+public class BufferPool {
+    private final int bufferSize;
+    private final int maxBuffers;
+    private final BlockingQueue<ByteBuffer> freeBuffers = new LinkedBlockingQueue<ByteBuffer>();
+    private final AtomicInteger allocatedCount = new AtomicInteger();
+
+    public BufferPool(int bufferSize, int maxBuffers) {
+        this.bufferSize = bufferSize;
+        this.maxBuffers = maxBuffers;
+    }
+
+    /**
+     * @return a cleared buffer
+     */
+    public ByteBuffer acquire() throws InterruptedException {
+        ByteBuffer buffer = freeBuffers.poll();
+        if (buffer == null) {
+            while (true) {
+                int count = allocatedCount.get();
+                if (count >= maxBuffers) {
+                    buffer = freeBuffers.take();
+                    break;
+                }
+                if (allocatedCount.compareAndSet(count, count + 1)) {
+                    buffer = ByteBuffer.allocateDirect(bufferSize);
+                    break;
+                }
+            }
+        }
+        buffer.clear();
+        return buffer;
+    }
+
+    /**
+     * Returns a buffer obtained from {@link #acquire()} to the pool.
+     */
+    public void release(ByteBuffer buffer) {
+        freeBuffers.offer(buffer);
+    }
+
+    public int getBufferSize() {
+        return bufferSize;
+    }
+
+    /**
+     * @return the number of buffers allocated so far
+     */
+    public int getAllocatedCount() {
+        return allocatedCount.get();
+    }
+}
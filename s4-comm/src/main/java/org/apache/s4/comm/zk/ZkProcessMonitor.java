@@ -20,11 +20,11 @@ package org.apache.s4.comm.zk;
 import org.apache.s4.comm.core.CommEventCallback;
 import org.apache.s4.comm.core.DefaultWatcher;
 import org.apache.s4.comm.core.ProcessMonitor;
+import org.apache.s4.comm.core.RoutingTable;
 import org.apache.s4.comm.util.JSONUtil;
 import org.apache.s4.comm.util.ConfigParser.Cluster.ClusterType;
 
 import java.util.ArrayList;
-import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 
@@ -35,13 +35,10 @@ import org.apache.zookeeper.data.Stat;
 public class ZkProcessMonitor extends DefaultWatcher implements Runnable,
         ProcessMonitor {
     static Logger logger = Logger.getLogger(ZkProcessMonitor.class);
-    private List<Object> destinationList;
-    private Map<Integer, Object> destinationMap;
+    private volatile RoutingTable routingTable = RoutingTable.EMPTY;
     private String processZNode;
-    private Object lock = new Object();
-    private volatile boolean updateMode = false;
     private String taskZNode;
-    private int taskCount;
+    private volatile int taskCount;
 
     public ZkProcessMonitor(String address, String clusterName, ClusterType clusterType) {
         this(address, clusterName, clusterType, null);
@@ -53,8 +50,6 @@ public class ZkProcessMonitor extends DefaultWatcher implements Runnable,
         String root = "/" + ClusterName + "/" + clusterType.toString();
         this.taskZNode = root + "/task";
         this.processZNode = root + "/process";
-        destinationMap = new HashMap<Integer, Object>();
-        destinationList = new ArrayList<Object>();
     }
 
     public void monitor() {
@@ -66,41 +61,31 @@ public class ZkProcessMonitor extends DefaultWatcher implements Runnable,
 
     private void readConfig() {
         try {
-            synchronized (lock) {
-                Map<Integer, Object> tempDestinationMap = new HashMap<Integer, Object>();
-                List<Object> tempDestinationList = new ArrayList<Object>();
-                updateMode = true;
-                List<String> tasks = zk.getChildren(taskZNode, false);
-                this.taskCount = tasks.size();
-                List<String> children = zk.getChildren(processZNode, false);
-                for (String name : children) {
-                    Stat stat = zk.exists(processZNode + "/" + name, false);
-                    if (stat != null) {
-                        byte[] data = zk.getData(processZNode + "/" + name,
-                                                 false,
-                                                 stat);
-                        Map<String, Object> map = (Map<String, Object>) JSONUtil.getMapFromJson(new String(data));
-                        String key = (String) map.get("partition");
-                        if (key != null) {
-                            tempDestinationMap.put(Integer.parseInt(key), map);
-                        }
-                        tempDestinationList.add(map);
-                    }
+            List<Map<String, Object>> processes = new ArrayList<Map<String, Object>>();
+            List<String> tasks = zk.getChildren(taskZNode, false);
+            List<String> children = zk.getChildren(processZNode, false);
+            for (String name : children) {
+                Stat stat = zk.exists(processZNode + "/" + name, false);
+                if (stat != null) {
+                    byte[] data = zk.getData(processZNode + "/" + name,
+                                             false,
+                                             stat);
+                    processes.add((Map<String, Object>) JSONUtil.getMapFromJson(new String(data)));
                 }
-                destinationList.clear();
-                destinationMap.clear();
-                destinationList.addAll(tempDestinationList);
-                destinationMap.putAll(tempDestinationMap);
-                logger.info("Updated Destination List to" + destinationList);
-                logger.info("Updated Destination Map to" + destinationMap);
             }
+            // readers see either the previous table or the new one
+            RoutingTable newRoutingTable = new RoutingTable(routingTable.getVersion() + 1,
+                                                            processes);
+            this.taskCount = tasks.size();
+            this.routingTable = newRoutingTable;
+            logger.info("Updated routing table to " + newRoutingTable);
+            logger.info("Updated Destination Map to"
+                    + newRoutingTable.getDestinationMap());
         } catch (KeeperException e) {
             logger.warn("Ignorable exception if it happens once in a while", e);
         } catch (InterruptedException e) {
             logger.error("Interrupted exception cause while reading process znode",
                          e);
-        } finally {
-            updateMode = false;
         }
     }
 
@@ -123,23 +108,15 @@ public class ZkProcessMonitor extends DefaultWatcher implements Runnable,
     }
 
     public List<Object> getDestinationList() {
-        if (updateMode) {
-            synchronized (lock) {
-                return destinationList;
-            }
-        } else {
-            return destinationList;
-        }
+        return routingTable.getDestinationList();
     }
 
     public Map<Integer, Object> getDestinationMap() {
-        if (updateMode) {
-            synchronized (lock) {
-                return destinationMap;
-            }
-        } else {
-            return destinationMap;
-        }
+        return routingTable.getDestinationMap();
+    }
+
+    public RoutingTable getRoutingTable() {
+        return routingTable;
     }
 
     @Override
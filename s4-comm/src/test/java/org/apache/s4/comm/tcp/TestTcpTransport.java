@@ -0,0 +1,136 @@
+package org.apache.s4.comm.tcp;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.junit.Test;
+
+public class TestTcpTransport
+{
+
+   private static int freePort() throws IOException {
+       ServerSocket socket = new ServerSocket(0);
+       try {
+           return socket.getLocalPort();
+       } finally {
+           socket.close();
+       }
+   }
+
+   private static byte[] message(int sequence, int length) {
+       byte[] message = new byte[Math.max(4, length)];
+       ByteBuffer.wrap(message).putInt(sequence);
+       for (int i = 4; i < message.length; i++) {
+           message[i] = (byte) (sequence * 31 + i);
+       }
+       return message;
+   }
+
+   private static int sequence(byte[] message) {
+       return ByteBuffer.wrap(message).getInt();
+   }
+
+   // around the 64KB read buffer of the listener, and well above it
+   private static final int[] SIZES = { 4, 100, 1472, 65531, 65532, 65533,
+           65536, 100000, 300000, 17, 4000 };
+
+   private static int size(int sequence) {
+       return SIZES[sequence % SIZES.length];
+   }
+
+   /**
+    * Messages of mixed sizes, some larger than the listener's read buffer and
+    * than the sender's pending buffer, arrive whole and in order.
+    */
+   @Test(timeout = 60000)
+   public void testMixedSizesInOrder() throws Exception {
+       int port = freePort();
+       TcpListener listener = new TcpListener(port);
+       final TcpSender sender = new TcpSender(128 * 1024);
+       final InetSocketAddress address = new InetSocketAddress("localhost",
+               port);
+       final int messageCount = 2000;
+       Thread sending = new Thread() {
+           public void run() {
+               for (int i = 0; i < messageCount; i++) {
+                   sender.send(0, address, message(i, size(i)));
+               }
+           }
+       };
+       sending.setDaemon(true);
+       sending.start();
+       try {
+           for (int i = 0; i < messageCount; i++) {
+               byte[] received = listener.receive();
+               assertEquals(i, sequence(received));
+               assertTrue(Arrays.equals(message(i, size(i)), received));
+           }
+       } finally {
+           listener.close();
+       }
+       sending.join();
+   }
+
+   /**
+    * After the listener restarts on the same port, the sender reconnects and
+    * the messages sent since flow again, in order.
+    */
+   @Test(timeout = 60000)
+   public void testListenerRestart() throws Exception {
+       int port = freePort();
+       TcpListener listener = new TcpListener(port);
+       final TcpSender sender = new TcpSender(64 * 1024);
+       final InetSocketAddress address = new InetSocketAddress("localhost",
+               port);
+       final AtomicBoolean stop = new AtomicBoolean();
+       Thread sending = new Thread() {
+           public void run() {
+               for (int i = 0; !stop.get(); i++) {
+                   sender.send(0, address, message(i, 100 + i % 1000));
+                   try {
+                       Thread.sleep(1);
+                   } catch (InterruptedException e) {
+                       return;
+                   }
+               }
+           }
+       };
+       sending.setDaemon(true);
+       sending.start();
+       try {
+           int last = -1;
+           for (int i = 0; i < 200; i++) {
+               int sequence = sequence(listener.receive());
+               assertEquals(last + 1, sequence);
+               last = sequence;
+           }
+           listener.close();
+
+           // messages written to the closed connection are lost, the
+           // following ones arrive in order
+           listener = new TcpListener(port);
+           int first = sequence(listener.receive());
+           assertTrue(first > last);
+           last = first;
+           for (int i = 0; i < 200; i++) {
+               byte[] received = listener.receive();
+               int sequence = sequence(received);
+               assertEquals(last + 1, sequence);
+               assertTrue(Arrays.equals(message(sequence,
+                       100 + sequence % 1000), received));
+               last = sequence;
+           }
+       } finally {
+           stop.set(true);
+           listener.close();
+       }
+       sending.join();
+   }
+}
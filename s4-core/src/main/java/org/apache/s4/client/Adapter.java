@@ -252,6 +252,11 @@ public class Adapter {
         public void dispatchEvent(String s, List<List<String>> k, Object e) {
             System.out.println("Dispatching event: " + s + ":" + k + ":" + e);
         }
+
+        @Override
+        public void dispatchEvents(String s, List<?> e) {
+            System.out.println("Dispatching events: " + s + ":" + e);
+        }
     }
 
     private static class TestReturnType {
@@ -21,20 +21,31 @@ import static org.apache.s4.util.MetricsName.S4_CORE_METRICS;
 import static org.apache.s4.util.MetricsName.S4_EVENT_METRICS;
 import static org.apache.s4.util.MetricsName.generic_listener_msg_in_ct;
 import org.apache.s4.listener.EventHandler;
+import org.apache.s4.logger.Counter;
 import org.apache.s4.logger.Monitor;
 import org.apache.s4.processor.AsynchronousEventProcessor;
 import org.apache.s4.processor.PEContainer;
 
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
 import org.apache.log4j.Logger;
 
 public class EventListener implements EventHandler {
     private static Logger logger = Logger.getLogger(EventListener.class);
-    private int eventCount = 0;
+    private AtomicInteger eventCount = new AtomicInteger();
     private AsynchronousEventProcessor eventProcessor;
     private org.apache.s4.listener.EventListener rawListener;
     private Monitor monitor;
+    private Counter msgInCounter;
+    private ConcurrentMap<String, Counter> msgInByStream = new ConcurrentHashMap<String, Counter>();
 
     public void setMonitor(Monitor monitor) {
+        if (monitor != null) {
+            msgInCounter = monitor.counter(generic_listener_msg_in_ct.toString(),
+                                           S4_CORE_METRICS.toString());
+        }
         this.monitor = monitor;
     }
 
@@ -55,7 +66,7 @@ public class EventListener implements EventHandler {
     }
 
     public int getEventCount() {
-        return eventCount;
+        return eventCount.get();
     }
 
     public EventListener() {
@@ -68,9 +79,7 @@ public class EventListener implements EventHandler {
 
     public void processEvent(EventWrapper eventWrapper) {
         try {
-            synchronized (this) {
-                eventCount++;
-            }
+            eventCount.incrementAndGet();
             if (logger.isDebugEnabled()) {
                 logger.debug("STEP 3 (EventListener): peContainer.addEvent - "
                         + eventWrapper.getEvent().toString());
@@ -78,18 +87,24 @@ public class EventListener implements EventHandler {
             eventProcessor.queueWork(eventWrapper);
 
             if (monitor != null) {
-                monitor.increment(generic_listener_msg_in_ct.toString(),
-                                  1,
-                                  S4_EVENT_METRICS.toString(),
-                                  "et",
-                                  eventWrapper.getStreamName());
-                monitor.increment(generic_listener_msg_in_ct.toString(),
-                                  1,
-                                  S4_CORE_METRICS.toString());
+                streamCounter(eventWrapper.getStreamName()).increment();
+                msgInCounter.increment();
             }
         } catch (Exception e) {
             logger.error("Exception in processEvent on thread "
                     + Thread.currentThread().getId(), e);
         }
     }
+
+    private Counter streamCounter(String streamName) {
+        Counter counter = msgInByStream.get(streamName);
+        if (counter == null) {
+            counter = monitor.counter(generic_listener_msg_in_ct.toString(),
+                                      S4_EVENT_METRICS.toString(),
+                                      "et",
+                                      streamName);
+            msgInByStream.putIfAbsent(streamName, counter);
+        }
+        return counter;
+    }
 }
@@ -18,6 +18,7 @@
 package org.apache.s4.collector;
 
 import org.apache.s4.dispatcher.partitioner.CompoundKeyInfo;
+import org.apache.s4.serialize.SerializerDeserializer;
 
 import java.util.ArrayList;
 import java.util.List;
@@ -28,15 +29,43 @@ public class EventWrapper {
     private List<List<String>> compoundKeyNames = null;
     private Object event;
     private String streamName;
+    // local to the node, set when the event is sampled for latency metrics
+    private transient long enqueueTime;
+    // serialized event, decoded on first access; null once decoded
+    private transient volatile byte[] eventBody;
+    private transient SerializerDeserializer eventDeserializer;
 
     public List<CompoundKeyInfo> getCompoundKeys() {
         return compoundKeys;
     }
 
+    /**
+     * @return the event, decoded on the first call if the wrapper was
+     *         received with a serialized event
+     */
     public Object getEvent() {
+        if (eventBody != null) {
+            decodeEvent();
+        }
         return event;
     }
 
+    // the same wrapper may be handed to several PE container workers
+    private synchronized void decodeEvent() {
+        if (eventBody != null) {
+            event = eventDeserializer.deserialize(eventBody);
+            eventBody = null;
+        }
+    }
+
+    /**
+     * @return false if the event is still serialized, waiting for a call to
+     *         {@link #getEvent()}
+     */
+    public boolean isEventDecoded() {
+        return eventBody == null;
+    }
+
     public String getStreamName() {
         return streamName;
     }
@@ -45,6 +74,19 @@ public class EventWrapper {
         return compoundKeyNames;
     }
 
+    /**
+     * @return the {@link System#nanoTime()} at which the event was queued for
+     *         processing, or 0 if the event is not sampled for latency
+     *         metrics
+     */
+    public long getEnqueueTime() {
+        return enqueueTime;
+    }
+
+    public void setEnqueueTime(long enqueueTime) {
+        this.enqueueTime = enqueueTime;
+    }
+
     public EventWrapper() {
         compoundKeys = new ArrayList<CompoundKeyInfo>();
     }
@@ -56,6 +98,22 @@ public class EventWrapper {
         this.compoundKeys = compoundKeys;
     }
 
+    /**
+     * Creates a wrapper whose event is only decoded when first accessed.
+     * 
+     * @param eventBody
+     *            the serialized event
+     * @param eventDeserializer
+     *            decodes <code>eventBody</code>
+     */
+    public EventWrapper(String streamName, List<CompoundKeyInfo> compoundKeys,
+            byte[] eventBody, SerializerDeserializer eventDeserializer) {
+        this.streamName = streamName;
+        this.compoundKeys = compoundKeys;
+        this.eventDeserializer = eventDeserializer;
+        this.eventBody = eventBody;
+    }
+
     public EventWrapper(String streamName, String[] compoundKeyStrings,
             Object event) {
         this.streamName = streamName;
@@ -18,17 +18,21 @@
 package org.apache.s4.dispatcher;
 
 import org.apache.s4.collector.EventWrapper;
+import org.apache.s4.dispatcher.combiner.Combiner;
+import org.apache.s4.dispatcher.combiner.CombiningBuffer;
 import org.apache.s4.dispatcher.partitioner.CompoundKeyInfo;
 import org.apache.s4.dispatcher.partitioner.Partitioner;
 import org.apache.s4.dispatcher.partitioner.VariableKeyPartitioner;
 import org.apache.s4.dispatcher.transformer.Transformer;
 import org.apache.s4.emitter.EventEmitter;
+import org.apache.s4.logger.Counter;
+import org.apache.s4.logger.MetricKey;
 
 import java.io.File;
 import java.util.ArrayList;
-import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.atomic.AtomicLongArray;
 
 import org.apache.log4j.Logger;
 
@@ -39,6 +43,10 @@ public class Dispatcher implements EventDispatcher {
     private String configFilename;
     private boolean debug = false;
     private String loggerName = "s4";
+    private Map<String, Combiner> combiners;
+    private long combineWindow = 50;
+    private int maxCombinedEvents = 1000;
+    private CombiningBuffer combiningBuffer;
 
     public final static String PARTITION_INFO_KEY = "S4__PartitionInfo";
 
@@ -70,26 +78,69 @@ public class Dispatcher implements EventDispatcher {
         this.loggerName = loggerName;
     }
 
-    private volatile int eventCount = 0;
-    private volatile int rawEventCount = 0;
+    /**
+     * Combiners of the streams whose events are merged before being emitted,
+     * by stream name. The events of a combined stream are held back for at
+     * most {@link #setCombineWindow(long)} milliseconds, and the events of
+     * the same stream going to the same key in that time are merged by the
+     * combiner of the stream, so that only one event per key is sent. Other
+     * streams are emitted right away, so the events of combined streams may
+     * be delivered after events dispatched later on other streams.
+     */
+    public void setCombiners(Map<String, Combiner> combiners) {
+        this.combiners = combiners;
+    }
+
+    /**
+     * Longest time, in milliseconds, an event of a combined stream is held
+     * back. Defaults to 50.
+     */
+    public void setCombineWindow(long combineWindow) {
+        this.combineWindow = combineWindow;
+    }
+
+    /**
+     * Number of events of a key after which the merged event is emitted
+     * without waiting for the end of the window. Defaults to 1000.
+     */
+    public void setMaxCombinedEvents(int maxCombinedEvents) {
+        this.maxCombinedEvents = maxCombinedEvents;
+    }
+
+    private final Counter eventCount = new Counter(new MetricKey("eventCount",
+                                                                 null));
+    private final Counter rawEventCount = new Counter(new MetricKey("rawEventCount",
+                                                                    null));
+
+    // scratch space of the dispatching threads
+    private final ThreadLocal<PartitionGroups> partitionGroups = new ThreadLocal<PartitionGroups>() {
+        protected PartitionGroups initialValue() {
+            return new PartitionGroups();
+        }
+    };
 
     public Dispatcher() {
 
     }
 
-    int counts[];
+    // number of events sent to each partition
+    private volatile AtomicLongArray counts;
 
     public void init() {
+        if (combiners != null && !combiners.isEmpty()) {
+            startCombining();
+        }
 
         Runnable r = new Runnable() {
             private long configFileTime = -1;
 
             public void run() {
                 long lastCheckTime = System.currentTimeMillis();
-                int lastEventCount = eventCount;
-                int lastRawEventCount = rawEventCount;
+                long lastEventCount = eventCount.get();
+                long lastRawEventCount = rawEventCount.get();
                 while (!Thread.currentThread().isInterrupted()) {
-                    int eventCount = Dispatcher.this.eventCount;
+                    long eventCount = Dispatcher.this.eventCount.get();
+                    long rawEventCount = Dispatcher.this.rawEventCount.get();
                     long currentTime = System.currentTimeMillis();
                     double rate = (eventCount - lastEventCount)
                             / ((currentTime - lastCheckTime) / 1000.0);
@@ -102,10 +153,11 @@ public class Dispatcher implements EventDispatcher {
                             + eventCount + "; rate " + rate);
                     Logger.getLogger(loggerName).info("Raw event count is "
                             + rawEventCount + "; rate " + rawRate);
+                    AtomicLongArray counts = Dispatcher.this.counts;
                     if (counts != null) {
-                        for (int i = 0; i < counts.length; i++) {
+                        for (int i = 0; i < counts.length(); i++) {
                             Logger.getLogger(loggerName).info(i + ": "
-                                    + counts[i]);
+                                    + counts.get(i));
                         }
                     }
 
@@ -146,6 +198,26 @@ public class Dispatcher implements EventDispatcher {
         t.start();
     }
 
+    private void startCombining() {
+        combiningBuffer = new CombiningBuffer(combiners,
+                                              eventEmitter,
+                                              maxCombinedEvents);
+        Thread t = new Thread(new Runnable() {
+            public void run() {
+                while (!Thread.currentThread().isInterrupted()) {
+                    try {
+                        Thread.sleep(combineWindow);
+                    } catch (InterruptedException ie) {
+                        Thread.currentThread().interrupt();
+                    }
+                    combiningBuffer.flush();
+                }
+            }
+        }, "Dispatcher-combiner");
+        t.setDaemon(true);
+        t.start();
+    }
+
     @Override
     public void dispatchEvent(String streamName,
                               List<List<String>> compoundKeyNames, Object event) {
@@ -157,65 +229,104 @@ public class Dispatcher implements EventDispatcher {
         dispatchEvent(streamName, event, false, null);
     }
 
-    private void dispatchEvent(String streamName, Object event,
-                               boolean variableKey,
-                               List<List<String>> compoundKeyNames) {
-        synchronized (this) {
-            rawEventCount++;
-        }
-        if (eventEmitter.getNodeCount() <= 0) {
+    @Override
+    public void dispatchEvents(String streamName, List<?> events) {
+        rawEventCount.add(events.size());
+        int nodeCount = eventEmitter.getNodeCount();
+        if (nodeCount <= 0) {
             return;
-        } else {
-            if (counts == null) {
-                counts = new int[eventEmitter.getNodeCount()];
-            }
         }
-
+        AtomicLongArray counts = getCounts(nodeCount);
+        PartitionGroups groups = acquirePartitionGroups(nodeCount);
         try {
-            synchronized (this) {
-                eventCount++;
-            }
-
-            List<CompoundKeyInfo> partionInfoList = new ArrayList<CompoundKeyInfo>();
-            for (Partitioner partitioner : partitioners) {
-                List<CompoundKeyInfo> pInfoList = null;
-
-                if (!variableKey) {
-                    pInfoList = partitioner.partition(streamName,
-                                                      event,
-                                                      eventEmitter.getNodeCount());
-                } else {
-                    if (partitioner instanceof VariableKeyPartitioner) {
-                        VariableKeyPartitioner vp = (VariableKeyPartitioner) partitioner;
-                        pInfoList = vp.partition(streamName,
-                                                 compoundKeyNames,
-                                                 event,
-                                                 eventEmitter.getNodeCount());
+            for (Object event : events) {
+                try {
+                    eventCount.increment();
+                    List<CompoundKeyInfo> partitionInfoList = partition(streamName,
+                                                                        event,
+                                                                        false,
+                                                                        null,
+                                                                        nodeCount);
+                    groups.groupKeys(partitionInfoList);
+                    for (int i = 0; i < groups.keyPartitionCount; i++) {
+                        int partitionId = groups.keyPartitions[i];
+                        EventWrapper eventWrapper = new EventWrapper(streamName,
+                                                                     event,
+                                                                     groups.takeKeys(partitionId));
+                        counts.incrementAndGet(partitionId);
+                        if (combiningBuffer == null
+                                || !combiningBuffer.offer(partitionId,
+                                                          eventWrapper)) {
+                            groups.addEvent(partitionId, eventWrapper);
+                        }
                     }
+                } catch (Exception e) {
+                    Logger.getLogger(loggerName)
+                          .error("Exception partitioning event " + event
+                                         + " on thread "
+                                         + Thread.currentThread().getId(),
+                                 e);
+                } finally {
+                    groups.clearKeys();
                 }
+            }
 
-                if (pInfoList != null) {
-                    partionInfoList.addAll(pInfoList);
+            for (int i = 0; i < groups.eventPartitionCount; i++) {
+                int partitionId = groups.eventPartitions[i];
+                try {
+                    eventEmitter.emit(partitionId,
+                                      groups.eventsByPartition[partitionId]);
+                } catch (Exception e) {
+                    Logger.getLogger(loggerName)
+                          .error("Exception emitting events on thread "
+                                         + Thread.currentThread().getId()
+                                         + " at time "
+                                         + System.currentTimeMillis(),
+                                 e);
                 }
             }
+        } finally {
+            groups.release();
+        }
+    }
 
-            Map<Integer, List<CompoundKeyInfo>> pInfoMap = new HashMap<Integer, List<CompoundKeyInfo>>();
-            for (CompoundKeyInfo partitionInfo : partionInfoList) {
-                int partitionId = partitionInfo.getPartitionId();
-                List<CompoundKeyInfo> listByPartitionNumber = pInfoMap.get(partitionId);
-                if (listByPartitionNumber == null) {
-                    listByPartitionNumber = new ArrayList<CompoundKeyInfo>();
-                    pInfoMap.put(partitionId, listByPartitionNumber);
-                }
-                listByPartitionNumber.add(partitionInfo);
+    private void dispatchEvent(String streamName, Object event,
+                               boolean variableKey,
+                               List<List<String>> compoundKeyNames) {
+        rawEventCount.increment();
+        int nodeCount = eventEmitter.getNodeCount();
+        if (nodeCount <= 0) {
+            return;
+        }
+        AtomicLongArray counts = getCounts(nodeCount);
+
+        PartitionGroups groups = null;
+        try {
+            eventCount.increment();
+
+            List<CompoundKeyInfo> partionInfoList = partition(streamName,
+                                                              event,
+                                                              variableKey,
+                                                              compoundKeyNames,
+                                                              nodeCount);
+            if (partionInfoList.size() == 1) {
+                // most common case: a single key
+                CompoundKeyInfo partitionInfo = partionInfoList.get(0);
+                counts.incrementAndGet(partitionInfo.getPartitionId());
+                emit(partitionInfo.getPartitionId(),
+                     new EventWrapper(streamName, event, partionInfoList));
+                return;
             }
 
-            for (int partitionId : pInfoMap.keySet()) {
+            groups = acquirePartitionGroups(nodeCount);
+            groups.groupKeys(partionInfoList);
+            for (int i = 0; i < groups.keyPartitionCount; i++) {
+                int partitionId = groups.keyPartitions[i];
                 EventWrapper eventWrapper = new EventWrapper(streamName,
                                                              event,
-                                                             pInfoMap.get(partitionId));
-                counts[partitionId]++;
-                eventEmitter.emit(partitionId, eventWrapper);
+                                                             groups.takeKeys(partitionId));
+                counts.incrementAndGet(partitionId);
+                emit(partitionId, eventWrapper);
             }
         } catch (Exception e) {
             Logger.getLogger(loggerName)
@@ -223,6 +334,142 @@ public class Dispatcher implements EventDispatcher {
                                  + Thread.currentThread().getId() + " at time "
                                  + System.currentTimeMillis(),
                          e);
+        } finally {
+            if (groups != null) {
+                groups.clearKeys();
+                groups.release();
+            }
+        }
+    }
+
+    private void emit(int partitionId, EventWrapper eventWrapper) {
+        if (combiningBuffer == null
+                || !combiningBuffer.offer(partitionId, eventWrapper)) {
+            eventEmitter.emit(partitionId, eventWrapper);
+        }
+    }
+
+    /**
+     * @return the keys of the event for all the partitioners, in a new list
+     */
+    private List<CompoundKeyInfo> partition(String streamName, Object event,
+                                            boolean variableKey,
+                                            List<List<String>> compoundKeyNames,
+                                            int nodeCount) {
+        List<CompoundKeyInfo> partionInfoList = new ArrayList<CompoundKeyInfo>();
+        for (Partitioner partitioner : partitioners) {
+            List<CompoundKeyInfo> pInfoList = null;
+
+            if (!variableKey) {
+                pInfoList = partitioner.partition(streamName, event, nodeCount);
+            } else {
+                if (partitioner instanceof VariableKeyPartitioner) {
+                    VariableKeyPartitioner vp = (VariableKeyPartitioner) partitioner;
+                    pInfoList = vp.partition(streamName,
+                                             compoundKeyNames,
+                                             event,
+                                             nodeCount);
+                }
+            }
+
+            if (pInfoList != null) {
+                partionInfoList.addAll(pInfoList);
+            }
+        }
+        return partionInfoList;
+    }
+
+    private AtomicLongArray getCounts(int nodeCount) {
+        AtomicLongArray counts = this.counts;
+        if (counts == null || counts.length() != nodeCount) {
+            counts = new AtomicLongArray(nodeCount);
+            this.counts = counts;
+        }
+        return counts;
+    }
+
+    private PartitionGroups acquirePartitionGroups(int nodeCount) {
+        PartitionGroups groups = partitionGroups.get();
+        if (groups.inUse) {
+            // dispatching from the emitter of this very dispatcher
+            groups = new PartitionGroups();
+        }
+        groups.acquire(nodeCount);
+        return groups;
+    }
+
+    /**
+     * Groups keys and events by partition in arrays indexed by partition id,
+     * remembering which partitions were used, in order. Reused by a thread
+     * from one dispatch to the next.
+     */
+    static class PartitionGroups {
+        boolean inUse;
+        List<CompoundKeyInfo>[] keysByPartition;
+        int[] keyPartitions;
+        int keyPartitionCount;
+        List<EventWrapper>[] eventsByPartition;
+        int[] eventPartitions;
+        int eventPartitionCount;
+
+        @SuppressWarnings("unchecked")
+        void acquire(int nodeCount) {
+            inUse = true;
+            if (keysByPartition == null || keysByPartition.length != nodeCount) {
+                keysByPartition = new List[nodeCount];
+                keyPartitions = new int[nodeCount];
+                eventsByPartition = new List[nodeCount];
+                eventPartitions = new int[nodeCount];
+                for (int i = 0; i < nodeCount; i++) {
+                    keysByPartition[i] = new ArrayList<CompoundKeyInfo>();
+                    eventsByPartition[i] = new ArrayList<EventWrapper>();
+                }
+            }
+        }
+
+        void groupKeys(List<CompoundKeyInfo> partitionInfoList) {
+            for (CompoundKeyInfo partitionInfo : partitionInfoList) {
+                int partitionId = partitionInfo.getPartitionId();
+                List<CompoundKeyInfo> keys = keysByPartition[partitionId];
+                if (keys.isEmpty()) {
+                    keyPartitions[keyPartitionCount++] = partitionId;
+                }
+                keys.add(partitionInfo);
+            }
+        }
+
+        /**
+         * @return the keys of the current event going to the given partition,
+         *         in a new list, which goes with the event
+         */
+        List<CompoundKeyInfo> takeKeys(int partitionId) {
+            List<CompoundKeyInfo> keys = keysByPartition[partitionId];
+            List<CompoundKeyInfo> copy = new ArrayList<CompoundKeyInfo>(keys);
+            keys.clear();
+            return copy;
+        }
+
+        void clearKeys() {
+            for (int i = 0; i < keyPartitionCount; i++) {
+                keysByPartition[keyPartitions[i]].clear();
+            }
+            keyPartitionCount = 0;
+        }
+
+        void addEvent(int partitionId, EventWrapper eventWrapper) {
+            List<EventWrapper> events = eventsByPartition[partitionId];
+            if (events.isEmpty()) {
+                eventPartitions[eventPartitionCount++] = partitionId;
+            }
+            events.add(eventWrapper);
+        }
+
+        void release() {
+            for (int i = 0; i < eventPartitionCount; i++) {
+                eventsByPartition[eventPartitions[i]].clear();
+            }
+            eventPartitionCount = 0;
+            inUse = false;
         }
     }
 
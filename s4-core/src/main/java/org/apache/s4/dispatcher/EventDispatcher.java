@@ -46,4 +46,16 @@ public interface EventDispatcher {
     void dispatchEvent(String streamName, List<List<String>> compoundKeyNames,
                        Object event);
 
+    /**
+     * Dispatch a batch of events on a stream. The events are partitioned as
+     * by {@link #dispatchEvent(String, Object)}, and the events going to the
+     * same partition are handed over together.
+     * 
+     * @param streamName
+     *            name of stream to dispatch on
+     * @param events
+     *            objects to dispatch
+     */
+    void dispatchEvents(String streamName, List<?> events);
+
 }
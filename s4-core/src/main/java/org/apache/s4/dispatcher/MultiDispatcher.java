@@ -48,4 +48,13 @@ public class MultiDispatcher implements EventDispatcher {
             }
         }
     }
+
+    @Override
+    public void dispatchEvents(String streamName, List<?> events) {
+        if (dispatchers != null) {
+            for (EventDispatcher dispatcher : dispatchers) {
+                dispatcher.dispatchEvents(streamName, events);
+            }
+        }
+    }
 }
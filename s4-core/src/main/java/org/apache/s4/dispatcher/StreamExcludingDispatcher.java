@@ -51,4 +51,12 @@ public class StreamExcludingDispatcher implements EventDispatcher {
             dispatcher.dispatchEvent(streamName, compoundKeyNames, event);
         }
     }
+
+    @Override
+    public void dispatchEvents(String streamName, List<?> events) {
+        if (dispatcher != null
+                && (streams == null || !streams.contains(streamName))) {
+            dispatcher.dispatchEvents(streamName, events);
+        }
+    }
 }
@@ -0,0 +1,55 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.s4.dispatcher.combiner;
+
+/**
+ * Merges events of the same stream, sent to the same key, before they leave
+ * the node (see {@link org.apache.s4.dispatcher.Dispatcher#setCombiners}).
+ * <p>
+ * Only streams whose events can be merged without loss, such as count
+ * increments, should be combined: the receiving PEs see a single event in
+ * place of the combined ones.
+ */
+public interface Combiner {
+
+    /**
+     * Copies the first event of a key, when a second one is to be merged into
+     * it. The dispatched event cannot be modified: it may also be wrapped for
+     * other partitions or partitioners, and be held by the code which
+     * dispatched it.
+     * 
+     * @return a copy which the caller owns, or null if the event cannot be
+     *         copied, in which case the events of the key are not merged
+     */
+    public Object copy(Object event);
+
+    /**
+     * Merges an event into the events accumulated so far for its key.
+     * 
+     * @param accumulated
+     *            the result of the previous merges, starting with a
+     *            {@link #copy(Object) copy} of the first event of the key. It
+     *            may be modified and returned.
+     * @param event
+     *            the next event of the key, which must not be modified
+     * @return the merged event, or null if the two events cannot be merged,
+     *         in which case the accumulated event is sent and the next one
+     *         starts a new accumulation
+     */
+    public Object combine(Object accumulated, Object event);
+}
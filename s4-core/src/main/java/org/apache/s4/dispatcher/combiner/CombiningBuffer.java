@@ -0,0 +1,200 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.s4.dispatcher.combiner;
+
+import org.apache.s4.collector.EventWrapper;
+import org.apache.s4.dispatcher.partitioner.CompoundKeyInfo;
+import org.apache.s4.emitter.EventEmitter;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Holds back the events of combined streams, by stream, partition and key,
+ * and merges the events of the same key with the {@link Combiner} of their
+ * stream until they are flushed to the emitter.
+ * <p>
+ * The accumulated event of a key is emitted once it merges
+ * <code>maxCombinedEvents</code> events, or at the latest at the next
+ * {@link #flush()}, which its owner calls periodically. The buffer is split
+ * in stripes, each one with its own lock, so that dispatching threads rarely
+ * contend.
+ */
+public class CombiningBuffer {
+    private static Logger logger = Logger.getLogger(CombiningBuffer.class);
+    private static final int STRIPES = 16;
+
+    private final Map<String, Combiner> combiners;
+    private final EventEmitter emitter;
+    private final int maxCombinedEvents;
+    private final Stripe[] stripes = new Stripe[STRIPES];
+
+    /**
+     * @param combiners
+     *            the combiner of each combined stream
+     * @param emitter
+     *            where the accumulated events go
+     * @param maxCombinedEvents
+     *            number of events after which an accumulated event is emitted
+     *            without waiting for the next flush
+     */
+    public CombiningBuffer(Map<String, Combiner> combiners,
+            EventEmitter emitter, int maxCombinedEvents) {
+        this.combiners = new HashMap<String, Combiner>(combiners);
+        this.emitter = emitter;
+        this.maxCombinedEvents = maxCombinedEvents;
+        for (int i = 0; i < STRIPES; i++) {
+            stripes[i] = new Stripe();
+        }
+    }
+
+    /**
+     * Buffers an event if its stream is combined.
+     * 
+     * @return false if the stream is not combined, in which case the caller
+     *         emits the event itself
+     */
+    public boolean offer(int partitionId, EventWrapper eventWrapper) {
+        Combiner combiner = combiners.get(eventWrapper.getStreamName());
+        if (combiner == null) {
+            return false;
+        }
+
+        String key = key(partitionId, eventWrapper);
+        Stripe stripe = stripes[(key.hashCode() & Integer.MAX_VALUE) % STRIPES];
+        Entry full = null;
+        synchronized (stripe) {
+            Entry entry = stripe.entries.get(key);
+            if (entry == null) {
+                stripe.entries.put(key, new Entry(partitionId, eventWrapper));
+                return true;
+            }
+
+            Object combined = null;
+            try {
+                if (!entry.copied) {
+                    // the first event may be shared: merge into a copy
+                    Object copy = combiner.copy(entry.event);
+                    if (copy != null) {
+                        entry.event = copy;
+                        entry.copied = true;
+                    }
+                }
+                if (entry.copied) {
+                    combined = combiner.combine(entry.event,
+                                                eventWrapper.getEvent());
+                }
+            } catch (Exception e) {
+                logger.error("Exception combining events of stream "
+                        + eventWrapper.getStreamName(), e);
+            }
+            if (combined == null) {
+                // cannot merge: send what was accumulated, start again
+                full = entry;
+                stripe.entries.put(key, new Entry(partitionId, eventWrapper));
+            } else {
+                entry.event = combined;
+                if (++entry.count >= maxCombinedEvents) {
+                    full = entry;
+                    stripe.entries.remove(key);
+                }
+            }
+        }
+        if (full != null) {
+            emitter.emit(full.partitionId, full.toEventWrapper());
+        }
+        return true;
+    }
+
+    /**
+     * Emits all the accumulated events, grouped by partition.
+     */
+    public void flush() {
+        Map<Integer, List<EventWrapper>> byPartition = new TreeMap<Integer, List<EventWrapper>>();
+        for (Stripe stripe : stripes) {
+            Map<String, Entry> entries;
+            synchronized (stripe) {
+                if (stripe.entries.isEmpty()) {
+                    continue;
+                }
+                entries = stripe.entries;
+                stripe.entries = new HashMap<String, Entry>();
+            }
+            for (Entry entry : entries.values()) {
+                List<EventWrapper> events = byPartition.get(entry.partitionId);
+                if (events == null) {
+                    events = new ArrayList<EventWrapper>();
+                    byPartition.put(entry.partitionId, events);
+                }
+                events.add(entry.toEventWrapper());
+            }
+        }
+        for (Map.Entry<Integer, List<EventWrapper>> events : byPartition.entrySet()) {
+            try {
+                emitter.emit(events.getKey(), events.getValue());
+            } catch (Exception e) {
+                logger.error("Exception emitting combined events", e);
+            }
+        }
+    }
+
+    private static String key(int partitionId, EventWrapper eventWrapper) {
+        StringBuilder sb = new StringBuilder(eventWrapper.getStreamName());
+        sb.append('/').append(partitionId);
+        List<CompoundKeyInfo> keys = eventWrapper.getCompoundKeys();
+        if (keys != null) {
+            for (CompoundKeyInfo key : keys) {
+                sb.append('/')
+                  .append(key.getCompoundKey())
+                  .append('=')
+                  .append(key.getCompoundValue());
+            }
+        }
+        return sb.toString();
+    }
+
+    static class Stripe {
+        Map<String, Entry> entries = new HashMap<String, Entry>();
+    }
+
+    static class Entry {
+        final int partitionId;
+        final String streamName;
+        final List<CompoundKeyInfo> keys;
+        Object event;
+        // true once event is a copy, which the buffer can modify
+        boolean copied;
+        int count = 1;
+
+        Entry(int partitionId, EventWrapper eventWrapper) {
+            this.partitionId = partitionId;
+            this.streamName = eventWrapper.getStreamName();
+            this.keys = eventWrapper.getCompoundKeys();
+            this.event = eventWrapper.getEvent();
+        }
+
+        EventWrapper toEventWrapper() {
+            return new EventWrapper(streamName, event, keys);
+        }
+    }
+}
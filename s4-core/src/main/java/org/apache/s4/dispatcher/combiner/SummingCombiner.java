@@ -0,0 +1,108 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.s4.dispatcher.combiner;
+
+import org.apache.s4.schema.Schema.Property;
+import org.apache.s4.schema.SchemaContainer;
+import org.apache.s4.serialize.KryoSerDeser;
+import org.apache.s4.serialize.SerializerDeserializer;
+
+import java.lang.reflect.Method;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Combines events of the same class by adding up one of their numeric
+ * properties, for instance the <code>count</code> of
+ * <code>TopicSeen</code> events:
+ * 
+ * <pre>
+ * &lt;bean class="org.apache.s4.dispatcher.combiner.SummingCombiner"&gt;
+ *   &lt;property name="property" value="count"/&gt;
+ * &lt;/bean&gt;
+ * </pre>
+ * 
+ * The sum is stored in a copy of the first event of the key, which is then
+ * sent in place of all of them: the other properties of the later events are
+ * lost. Events are copied through a serialize and deserialize round trip,
+ * with {@link KryoSerDeser} unless another serializer is set.
+ */
+public class SummingCombiner implements Combiner {
+    private static Logger logger = Logger.getLogger(SummingCombiner.class);
+
+    private String property;
+    private SerializerDeserializer serDeser = new KryoSerDeser();
+    private SchemaContainer schemaContainer = new SchemaContainer();
+
+    /**
+     * Name of the property to add up. It must have a getter and a setter.
+     */
+    public void setProperty(String property) {
+        this.property = property;
+    }
+
+    /**
+     * Serializer used to copy the first event of a key. Defaults to a
+     * {@link KryoSerDeser}.
+     */
+    public void setSerDeser(SerializerDeserializer serDeser) {
+        this.serDeser = serDeser;
+    }
+
+    public Object copy(Object event) {
+        return serDeser.deserialize(serDeser.serialize(event));
+    }
+
+    public Object combine(Object accumulated, Object event) {
+        if (accumulated.getClass() != event.getClass()) {
+            return null;
+        }
+        Property p = schemaContainer.getSchema(accumulated.getClass())
+                                    .getProperties()
+                                    .get(property);
+        if (p == null || p.getSetterMethod() == null) {
+            return null;
+        }
+
+        Object sum = add(p.getValue(accumulated), p.getValue(event));
+        if (sum == null) {
+            return null;
+        }
+        Method setter = p.getSetterMethod();
+        try {
+            setter.invoke(accumulated, sum);
+        } catch (Exception e) {
+            logger.error("Cannot set " + property + " on " + accumulated, e);
+            return null;
+        }
+        return accumulated;
+    }
+
+    private static Object add(Object a, Object b) {
+        if (a instanceof Integer && b instanceof Integer) {
+            return Integer.valueOf((Integer) a + (Integer) b);
+        } else if (a instanceof Long && b instanceof Long) {
+            return Long.valueOf((Long) a + (Long) b);
+        } else if (a instanceof Double && b instanceof Double) {
+            return Double.valueOf((Double) a + (Double) b);
+        } else if (a instanceof Float && b instanceof Float) {
+            return Float.valueOf((Float) a + (Float) b);
+        }
+        return null;
+    }
+}
@@ -17,6 +17,8 @@
  */
 package org.apache.s4.dispatcher.partitioner;
 
+import java.io.IOException;
+import java.io.ObjectOutputStream;
 import java.io.Serializable;
 import java.util.ArrayList;
 import java.util.List;
@@ -25,7 +27,12 @@ public class CompoundKeyInfo implements Serializable {
     List<KeyInfo> keyInfoList = new ArrayList<KeyInfo>();
     int partitionId = -1;
     String compoundValue;
+    // value whose string form is only computed when needed; only the string
+    // form is serialized
+    transient Object rawCompoundValue;
     String compoundKey;
+    // hot key sent to another partition than its own
+    boolean partial;
 
     public CompoundKeyInfo() {
     }
@@ -46,6 +53,29 @@ public class CompoundKeyInfo implements Serializable {
         this.compoundValue = compoundValue;
     }
 
+    /**
+     * Sets the compound value without converting it to a string: the string
+     * form is only computed by {@link #getCompoundValue()}, typically on the
+     * receiving node.
+     */
+    public void setRawCompoundValue(Object rawCompoundValue) {
+        this.rawCompoundValue = rawCompoundValue;
+        this.compoundValue = null;
+    }
+
+    /**
+     * Marks a hot key value sent to another partition than the one it hashes
+     * to: the PE instances it reaches there only hold part of the state of the
+     * key (see {@link DefaultPartitioner#setHotKeySplitFactor(int)}).
+     */
+    public void setPartial(boolean partial) {
+        this.partial = partial;
+    }
+
+    public boolean isPartial() {
+        return partial;
+    }
+
     public List<KeyInfo> getKeyInfoList() {
         return keyInfoList;
     }
@@ -69,9 +99,31 @@ public class CompoundKeyInfo implements Serializable {
     }
 
     public String getCompoundValue() {
+        if (compoundValue == null && rawCompoundValue != null) {
+            compoundValue = String.valueOf(rawCompoundValue);
+        }
         return this.compoundValue;
     }
 
+    /**
+     * Builds the string forms of the values set with
+     * {@link #setRawCompoundValue(Object)} and {@link KeyInfo#setRawValue(Object)}.
+     * Raw values are not serialized: serializers call this method before
+     * writing the key, so that the receiver gets the values as the sender
+     * formats them.
+     */
+    public void materializeValues() {
+        getCompoundValue();
+        for (KeyInfo keyInfo : keyInfoList) {
+            keyInfo.getValue();
+        }
+    }
+
+    private void writeObject(ObjectOutputStream out) throws IOException {
+        materializeValues();
+        out.defaultWriteObject();
+    }
+
     public String toString() {
         return "{" + getCompoundKey() + " = " + getCompoundValue() + "}:"
                 + getPartitionId();
@@ -0,0 +1,138 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.s4.dispatcher.partitioner;
+
+import java.util.Arrays;
+
+/**
+ * Partitioner placing keys on a consistent hash ring.
+ * <p>
+ * Each partition owns a number of points on a ring of 32-bit hashes, its
+ * virtual nodes, placed with the MD5-based scheme of ketama (see
+ * {@link HashAlgorithm#KETAMA_HASH}). A key goes to the partition owning the
+ * first point at or after the hash of its value. When the number of
+ * partitions grows from <i>n</i> to <i>m</i>, only about
+ * <i>(m-n)/m</i> of the keys change partition, instead of almost all of them
+ * with {@link DefaultPartitioner}, so most PE state stays where it is.
+ * <p>
+ * Keys are extracted exactly as by {@link DefaultPartitioner}, and configured
+ * the same way:
+ * 
+ * <pre>
+ * &lt;bean id="partitioner" class="org.apache.s4.dispatcher.partitioner.ConsistentHashPartitioner"&gt;
+ *   &lt;property name="streamNames"&gt;...&lt;/property&gt;
+ *   &lt;property name="hashKey"&gt;...&lt;/property&gt;
+ *   &lt;property name="hasher" ref="hasher"/&gt;
+ *   &lt;property name="virtualNodes" value="160"/&gt;
+ * &lt;/bean&gt;
+ * </pre>
+ * 
+ * All the dispatchers sending to a cluster must use the same partitioner
+ * settings.
+ */
+public class ConsistentHashPartitioner extends DefaultPartitioner {
+    private int virtualNodes = 160;
+    private volatile Ring ring;
+
+    /**
+     * Number of points of each partition on the ring. More points spread the
+     * keys more evenly, at the cost of a larger ring. Defaults to 160.
+     */
+    public void setVirtualNodes(int virtualNodes) {
+        if (virtualNodes < 1) {
+            throw new IllegalArgumentException("virtualNodes must be positive");
+        }
+        this.virtualNodes = virtualNodes;
+        this.ring = null;
+    }
+
+    @Override
+    protected int getPartitionId(long hash, int partitionCount) {
+        Ring ring = this.ring;
+        if (ring == null || ring.partitionCount != partitionCount) {
+            ring = new Ring(partitionCount, virtualNodes);
+            this.ring = ring;
+        }
+        // spread the hash, or keys differing by their last byte would
+        // cluster on the ring
+        return ring.lookup(mix(hash) & 0xffffffffL);
+    }
+
+    /**
+     * Sorted ring points and the partition owning each one.
+     */
+    static class Ring {
+        final int partitionCount;
+        final long[] points;
+        final int[] owners;
+
+        Ring(int partitionCount, int virtualNodes) {
+            this.partitionCount = partitionCount;
+            // four points per MD5 digest, as in ketama
+            int digestsPerPartition = (virtualNodes + 3) / 4;
+            int size = partitionCount * digestsPerPartition * 4;
+            // point in the upper 32 bits, offset to sort as a signed value,
+            // and partition in the lower ones, so that sorting orders by
+            // point, then by partition for collisions
+            long[] entries = new long[size];
+            int n = 0;
+            for (int partition = 0; partition < partitionCount; partition++) {
+                for (int i = 0; i < digestsPerPartition; i++) {
+                    byte[] digest = HashAlgorithm.computeMd5("partition-"
+                            + partition + "-" + i);
+                    for (int h = 0; h < 4; h++) {
+                        long point = ((long) (digest[3 + h * 4] & 0xFF) << 24)
+                                | ((long) (digest[2 + h * 4] & 0xFF) << 16)
+                                | ((long) (digest[1 + h * 4] & 0xFF) << 8)
+                                | (digest[h * 4] & 0xFF);
+                        entries[n++] = ((point - 0x80000000L) << 32) | partition;
+                    }
+                }
+            }
+            Arrays.sort(entries);
+
+            points = new long[size];
+            owners = new int[size];
+            for (int i = 0; i < size; i++) {
+                points[i] = (entries[i] >> 32) + 0x80000000L;
+                owners[i] = (int) (entries[i] & 0xffffffffL);
+            }
+        }
+
+        /**
+         * @param hash
+         *            a hash in [0, 2^32)
+         */
+        int lookup(long hash) {
+            int index = Arrays.binarySearch(points, hash);
+            if (index < 0) {
+                index = -index - 1;
+                if (index == points.length) {
+                    // wrap around the ring
+                    index = 0;
+                }
+            } else {
+                // first of equal points
+                while (index > 0 && points[index - 1] == hash) {
+                    index--;
+                }
+            }
+            return owners[index];
+        }
+    }
+}
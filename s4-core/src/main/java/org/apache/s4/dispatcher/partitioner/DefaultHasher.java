@@ -21,8 +21,21 @@ public class DefaultHasher implements Hasher {
 
     HashAlgorithm hashAlgorithm = HashAlgorithm.FNV1_64_HASH;
 
+    /**
+     * Hashes the string form of the key. Strings, integral numbers and other
+     * character sequences are hashed without building an intermediate
+     * string.
+     */
     @Override
     public long hash(Object hashKey) {
+        if (hashKey instanceof String) {
+            return hashAlgorithm.hash((String) hashKey);
+        } else if (hashKey instanceof Long || hashKey instanceof Integer
+                || hashKey instanceof Short || hashKey instanceof Byte) {
+            return hashAlgorithm.hash(((Number) hashKey).longValue());
+        } else if (hashKey instanceof CharSequence) {
+            return hashAlgorithm.hash((CharSequence) hashKey);
+        }
         return hashAlgorithm.hash(String.valueOf(hashKey));
     }
 
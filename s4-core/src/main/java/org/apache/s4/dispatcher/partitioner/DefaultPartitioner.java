@@ -17,6 +17,9 @@
  */
 package org.apache.s4.dispatcher.partitioner;
 
+import org.apache.s4.message.PartialState;
+import org.apache.s4.message.SinglePERequest;
+import org.apache.s4.schema.PropertyAccessor;
 import org.apache.s4.schema.Schema;
 import org.apache.s4.schema.Schema.Property;
 import org.apache.s4.schema.SchemaContainer;
@@ -36,6 +39,16 @@ public class DefaultPartitioner implements Partitioner, VariableKeyPartitioner {
     private Set<String> streamNameSet;
     private String delimiter = ":";
     private boolean fastPath = false;
+    private HotKeyDetector hotKeyDetector;
+    private int hotKeySplitFactor = 4;
+    // racy: only used to pick the sub-keys of hot keys in turn
+    private int splitCursor;
+    // builds compound values, reused by each dispatching thread
+    private ThreadLocal<StringBuilder> compoundValueBuilder = new ThreadLocal<StringBuilder>() {
+        protected StringBuilder initialValue() {
+            return new StringBuilder();
+        }
+    };
 
     public void setDelimiter(String delimiter) {
         this.delimiter = delimiter;
@@ -67,6 +80,33 @@ public class DefaultPartitioner implements Partitioner, VariableKeyPartitioner {
         this.debug = debug;
     }
 
+    /**
+     * Enables the splitting of hot keys: the events of the keys the detector
+     * finds hot are spread over {@link #setHotKeySplitFactor(int)} sub-keys,
+     * each one hashing to its own partition, so that a single key does not
+     * bind all its events to one node. The key infos of the events sent to
+     * another partition than the one of their key are marked
+     * {@link CompoundKeyInfo#isPartial() partial}.
+     * <p>
+     * Only enable it on streams consumed by
+     * {@link org.apache.s4.processor.MergeablePE}s: other PEs would end up
+     * with the state of a key split between several nodes.
+     */
+    public void setHotKeyDetector(HotKeyDetector hotKeyDetector) {
+        this.hotKeyDetector = hotKeyDetector;
+    }
+
+    /**
+     * Number of sub-keys a hot key is split into, the key itself included.
+     * Defaults to 4.
+     */
+    public void setHotKeySplitFactor(int hotKeySplitFactor) {
+        if (hotKeySplitFactor < 1) {
+            throw new IllegalArgumentException("hotKeySplitFactor must be positive");
+        }
+        this.hotKeySplitFactor = hotKeySplitFactor;
+    }
+
     private SchemaContainer schemaContainer = new SchemaContainer();
 
     public List<CompoundKeyInfo> partition(String streamName, Object event,
@@ -84,7 +124,21 @@ public class DefaultPartitioner implements Partitioner, VariableKeyPartitioner {
         }
 
         // Some event types that need special handling
-        if (event instanceof org.apache.s4.message.Request) {
+        if (event instanceof SinglePERequest) {
+            // the target PE is on the partition its key maps to, which
+            // subclasses may compute differently from Request.partition
+            List<CompoundKeyInfo> partitionInfoList = ((SinglePERequest) event).partition(hasher,
+                                                                                          delimiter,
+                                                                                          partitionCount);
+            if (partitionInfoList != null) {
+                for (CompoundKeyInfo partitionInfo : partitionInfoList) {
+                    partitionInfo.setPartitionId(getPartitionId(hasher.hash(partitionInfo.getCompoundValue()),
+                                                                partitionCount));
+                }
+            }
+            return partitionInfoList;
+
+        } else if (event instanceof org.apache.s4.message.Request) {
             // construct key from request's target
             org.apache.s4.message.Request r = (org.apache.s4.message.Request) event;
             return r.partition(hasher, delimiter, partitionCount);
@@ -94,6 +148,11 @@ public class DefaultPartitioner implements Partitioner, VariableKeyPartitioner {
             org.apache.s4.message.Response r = (org.apache.s4.message.Response) event;
             return r.partition(partitionCount);
 
+        } else if (event instanceof PartialState) {
+            // merged into the instance on the partition the key hashes to
+            return partitionOnValue(((PartialState) event).getKeyValue(),
+                                    partitionCount);
+
         } else if (compoundKeyNames == null) {
             // if compoundKeyNames is null, then assign to a random partition.
             return partitionRandom(partitionCount);
@@ -108,8 +167,6 @@ public class DefaultPartitioner implements Partitioner, VariableKeyPartitioner {
             System.out.println(schema);
         }
 
-        List<CompoundKeyInfo> partitionInfoList = new ArrayList<CompoundKeyInfo>();
-
         // fast path for single top-level key
         if (fastPath
                 || (compoundKeyNames.size() == 1 && compoundKeyNames.get(0)
@@ -127,7 +184,7 @@ public class DefaultPartitioner implements Partitioner, VariableKeyPartitioner {
 
             Object value = null;
             try {
-                value = property.getGetterMethod().invoke(event);
+                value = property.getValue(event);
             } catch (Exception e) {
                 if (debug) {
                     e.printStackTrace();
@@ -141,34 +198,49 @@ public class DefaultPartitioner implements Partitioner, VariableKeyPartitioner {
                 return null;
             }
             keyInfo.addElementToPath(simpleKeyName);
-            String stringValue = String.valueOf(value);
-            keyInfo.setValue(stringValue);
+            // the string form of the value is only built where it is used:
+            // by the serializer when the event is sent, by the PE container
+            // when it is delivered locally; the hasher hashes strings and
+            // integral numbers as they are
+            keyInfo.setRawValue(value);
             CompoundKeyInfo partitionInfo = new CompoundKeyInfo();
             partitionInfo.addKeyInfo(keyInfo);
-            int partitionId = (int) (hasher.hash(stringValue) % partitionCount);
-            partitionInfo.setPartitionId(partitionId);
-            partitionInfo.setCompoundValue(stringValue);
+            assignPartition(partitionInfo, hasher.hash(value), partitionCount);
+            partitionInfo.setRawCompoundValue(value);
+            List<CompoundKeyInfo> partitionInfoList = new ArrayList<CompoundKeyInfo>(1);
             partitionInfoList.add(partitionInfo);
             if (debug) {
                 System.out.printf("Value %s, partition id %d\n",
-                                  stringValue,
+                                  value,
                                   partitionInfo.getPartitionId());
             }
             return partitionInfoList;
         }
 
+        List<CompoundKeyInfo> partitionInfoList = new ArrayList<CompoundKeyInfo>();
+
         List<List<KeyInfo>> valueLists = new ArrayList<List<KeyInfo>>();
         int maxSize = 0;
 
         for (List<String> simpleKeyPath : compoundKeyNames) {
             List<KeyInfo> keyInfoList = new ArrayList<KeyInfo>();
             KeyInfo keyInfo = new KeyInfo();
-            keyInfoList = getKeyValues(event,
-                                       schema,
-                                       simpleKeyPath,
-                                       0,
-                                       keyInfoList,
-                                       keyInfo);
+            PropertyAccessor accessor = schema.getAccessor(simpleKeyPath);
+            if (accessor != null) {
+                // the path has a single value: read it in one call
+                keyInfoList = getKeyValue(event,
+                                          accessor,
+                                          simpleKeyPath,
+                                          keyInfoList,
+                                          keyInfo);
+            } else {
+                keyInfoList = getKeyValues(event,
+                                           schema,
+                                           simpleKeyPath,
+                                           0,
+                                           keyInfoList,
+                                           keyInfo);
+            }
             if (keyInfoList == null || keyInfoList.size() == 0) {
                 if (debug) {
                     System.out.println("Null value encountered");
@@ -184,26 +256,25 @@ public class DefaultPartitioner implements Partitioner, VariableKeyPartitioner {
             }
         }
 
+        StringBuilder compoundValueBuffer = compoundValueBuilder.get();
         for (int i = 0; i < maxSize; i++) {
-            String compoundValue = "";
+            compoundValueBuffer.setLength(0);
             CompoundKeyInfo partitionInfo = new CompoundKeyInfo();
             for (List<KeyInfo> keyInfoList : valueLists) {
-                if (i < keyInfoList.size()) {
-                    compoundValue += (compoundValue.length() > 0 ? delimiter
-                            : "") + keyInfoList.get(i).getValue();
-                    partitionInfo.addKeyInfo(keyInfoList.get(i));
-                } else {
-                    compoundValue += (compoundValue.length() > 0 ? delimiter
-                            : "")
-                            + keyInfoList.get(keyInfoList.size() - 1)
-                                         .getValue();
-                    partitionInfo.addKeyInfo(keyInfoList.get(keyInfoList.size() - 1));
+                KeyInfo keyInfo = keyInfoList.get(Math.min(i,
+                                                           keyInfoList.size() - 1));
+                if (compoundValueBuffer.length() > 0) {
+                    compoundValueBuffer.append(delimiter);
                 }
+                compoundValueBuffer.append(keyInfo.getValue());
+                partitionInfo.addKeyInfo(keyInfo);
             }
+            String compoundValue = compoundValueBuffer.toString();
 
             // get the partition id
-            int partitionId = (int) (hasher.hash(compoundValue) % partitionCount);
-            partitionInfo.setPartitionId(partitionId);
+            assignPartition(partitionInfo,
+                            hasher.hash(compoundValue),
+                            partitionCount);
             partitionInfo.setCompoundValue(compoundValue);
             partitionInfoList.add(partitionInfo);
             if (debug) {
@@ -216,6 +287,63 @@ public class DefaultPartitioner implements Partitioner, VariableKeyPartitioner {
         return partitionInfoList;
     }
 
+    /**
+     * Maps the hash of a key value to a partition. Defaults to the hash modulo
+     * the number of partitions.
+     * 
+     * @param hash
+     *            a positive hash, as returned by the {@link Hasher}
+     */
+    protected int getPartitionId(long hash, int partitionCount) {
+        return (int) (hash % partitionCount);
+    }
+
+    private void assignPartition(CompoundKeyInfo partitionInfo, long hash,
+                                 int partitionCount) {
+        int partitionId = getPartitionId(hash, partitionCount);
+        if (hotKeyDetector != null && hotKeyDetector.offer(hash)) {
+            // sub-key 0 is the key itself
+            int subKey = (splitCursor++ & Integer.MAX_VALUE) % hotKeySplitFactor;
+            if (subKey > 0) {
+                int subKeyPartitionId = getPartitionId(mix(hash + subKey)
+                        & Long.MAX_VALUE, partitionCount);
+                partitionInfo.setPartial(subKeyPartitionId != partitionId);
+                partitionId = subKeyPartitionId;
+            }
+        }
+        partitionInfo.setPartitionId(partitionId);
+    }
+
+    private List<CompoundKeyInfo> partitionOnValue(String value,
+                                                   int partitionCount) {
+        KeyInfo keyInfo = new KeyInfo();
+        // special key name to denote partial state
+        keyInfo.addElementToPath("#partial");
+        keyInfo.setValue(value);
+        CompoundKeyInfo partitionInfo = new CompoundKeyInfo();
+        partitionInfo.addKeyInfo(keyInfo);
+        partitionInfo.setCompoundValue(value);
+        partitionInfo.setPartitionId(getPartitionId(hasher.hash(value),
+                                                    partitionCount));
+        List<CompoundKeyInfo> partitionInfoList = new ArrayList<CompoundKeyInfo>(1);
+        partitionInfoList.add(partitionInfo);
+        return partitionInfoList;
+    }
+
+    /**
+     * Spreads the bits of a hash. FNV1, the default algorithm, only folds the
+     * last byte of the key into the low bits of the hash, which is fine for a
+     * modulo but not to derive other hashes from it.
+     */
+    static long mix(long hash) {
+        hash ^= hash >>> 33;
+        hash *= 0xff51afd7ed558ccdL;
+        hash ^= hash >>> 33;
+        hash *= 0xc4ceb9fe1a85ec53L;
+        hash ^= hash >>> 33;
+        return hash;
+    }
+
     // Assign to random partition
     private List<CompoundKeyInfo> partitionRandom(int partitionCount) {
         CompoundKeyInfo partitionInfo = new CompoundKeyInfo();
@@ -241,6 +369,31 @@ public class DefaultPartitioner implements Partitioner, VariableKeyPartitioner {
         }
     }
 
+    private List<KeyInfo> getKeyValue(Object record, PropertyAccessor accessor,
+                                      List<String> keyNameElements,
+                                      List<KeyInfo> keyInfoList,
+                                      KeyInfo keyInfo) {
+        Object value = null;
+        try {
+            value = accessor.get(record);
+        } catch (Exception e) {
+            if (debug) {
+                System.out.println("key is " + keyNameElements);
+                e.printStackTrace();
+            }
+        }
+
+        if (value == null) {
+            return null;
+        }
+        for (String keyElement : keyNameElements) {
+            keyInfo.addElementToPath(keyElement);
+        }
+        keyInfo.setValue(String.valueOf(value));
+        keyInfoList.add(keyInfo);
+        return keyInfoList;
+    }
+
     private List<KeyInfo> getKeyValues(Object record, Schema schema,
                                        List<String> keyNameElements,
                                        int elementIndex,
@@ -256,7 +409,7 @@ public class DefaultPartitioner implements Partitioner, VariableKeyPartitioner {
 
         Object value = null;
         try {
-            value = property.getGetterMethod().invoke(record);
+            value = property.getValue(record);
         } catch (Exception e) {
             if (debug) {
                 System.out.println("key element is " + keyElement);
@@ -145,6 +145,79 @@ public enum HashAlgorithm {
         return rv & 0xffffffffL; /* Truncate to 32-bits */
     }
 
+    /**
+     * Compute the hash of the decimal string form of a number, without
+     * building the string: the result is the same as
+     * <code>hash(String.valueOf(value))</code>.
+     */
+    public long hash(long value) {
+        if (value == Long.MIN_VALUE || this == CRC32_HASH
+                || this == KETAMA_HASH) {
+            return hash(String.valueOf(value));
+        }
+        long rv = init();
+        if (value < 0) {
+            rv = step(rv, '-');
+            value = -value;
+        }
+        long divisor = 1;
+        while (value / divisor >= 10) {
+            divisor *= 10;
+        }
+        for (; divisor > 0; divisor /= 10) {
+            rv = step(rv, (char) ('0' + (value / divisor) % 10));
+        }
+        return rv & 0xffffffffL; /* Truncate to 32-bits */
+    }
+
+    /**
+     * Compute the hash of a sequence of characters, such as a
+     * {@link StringBuilder}, without converting it to a string: the result is
+     * the same as <code>hash(k.toString())</code>.
+     */
+    public long hash(CharSequence k) {
+        if (k instanceof String || this == CRC32_HASH || this == KETAMA_HASH) {
+            return hash(k.toString());
+        }
+        long rv = init();
+        int len = k.length();
+        for (int i = 0; i < len; i++) {
+            rv = step(rv, k.charAt(i));
+        }
+        return rv & 0xffffffffL; /* Truncate to 32-bits */
+    }
+
+    private long init() {
+        switch (this) {
+        case FNV1_64_HASH:
+        case FNV1A_64_HASH:
+            return FNV_64_INIT;
+        case FNV1_32_HASH:
+        case FNV1A_32_HASH:
+            return FNV_32_INIT;
+        default:
+            return 0;
+        }
+    }
+
+    // one character of the character-wise algorithms, as in hash(String)
+    private long step(long rv, char c) {
+        switch (this) {
+        case NATIVE_HASH:
+            return (int) (31 * rv + c);
+        case FNV1_64_HASH:
+            return (rv * FNV_64_PRIME) ^ c;
+        case FNV1A_64_HASH:
+            return (rv ^ c) * FNV_64_PRIME;
+        case FNV1_32_HASH:
+            return (rv * FNV_32_PRIME) ^ c;
+        case FNV1A_32_HASH:
+            return (rv ^ c) * FNV_32_PRIME;
+        default:
+            throw new IllegalStateException(this + " is not computed by character");
+        }
+    }
+
     /**
      * Get the md5 of the given key.
      */
@@ -0,0 +1,200 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.s4.dispatcher.partitioner;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Detects the key values which account for a large share of the events, the
+ * hot keys, so that {@link DefaultPartitioner} can spread them over several
+ * partitions (see {@link DefaultPartitioner#setHotKeySplitFactor(int)}).
+ * <p>
+ * One event in {@link #setSampleInterval(int) sampleInterval} is counted in a
+ * count-min sketch indexed on the hash of its key value. A key whose estimated
+ * count exceeds {@link #setHotFraction(double) hotFraction} of the sampled
+ * events, once at least {@link #setMinSamples(int) minSamples} events were
+ * sampled, is hot. The sketch is halved every
+ * {@link #setWindowSize(int) windowSize} samples, and the set of hot keys is
+ * then cleared, so that keys which cool down are eventually dropped: keys
+ * which are still hot are found again within a few samples.
+ * <p>
+ * The detector is shared by the dispatching threads and does not lock:
+ * concurrent updates may be lost, which only makes the counts approximate.
+ * The hot keys are identified by the hash of their value.
+ */
+public class HotKeyDetector {
+    private static final int DEPTH = 4;
+    private static final long[] SEEDS = { 0x9e3779b97f4a7c15L,
+            0xc2b2ae3d27d4eb4fL, 0x165667b19e3779f9L, 0xd6e8feb86659fd93L };
+
+    private int width = 1024;
+    private int sampleInterval = 8;
+    private double hotFraction = 0.05;
+    private int minSamples = 1000;
+    private int windowSize = 100000;
+    private int maxHotKeys = 16;
+
+    private AtomicLongArray counts;
+    private volatile long[] hotHashes = new long[0];
+    private final AtomicBoolean decaying = new AtomicBoolean();
+    // racy: only used to pick the sampled events and to approximate the
+    // number of samples in the window
+    private int samplingCountdown;
+    private long sampleCount;
+
+    public HotKeyDetector() {
+        counts = new AtomicLongArray(DEPTH * width);
+    }
+
+    /**
+     * Number of counters in each row of the sketch, rounded up to a power of
+     * two. Defaults to 1024.
+     */
+    public void setWidth(int width) {
+        if (width < 1) {
+            throw new IllegalArgumentException("width must be positive");
+        }
+        int size = 1;
+        while (size < width) {
+            size <<= 1;
+        }
+        this.width = size;
+        this.counts = new AtomicLongArray(DEPTH * size);
+    }
+
+    /**
+     * One event in <code>sampleInterval</code> is counted. Defaults to 8.
+     */
+    public void setSampleInterval(int sampleInterval) {
+        this.sampleInterval = Math.max(1, sampleInterval);
+    }
+
+    /**
+     * Share of the sampled events above which a key is hot. Defaults to 0.05.
+     */
+    public void setHotFraction(double hotFraction) {
+        this.hotFraction = hotFraction;
+    }
+
+    /**
+     * Number of samples before any key can be considered hot. Defaults to
+     * 1000.
+     */
+    public void setMinSamples(int minSamples) {
+        this.minSamples = minSamples;
+    }
+
+    /**
+     * Number of samples after which the counts are halved. Defaults to
+     * 100000.
+     */
+    public void setWindowSize(int windowSize) {
+        this.windowSize = windowSize;
+    }
+
+    /**
+     * Maximum number of keys considered hot at the same time. Defaults to 16.
+     */
+    public void setMaxHotKeys(int maxHotKeys) {
+        this.maxHotKeys = maxHotKeys;
+    }
+
+    /**
+     * Counts an event, if it is sampled, and tells whether its key is hot.
+     * 
+     * @param hash
+     *            the hash of the key value of the event
+     */
+    public boolean offer(long hash) {
+        if (--samplingCountdown <= 0) {
+            samplingCountdown = sampleInterval;
+            record(hash);
+        }
+        return isHot(hash);
+    }
+
+    /**
+     * @return true if the key with the given hash is currently hot
+     */
+    public boolean isHot(long hash) {
+        long[] hot = hotHashes;
+        for (int i = 0; i < hot.length; i++) {
+            if (hot[i] == hash) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @return the number of keys currently hot
+     */
+    public int getHotKeyCount() {
+        return hotHashes.length;
+    }
+
+    private void record(long hash) {
+        AtomicLongArray counts = this.counts;
+        int mask = width - 1;
+        long estimate = Long.MAX_VALUE;
+        for (int row = 0; row < DEPTH; row++) {
+            int index = row * width + (int) (DefaultPartitioner.mix(hash ^ SEEDS[row]) & mask);
+            estimate = Math.min(estimate, counts.incrementAndGet(index));
+        }
+        long total = ++sampleCount;
+
+        if (total >= minSamples && estimate > total * hotFraction
+                && !isHot(hash)) {
+            addHot(hash);
+        }
+        if (total >= windowSize) {
+            decay();
+        }
+    }
+
+    private synchronized void addHot(long hash) {
+        long[] hot = hotHashes;
+        if (hot.length >= maxHotKeys || isHot(hash)) {
+            return;
+        }
+        long[] newHot = new long[hot.length + 1];
+        System.arraycopy(hot, 0, newHot, 0, hot.length);
+        newHot[hot.length] = hash;
+        hotHashes = newHot;
+    }
+
+    private void decay() {
+        if (!decaying.compareAndSet(false, true)) {
+            return;
+        }
+        try {
+            AtomicLongArray counts = this.counts;
+            for (int i = 0; i < counts.length(); i++) {
+                long count = counts.get(i);
+                if (count > 0) {
+                    counts.addAndGet(i, -(count - (count >> 1)));
+                }
+            }
+            sampleCount = sampleCount >> 1;
+            hotHashes = new long[0];
+        } finally {
+            decaying.set(false);
+        }
+    }
+}
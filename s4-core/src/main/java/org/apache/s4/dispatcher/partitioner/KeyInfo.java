@@ -17,6 +17,8 @@
  */
 package org.apache.s4.dispatcher.partitioner;
 
+import java.io.IOException;
+import java.io.ObjectOutputStream;
 import java.io.Serializable;
 import java.util.ArrayList;
 import java.util.List;
@@ -24,15 +26,35 @@ import java.util.List;
 public class KeyInfo implements Serializable {
     List<KeyPathElement> keyPath = new ArrayList<KeyPathElement>();
     String value;
+    // value whose string form is only computed when needed; only the string
+    // form is serialized
+    transient Object rawValue;
 
     public void setValue(String value) {
         this.value = value;
     }
 
+    /**
+     * Sets the value without converting it to a string: the string form is
+     * only computed by {@link #getValue()}, typically on the receiving node.
+     */
+    public void setRawValue(Object rawValue) {
+        this.rawValue = rawValue;
+        this.value = null;
+    }
+
     public String getValue() {
+        if (value == null && rawValue != null) {
+            value = String.valueOf(rawValue);
+        }
         return this.value;
     }
 
+    private void writeObject(ObjectOutputStream out) throws IOException {
+        getValue();
+        out.defaultWriteObject();
+    }
+
     public void addElementToPath(String keyName) {
         keyPath.add(new KeyPathElementName(keyName));
     }
@@ -19,6 +19,11 @@ package org.apache.s4.emitter;
 
 import static org.apache.s4.util.MetricsName.S4_CORE_METRICS;
 import static org.apache.s4.util.MetricsName.S4_EVENT_METRICS;
+import static org.apache.s4.util.MetricsName.low_level_emitter_compress_in_bytes;
+import static org.apache.s4.util.MetricsName.low_level_emitter_compress_out_bytes;
+import static org.apache.s4.util.MetricsName.low_level_emitter_compress_time;
+import static org.apache.s4.util.MetricsName.low_level_emitter_drop_ct;
+import static org.apache.s4.util.MetricsName.low_level_emitter_local_ct;
 import static org.apache.s4.util.MetricsName.low_level_emitter_msg_out_ct;
 import static org.apache.s4.util.MetricsName.low_level_emitter_out_err_ct;
 import static org.apache.s4.util.MetricsName.low_level_emitter_qsz;
@@ -26,19 +31,28 @@ import org.apache.s4.collector.EventWrapper;
 import org.apache.s4.comm.core.SenderProcess;
 import org.apache.s4.comm.core.Serializer;
 import org.apache.s4.listener.CommLayerListener;
+import org.apache.s4.logger.Counter;
+import org.apache.s4.logger.Gauge;
 import org.apache.s4.logger.Monitor;
 import org.apache.s4.message.Request;
+import org.apache.s4.serialize.MessageCompression;
+import org.apache.s4.serialize.MessageFrames;
 import org.apache.s4.serialize.SerializerDeserializer;
+import org.apache.s4.util.queue.LinkedQueueFactory;
+import org.apache.s4.util.queue.QueueFactory;
 
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.concurrent.BlockingQueue;
-import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.TimeUnit;
 
 import org.apache.log4j.Logger;
 
 public class CommLayerEmitter implements EventEmitter, Runnable {
     private static Logger logger = Logger.getLogger(CommLayerEmitter.class);
+    private static final int DRAIN_BATCH_SIZE = 64;
 
     // config for emitter is coupled with listener, if there is a non-null
     // listener. This prevents 2 tasks from being checked out of the cluster
@@ -46,24 +60,160 @@ public class CommLayerEmitter implements EventEmitter, Runnable {
     // emitter.
     private CommLayerListener listener;
 
+    /**
+     * What {@link CommLayerEmitter#emit} does when the queue of the sender
+     * thread is full.
+     */
+    public enum OverflowPolicy {
+        /** wait for room in the queue */
+        BLOCK,
+        /** drop the message, and count it in the drop metric */
+        DROP
+    }
+
     private SenderProcess sender;
     private int nodeCount;
-    private BlockingQueue<MessageHolder> messageQueue = new LinkedBlockingDeque<MessageHolder>();
+    private BlockingQueue<MessageHolder>[] messageQueues;
+    private int senderThreadCount = 1;
+    private int maxQueueSize = 100000;
+    private OverflowPolicy overflowPolicy = OverflowPolicy.BLOCK;
+    private QueueFactory queueFactory = new LinkedQueueFactory();
     private String senderId;
     private String clusterManagerAddress;
     private String appName;
     private String listenerAppName = null;
     private Monitor monitor;
+    private Gauge queueSizeGauge;
+    private Counter msgOutCounter;
+    private Counter outErrorCounter;
+    private Counter dropCounter;
+    private Counter compressInCounter;
+    private Counter compressOutCounter;
+    private Counter compressTimeCounter;
+    private Counter localCounter;
     private SerializerDeserializer serDeser;
+    private boolean localDelivery = false;
+    private boolean copyLocalEvents = true;
+    private int maxFrameSize = 1472;
+    private long frameLingerMicros = 0;
+    private int compressionThreshold = 0;
 
     public void setSerDeser(SerializerDeserializer serDeser) {
         this.serDeser = serDeser;
     }
 
     public void setMonitor(Monitor monitor) {
+        if (monitor != null) {
+            queueSizeGauge = monitor.gauge(low_level_emitter_qsz.toString(),
+                                           S4_CORE_METRICS.toString());
+            msgOutCounter = monitor.counter(low_level_emitter_msg_out_ct.toString(),
+                                            S4_CORE_METRICS.toString());
+            outErrorCounter = monitor.counter(low_level_emitter_out_err_ct.toString(),
+                                              S4_CORE_METRICS.toString());
+            localCounter = monitor.counter(low_level_emitter_local_ct.toString(),
+                                           S4_CORE_METRICS.toString());
+            dropCounter = monitor.counter(low_level_emitter_drop_ct.toString(),
+                                          S4_CORE_METRICS.toString());
+            compressInCounter = monitor.counter(low_level_emitter_compress_in_bytes.toString(),
+                                                S4_CORE_METRICS.toString());
+            compressOutCounter = monitor.counter(low_level_emitter_compress_out_bytes.toString(),
+                                                 S4_CORE_METRICS.toString());
+            compressTimeCounter = monitor.counter(low_level_emitter_compress_time.toString(),
+                                                  S4_CORE_METRICS.toString());
+        }
         this.monitor = monitor;
     }
 
+    /**
+     * Capacity of the outgoing message queue of each sender thread. Defaults
+     * to 100000 messages; 0 or less for an unbounded queue when the queue
+     * factory supports it. See {@link #setOverflowPolicy} for what happens
+     * when a queue is full.
+     */
+    public void setMaxQueueSize(int maxQueueSize) {
+        this.maxQueueSize = maxQueueSize;
+    }
+
+    /**
+     * Number of threads sending the serialized messages. Messages are
+     * assigned to a thread by destination partition, so that the messages to
+     * a given partition keep their order. Defaults to 1.
+     */
+    public void setSenderThreadCount(int senderThreadCount) {
+        this.senderThreadCount = Math.max(1, senderThreadCount);
+    }
+
+    /**
+     * What to do when the queue of a sender thread is full: block the
+     * emitting thread, the default, or drop the message.
+     */
+    public void setOverflowPolicy(OverflowPolicy overflowPolicy) {
+        this.overflowPolicy = overflowPolicy;
+    }
+
+    /**
+     * Factory of the outgoing message queue. Defaults to
+     * {@link LinkedQueueFactory}.
+     */
+    public void setQueueFactory(QueueFactory queueFactory) {
+        this.queueFactory = queueFactory;
+    }
+
+    /**
+     * When true, events sent to the partition of this node are handed over
+     * to the listener directly, on the emitting thread, instead of being
+     * serialized and sent through the network to this very node. Only
+     * applies when the emitter sends to the application of its listener.
+     * Defaults to false.
+     */
+    public void setLocalDelivery(boolean localDelivery) {
+        this.localDelivery = localDelivery;
+    }
+
+    /**
+     * When true, the default, events delivered locally are copied first,
+     * through the serializer, so that the receiving PEs get the same event
+     * as they would from the network, and do not share it with the emitting
+     * PE. When false, the serialization is saved: the receiving PEs get the
+     * event object which was dispatched, keys included, and neither side
+     * should modify it afterwards.
+     */
+    public void setCopyLocalEvents(boolean copyLocalEvents) {
+        this.copyLocalEvents = copyLocalEvents;
+    }
+
+    /**
+     * Maximum size, in bytes, of the datagrams into which the messages queued
+     * for the same destination are packed (see {@link MessageFrames}).
+     * Defaults to 1472, the largest UDP payload which is not fragmented on
+     * Ethernet; can be raised up to 65507. 0 disables packing: one datagram
+     * per message.
+     */
+    public void setMaxFrameSize(int maxFrameSize) {
+        this.maxFrameSize = Math.min(maxFrameSize, 65507);
+    }
+
+    /**
+     * Time, in microseconds, the sending thread waits for more messages when
+     * fewer than a full batch are queued, to fill the frames. Defaults to 0:
+     * only the messages already queued are packed, which adds no latency.
+     */
+    public void setFrameLingerMicros(long frameLingerMicros) {
+        this.frameLingerMicros = frameLingerMicros;
+    }
+
+    /**
+     * Datagrams, single messages or frames, of at least this many bytes are
+     * compressed (see {@link MessageCompression}), unless that does not make
+     * them smaller. Defaults to 0: no compression. Listeners accept
+     * compressed and plain datagrams alike. The bytes before and after
+     * compression, and the time spent compressing, in microseconds, are
+     * reported to the monitor.
+     */
+    public void setCompressionThreshold(int compressionThreshold) {
+        this.compressionThreshold = compressionThreshold;
+    }
+
     public void setSenderId(String senderId) {
         this.senderId = senderId;
     }
@@ -88,19 +238,44 @@ public class CommLayerEmitter implements EventEmitter, Runnable {
         return this.listener;
     }
 
+    @SuppressWarnings("unchecked")
     public void init() {
+        messageQueues = new BlockingQueue[senderThreadCount];
+        for (int i = 0; i < senderThreadCount; i++) {
+            messageQueues[i] = queueFactory.createQueue(maxQueueSize, false);
+        }
 
         Thread t = new Thread(this, "CommLayerEmitter");
         t.start();
     }
 
     public void queueMessage(MessageHolder messageHolder) {
-        messageQueue.add(messageHolder);
+        int queueIndex = (messageHolder.getPartitionId() & Integer.MAX_VALUE)
+                % messageQueues.length;
+        BlockingQueue<MessageHolder> messageQueue = messageQueues[queueIndex];
+        if (overflowPolicy == OverflowPolicy.DROP) {
+            if (!messageQueue.offer(messageHolder)) {
+                if (monitor != null) {
+                    dropCounter.increment();
+                }
+                return;
+            }
+        } else {
+            try {
+                messageQueue.put(messageHolder);
+            } catch (InterruptedException ie) {
+                Thread.currentThread().interrupt();
+                throw new RuntimeException("Interrupted while queuing message",
+                                           ie);
+            }
+        }
         try {
             if (monitor != null) {
-                monitor.set(low_level_emitter_qsz.toString(),
-                            messageQueue.size(),
-                            S4_CORE_METRICS.toString());
+                int queueSize = 0;
+                for (BlockingQueue<MessageHolder> queue : messageQueues) {
+                    queueSize += queue.size();
+                }
+                queueSizeGauge.set(queueSize);
             }
         } catch (Exception e) {
             logger.error("Exception in monitor metrics on thread "
@@ -117,7 +292,14 @@ public class CommLayerEmitter implements EventEmitter, Runnable {
         }
 
         try {
-        	MessageHolder mh = new MessageHolder(partitionId, eventWrapper);            
+            if (isLocal(partitionId)) {
+                deliverLocally(eventWrapper);
+                return;
+            }
+            // serialize on the emitting thread, so that the PE container
+            // workers share the serialization cost
+            MessageHolder mh = new MessageHolder(partitionId,
+                                                 serDeser.serialize(eventWrapper));
             queueMessage(mh);
         } catch (RuntimeException rte) {
             if (monitor != null) {
@@ -134,6 +316,30 @@ public class CommLayerEmitter implements EventEmitter, Runnable {
         }
     }
 
+    @Override
+    public void emit(int partitionId, List<EventWrapper> eventWrappers) {
+        for (EventWrapper eventWrapper : eventWrappers) {
+            emit(partitionId, eventWrapper);
+        }
+    }
+
+    private boolean isLocal(int partitionId) {
+        return localDelivery
+                && listener != null
+                && partitionId == listener.getId()
+                && (listenerAppName == null || listenerAppName.equals(listener.getAppName()));
+    }
+
+    private void deliverLocally(EventWrapper eventWrapper) {
+        if (copyLocalEvents) {
+            eventWrapper = (EventWrapper) serDeser.deserialize(serDeser.serialize(eventWrapper));
+        }
+        listener.deliver(eventWrapper);
+        if (monitor != null) {
+            localCounter.increment();
+        }
+    }
+
     // Add partition id of sender
     private void decorateRequest(Request r) {
         Request.RInfo rinfo = r.getRInfo();
@@ -193,44 +399,128 @@ public class CommLayerEmitter implements EventEmitter, Runnable {
             sender.createSenderFromConfig(listenerConfig);
             nodeCount = sender.getNumOfPartitions();
         }
-        boolean isSent = false;
+
+        // the sender is shared: both the datagram socket and the TCP sender
+        // can be used by several threads
+        for (int i = 1; i < messageQueues.length; i++) {
+            Thread t = new Thread(new SenderThread(messageQueues[i]),
+                                  "CommLayerEmitter-" + i);
+            t.start();
+        }
+        sendMessages(messageQueues[0]);
+    }
+
+    private void sendMessages(BlockingQueue<MessageHolder> messageQueue) {
+        List<MessageHolder> batch = new ArrayList<MessageHolder>(DRAIN_BATCH_SIZE);
+        byte[][] rawMessages = new byte[DRAIN_BATCH_SIZE][];
+        MessageFrames.Builder frame = new MessageFrames.Builder(maxFrameSize);
         while (!Thread.interrupted()) {
-            isSent = false;
             try {
-                MessageHolder mh = messageQueue.take();
-                byte[] rawMessage = serDeser.serialize(mh.getEventWrapper());
-                if (listener == null) {
-                    isSent = sender.send(rawMessage);
-                } else {
-                    isSent = sender.sendToPartition(mh.getPartitionId(),
-                                                    rawMessage);
-                }
-
-                if (isSent) {
-                    if (monitor != null) {
-                        monitor.increment(low_level_emitter_msg_out_ct.toString(),
-                                          1,
-                                          S4_CORE_METRICS.toString());
-                    }
-                } else {
-                    if (monitor != null) {
-                        monitor.increment(low_level_emitter_out_err_ct.toString(),
-                                          1,
-                                          S4_CORE_METRICS.toString());
+                batch.add(messageQueue.take());
+                messageQueue.drainTo(batch, DRAIN_BATCH_SIZE - 1);
+                if (frameLingerMicros > 0 && batch.size() < DRAIN_BATCH_SIZE) {
+                    MessageHolder mh = messageQueue.poll(frameLingerMicros,
+                                                         TimeUnit.MICROSECONDS);
+                    if (mh != null) {
+                        batch.add(mh);
+                        messageQueue.drainTo(batch,
+                                             DRAIN_BATCH_SIZE - batch.size());
                     }
-                    logger.warn("commlayer emit failed ...");
                 }
             } catch (InterruptedException ie) {
                 if (monitor != null) {
-                    monitor.increment(low_level_emitter_out_err_ct.toString(),
-                                      1,
-                                      S4_CORE_METRICS.toString());
+                    outErrorCounter.increment();
                 }
                 Thread.currentThread().interrupt();
-            } catch (Exception e) {
-                Logger.getLogger("s4").error("Error emitting message", e);
+                continue;
+            }
+            if (maxFrameSize > 0) {
+                sendPacked(batch, rawMessages, frame);
+            } else {
+                for (int i = 0; i < batch.size(); i++) {
+                    send(batch.get(i));
+                }
+            }
+            batch.clear();
+        }
+    }
+
+    private void send(MessageHolder mh) {
+        send(mh.getPartitionId(), mh.getRawMessage(), 1);
+    }
+
+    /**
+     * Sends the messages of a batch packed in frames, one destination after
+     * the other. The messages to a given destination keep their order.
+     */
+    private void sendPacked(List<MessageHolder> batch, byte[][] rawMessages,
+                            MessageFrames.Builder frame) {
+        int size = batch.size();
+        for (int i = 0; i < size; i++) {
+            rawMessages[i] = batch.get(i).getRawMessage();
+        }
+
+        for (int i = 0; i < size; i++) {
+            if (rawMessages[i] == null) {
+                continue;
+            }
+            int partitionId = batch.get(i).getPartitionId();
+            frame.reset();
+            for (int j = i; j < size; j++) {
+                // without a listener, messages go to any destination
+                if (rawMessages[j] == null
+                        || (listener != null && batch.get(j).getPartitionId() != partitionId)) {
+                    continue;
+                }
+                if (!frame.add(rawMessages[j])) {
+                    send(partitionId, frame.build(), frame.getCount());
+                    frame.reset();
+                    frame.add(rawMessages[j]);
+                }
+                rawMessages[j] = null;
             }
+            send(partitionId, frame.build(), frame.getCount());
         }
+        frame.reset();
+    }
+
+    private void send(int partitionId, byte[] data, int messageCount) {
+        boolean isSent = false;
+        try {
+            if (compressionThreshold > 0 && data.length >= compressionThreshold) {
+                data = compress(data);
+            }
+            if (listener == null) {
+                isSent = sender.send(data);
+            } else {
+                isSent = sender.sendToPartition(partitionId, data);
+            }
+        } catch (Exception e) {
+            Logger.getLogger("s4").error("Error emitting message", e);
+        }
+
+        if (isSent) {
+            if (monitor != null) {
+                msgOutCounter.add(messageCount);
+            }
+        } else {
+            if (monitor != null) {
+                outErrorCounter.add(messageCount);
+            }
+            logger.warn("commlayer emit failed ...");
+        }
+    }
+
+    private byte[] compress(byte[] data) {
+        long startTime = System.nanoTime();
+        byte[] compressed = MessageCompression.compress(data);
+        if (monitor != null) {
+            compressTimeCounter.add((System.nanoTime() - startTime) / 1000);
+            compressInCounter.add(data.length);
+            compressOutCounter.add(compressed != null ? compressed.length
+                    : data.length);
+        }
+        return compressed != null ? compressed : data;
     }
 
     public class PassThroughSerializer implements Serializer {
@@ -243,21 +533,33 @@ public class CommLayerEmitter implements EventEmitter, Runnable {
         }
     }
 
+    class SenderThread implements Runnable {
+        private final BlockingQueue<MessageHolder> messageQueue;
+
+        SenderThread(BlockingQueue<MessageHolder> messageQueue) {
+            this.messageQueue = messageQueue;
+        }
+
+        public void run() {
+            sendMessages(messageQueue);
+        }
+    }
+
     class MessageHolder {
         private int partitionId;
-        private EventWrapper eventWrapper;
+        private byte[] rawMessage;
         
-        MessageHolder(int partitionId, EventWrapper eventWrapper) {
+        MessageHolder(int partitionId, byte[] rawMessage) {
             this.partitionId = partitionId;
-            this.eventWrapper = eventWrapper;
+            this.rawMessage = rawMessage;
         }
 
         int getPartitionId() {
             return partitionId;
         }
 
-        EventWrapper getEventWrapper() {
-            return eventWrapper;
+        byte[] getRawMessage() {
+            return rawMessage;
         }
     }
 }
@@ -19,8 +19,16 @@ package org.apache.s4.emitter;
 
 import org.apache.s4.collector.EventWrapper;
 
+import java.util.List;
+
 public interface EventEmitter {
     public void emit(int partitionId, EventWrapper eventWrapper);
 
+    /**
+     * Emits several events to the same partition, in order. The list is not
+     * kept: the caller can reuse it once this method returns.
+     */
+    public void emit(int partitionId, List<EventWrapper> eventWrappers);
+
     public int getNodeCount();
 }
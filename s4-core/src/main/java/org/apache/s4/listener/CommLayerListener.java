@@ -19,6 +19,7 @@ package org.apache.s4.listener;
 
 import static org.apache.s4.util.MetricsName.S4_CORE_METRICS;
 import static org.apache.s4.util.MetricsName.low_level_listener_badmsg_ct;
+import static org.apache.s4.util.MetricsName.low_level_listener_decompress_time;
 import static org.apache.s4.util.MetricsName.low_level_listener_msg_drop_ct;
 import static org.apache.s4.util.MetricsName.low_level_listener_msg_in_ct;
 import static org.apache.s4.util.MetricsName.low_level_listener_qsz;
@@ -28,34 +29,59 @@ import org.apache.s4.comm.core.CommEventCallback;
 import org.apache.s4.comm.core.CommLayerState;
 import org.apache.s4.comm.core.Deserializer;
 import org.apache.s4.comm.core.ListenerProcess;
+import org.apache.s4.comm.util.BufferPool;
+import org.apache.s4.logger.Counter;
+import org.apache.s4.logger.Gauge;
 import org.apache.s4.logger.Monitor;
+import org.apache.s4.serialize.MessageCompression;
+import org.apache.s4.serialize.MessageFrames;
 import org.apache.s4.serialize.SerializerDeserializer;
+import org.apache.s4.util.queue.LinkedQueueFactory;
+import org.apache.s4.util.queue.QueueFactory;
 
 import java.net.InetAddress;
 import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collection;
 import java.util.HashMap;
-import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.concurrent.BlockingQueue;
-import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.CopyOnWriteArraySet;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.apache.log4j.Logger;
 
 public class CommLayerListener implements EventListener, Runnable {
     private static Logger logger = Logger.getLogger(CommLayerListener.class);
+    private static final int DRAIN_BATCH_SIZE = 32;
+    private static final int MAX_DATAGRAM_SIZE = 65507;
     private int dequeuerCount = 12;
-    private Set<EventHandler> handlers = new HashSet<EventHandler>();
+    // iterated by the dequeuers, the receivers and the local emitters
+    private Set<EventHandler> handlers = new CopyOnWriteArraySet<EventHandler>();
     ListenerProcess process;
     private BlockingQueue<Object> messageQueue;
     private int maxQueueSize = 1000;
+    private QueueFactory queueFactory = new LinkedQueueFactory();
     private String clusterManagerAddress;
     private String appName;
     private Object listenerConfig;
     private Monitor monitor;
+    private Gauge queueSizeGauge;
+    private Counter msgInCounter;
+    private Counter msgDropCounter;
+    private Counter badMsgCounter;
+    private Counter decompressTimeCounter;
     private int partitionId = -1;
     private int zkConnected = 1;
     private SerializerDeserializer serDeser;
+    private int receiverThreadCount = 1;
+    private int receiveBufferSize = 1024 * 1024;
+    private int maxReceiveBuffers = 64;
+    private boolean fusedPipeline = false;
+    private BufferPool bufferPool;
 
     public void setSerDeser(SerializerDeserializer serDeser) {
         this.serDeser = serDeser;
@@ -64,12 +90,73 @@ public class CommLayerListener implements EventListener, Runnable {
     public void setMonitor(Monitor monitor) {
         this.monitor = monitor;
         monitor.setDefaultValue("tid", partitionId);
+        queueSizeGauge = monitor.gauge(low_level_listener_qsz.toString(),
+                                       S4_CORE_METRICS.toString());
+        msgInCounter = monitor.counter(low_level_listener_msg_in_ct.toString(),
+                                       S4_CORE_METRICS.toString());
+        msgDropCounter = monitor.counter(low_level_listener_msg_drop_ct.toString(),
+                                         S4_CORE_METRICS.toString());
+        badMsgCounter = monitor.counter(low_level_listener_badmsg_ct.toString(),
+                                        S4_CORE_METRICS.toString());
+        decompressTimeCounter = monitor.counter(low_level_listener_decompress_time.toString(),
+                                                S4_CORE_METRICS.toString());
     }
 
     public void setMaxQueueSize(int maxQueueSize) {
         this.maxQueueSize = maxQueueSize;
     }
 
+    /**
+     * Factory of the queue between the receiver thread and the dequeuers.
+     * Defaults to {@link LinkedQueueFactory}.
+     */
+    public void setQueueFactory(QueueFactory queueFactory) {
+        this.queueFactory = queueFactory;
+    }
+
+    /**
+     * Number of threads receiving messages from the socket. Defaults to 1.
+     * In unicast mode, the threads receive from the same socket
+     * concurrently; in the other modes, they take turns.
+     */
+    public void setReceiverThreadCount(int receiverThreadCount) {
+        this.receiverThreadCount = Math.max(1, receiverThreadCount);
+    }
+
+    /**
+     * Size of the direct buffers into which the messages are received, one
+     * after the other, and from which they are deserialized. Defaults to 1MB;
+     * never less than the largest datagram.
+     */
+    public void setReceiveBufferSize(int receiveBufferSize) {
+        this.receiveBufferSize = receiveBufferSize;
+    }
+
+    /**
+     * Maximum number of receive buffers. Once they all hold messages waiting
+     * to be processed, the receiver threads wait, and incoming datagrams
+     * queue up in the socket buffer. Defaults to 64.
+     */
+    public void setMaxReceiveBuffers(int maxReceiveBuffers) {
+        this.maxReceiveBuffers = maxReceiveBuffers;
+    }
+
+    /**
+     * When true, the receiver threads decode the messages themselves and
+     * hand the events over to the handlers directly, which queue them to the
+     * PE container worker owning their key: there is neither message queue
+     * nor dequeuer threads. With a single receiver thread, the events of a
+     * key are then processed in the order they arrived. Defaults to false.
+     * <p>
+     * The shipped configurations leave it off; to enable it, set
+     * <code>listener.fusedPipeline</code> to true in
+     * <code>s4-core-conf.xml</code>, and <code>listener.receiverThreadCount</code>
+     * to 1 if the application relies on that order.
+     */
+    public void setFusedPipeline(boolean fusedPipeline) {
+        this.fusedPipeline = fusedPipeline;
+    }
+
     @Override
     public int getId() {
         return partitionId;
@@ -108,7 +195,7 @@ public class CommLayerListener implements EventListener, Runnable {
 
     public void init() {
         System.err.println("appName=" + appName);
-        process = new ListenerProcess(clusterManagerAddress, appName);
+        process = createListenerProcess();
         process.setDeserializer(new PassThroughDeserializer());
         CommEventCallback callbackHandler = new CommEventCallback() {
             @Override
@@ -142,7 +229,12 @@ public class CommLayerListener implements EventListener, Runnable {
         };
         process.setCallbackHandler(callbackHandler);
 
-        messageQueue = new LinkedBlockingQueue<Object>(maxQueueSize);
+        // the receiver threads are the only producers
+        messageQueue = queueFactory.createQueue(maxQueueSize,
+                                                receiverThreadCount == 1);
+        bufferPool = new BufferPool(Math.max(receiveBufferSize,
+                                             MAX_DATAGRAM_SIZE),
+                                    maxReceiveBuffers);
 
         // listenerConfig = process.acquireTaskAndCreateListener(map);
         Thread t = new Thread(this);
@@ -153,6 +245,10 @@ public class CommLayerListener implements EventListener, Runnable {
             dequeuerCount = Integer.parseInt(System.getProperty("DequeuerCount"));
         }
 
+        if (fusedPipeline) {
+            // the receiver threads do the work of the dequeuers
+            dequeuerCount = 0;
+        }
         System.out.println("dequeuer number: " + dequeuerCount);
 
         for (int i = 0; i < dequeuerCount; i++) {
@@ -162,10 +258,13 @@ public class CommLayerListener implements EventListener, Runnable {
         }
     }
 
+    ListenerProcess createListenerProcess() {
+        return new ListenerProcess(clusterManagerAddress, appName);
+    }
+
     // This is the actual raw listener, which simply listens for messages on the
     // socket
     public void run() {
-        boolean isAddMessageSucceeded = false;
         // acquire a task to do
         synchronized (this) {
             Map<String, String> map = new HashMap<String, String>();
@@ -190,30 +289,112 @@ public class CommLayerListener implements EventListener, Runnable {
             }
             this.notify();
         }
-        while (!Thread.interrupted()) {
-            byte[] message = (byte[]) process.listen();
 
-            try {
-                isAddMessageSucceeded = messageQueue.offer(message);
-                if (monitor != null) {
-                    monitor.set(low_level_listener_qsz.toString(),
-                                messageQueue.size(),
-                                S4_CORE_METRICS.toString());
-                    if (isAddMessageSucceeded) {
-                        monitor.increment(low_level_listener_msg_in_ct.toString(),
-                                          1,
-                                          S4_CORE_METRICS.toString());
-                    } else {
-                        monitor.increment(low_level_listener_msg_drop_ct.toString(),
-                                          1,
-                                          S4_CORE_METRICS.toString());
+        for (int i = 1; i < receiverThreadCount; i++) {
+            Thread t = new Thread(new Receiver(), "CommLayerListener-" + i);
+            t.setPriority(Thread.MAX_PRIORITY);
+            t.start();
+        }
+        receiveMessages();
+    }
+
+    private void receiveMessages() {
+        boolean isAddMessageSucceeded = false;
+        List<ByteBuffer> messages = new ArrayList<ByteBuffer>();
+        ReceiveBuffer receiveBuffer = null;
+        try {
+            while (!Thread.interrupted()) {
+                if (receiveBuffer == null
+                        || receiveBuffer.getBuffer().remaining() < MAX_DATAGRAM_SIZE) {
+                    if (receiveBuffer != null) {
+                        receiveBuffer.release();
                     }
+                    receiveBuffer = new ReceiveBuffer(bufferPool);
                 }
-            } catch (Exception e) {
-                Logger.getLogger("s4")
-                      .error("Exception in monitor metrics on thread "
-                                     + Thread.currentThread().getId(),
-                             e);
+                ByteBuffer data = process.listen(receiveBuffer.getBuffer());
+                if (MessageCompression.isCompressed(data)) {
+                    data = decompress(data);
+                    if (data == null) {
+                        continue;
+                    }
+                }
+
+                // frames are unpacked here, so that the dequeuers share their
+                // messages
+                if (MessageFrames.isFrame(data)) {
+                    try {
+                        MessageFrames.unpack(data, messages);
+                    } catch (IllegalArgumentException e) {
+                        Logger.getLogger("s4").error("Error unpacking frame",
+                                                     e);
+                        if (monitor != null) {
+                            badMsgCounter.increment();
+                        }
+                    }
+                } else {
+                    messages.add(data);
+                }
+
+                if (fusedPipeline) {
+                    for (int i = 0; i < messages.size(); i++) {
+                        if (monitor != null) {
+                            msgInCounter.increment();
+                        }
+                        processMessage(messages.get(i));
+                    }
+                    messages.clear();
+                    continue;
+                }
+
+                for (int i = 0; i < messages.size(); i++) {
+                    receiveBuffer.retain();
+                    try {
+                        isAddMessageSucceeded = messageQueue.offer(new ReceivedMessage(messages.get(i),
+                                                                                       receiveBuffer));
+                        if (!isAddMessageSucceeded) {
+                            receiveBuffer.release();
+                        }
+                        if (monitor != null) {
+                            if (isAddMessageSucceeded) {
+                                msgInCounter.increment();
+                            } else {
+                                msgDropCounter.increment();
+                            }
+                        }
+                    } catch (Exception e) {
+                        Logger.getLogger("s4")
+                              .error("Exception in monitor metrics on thread "
+                                             + Thread.currentThread().getId(),
+                                     e);
+                    }
+                }
+                messages.clear();
+                if (monitor != null) {
+                    queueSizeGauge.set(messageQueue.size());
+                }
+            }
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+        } finally {
+            if (receiveBuffer != null) {
+                receiveBuffer.release();
+            }
+        }
+    }
+
+    private ByteBuffer decompress(ByteBuffer datagram) {
+        long startTime = System.nanoTime();
+        try {
+            return ByteBuffer.wrap(MessageCompression.decompress(datagram));
+        } catch (IllegalArgumentException e) {
+            Logger.getLogger("s4").error("Error decompressing message", e);
+            if (monitor != null) {
+                badMsgCounter.increment();
+            }
+            return null;
+        } finally {
+            if (monitor != null) {
+                decompressTimeCounter.add((System.nanoTime() - startTime) / 1000);
             }
         }
     }
@@ -222,6 +403,22 @@ public class CommLayerListener implements EventListener, Runnable {
         return messageQueue.take();
     }
 
+    /**
+     * Removes at most <code>maxMessages</code> messages already available,
+     * without waiting.
+     * 
+     * @return the number of messages added to <code>messages</code>
+     */
+    public int drainMessages(Collection<Object> messages, int maxMessages) {
+        return messageQueue.drainTo(messages, maxMessages);
+    }
+
+    class Receiver implements Runnable {
+        public void run() {
+            receiveMessages();
+        }
+    }
+
     class Dequeuer implements Runnable {
         private int id;
         private CommLayerListener rawListener;
@@ -232,45 +429,108 @@ public class CommLayerListener implements EventListener, Runnable {
         }
 
         public void run() {
+            List<Object> batch = new ArrayList<Object>(DRAIN_BATCH_SIZE);
             while (!Thread.interrupted()) {
                 try {
-                    byte[] rawMessage = (byte[]) rawListener.takeMessage();
-                    processMessage(rawMessage);
+                    batch.add(rawListener.takeMessage());
+                    rawListener.drainMessages(batch, DRAIN_BATCH_SIZE - 1);
+                    for (int i = 0; i < batch.size(); i++) {
+                        processMessage((ReceivedMessage) batch.get(i));
+                    }
                 } catch (InterruptedException ie) {
                     Thread.currentThread().interrupt();
+                } finally {
+                    batch.clear();
                 }
             }
         }
 
-        public void processMessage(byte[] rawMessage) {
-            // convert the byte array into an event object
-            EventWrapper eventWrapper = null;
+        public void processMessage(ReceivedMessage rawMessage) {
             try {
-                eventWrapper = (EventWrapper) serDeser.deserialize(rawMessage);
+                CommLayerListener.this.processMessage(rawMessage.data);
+            } finally {
+                rawMessage.receiveBuffer.release();
+            }
+        }
+
+    }
+
+    private void processMessage(ByteBuffer rawMessage) {
+        // convert the message into an event object, straight from the
+        // receive buffer
+        EventWrapper eventWrapper = null;
+        try {
+            eventWrapper = (EventWrapper) serDeser.deserialize(rawMessage);
+
+        } catch (RuntimeException rte) {
+            Logger.getLogger("s4")
+                  .error("Error converting message to an event: ", rte);
+            if (monitor != null) {
+                badMsgCounter.increment();
+            }
+            return;
+        }
+
+        if (eventWrapper != null) {
+            deliver(eventWrapper);
+        }
+    }
 
-            } catch (RuntimeException rte) {
+    /**
+     * Hands an event over to the handlers, on the calling thread, as if it
+     * had been received. Used by the emitters of this node for the events
+     * sent to its own partition.
+     */
+    public void deliver(EventWrapper eventWrapper) {
+        for (EventHandler handler : handlers) {
+            try {
+                handler.processEvent(eventWrapper);
+            } catch (Exception e) {
                 Logger.getLogger("s4")
-                      .error("Error converting message to an event: ", rte);
-                if (monitor != null) {
-                    monitor.increment(low_level_listener_badmsg_ct.toString(),
-                                      1,
-                                      S4_CORE_METRICS.toString());
-                }
-                return;
+                      .error("Error calling processEvent on handler", e);
             }
+        }
+    }
 
-            if (eventWrapper != null) {
-                for (EventHandler handler : handlers) {
-                    try {
-                        handler.processEvent(eventWrapper);
-                    } catch (Exception e) {
-                        Logger.getLogger("s4")
-                              .error("Error calling processEvent on handler", e);
-                    }
-                }
+    /**
+     * A pooled buffer into which datagrams are received one after the other.
+     * It goes back to the pool once the receiver has moved on to another
+     * buffer and all the messages it holds have been deserialized.
+     */
+    static class ReceiveBuffer {
+        private final BufferPool pool;
+        private final ByteBuffer buffer;
+        // the receiver holds one reference, each queued message another
+        private final AtomicInteger references = new AtomicInteger(1);
+
+        ReceiveBuffer(BufferPool pool) throws InterruptedException {
+            this.pool = pool;
+            this.buffer = pool.acquire();
+        }
+
+        ByteBuffer getBuffer() {
+            return buffer;
+        }
+
+        void retain() {
+            references.incrementAndGet();
+        }
+
+        void release() {
+            if (references.decrementAndGet() == 0) {
+                pool.release(buffer);
             }
         }
+    }
 
+    static class ReceivedMessage {
+        final ByteBuffer data;
+        final ReceiveBuffer receiveBuffer;
+
+        ReceivedMessage(ByteBuffer data, ReceiveBuffer receiveBuffer) {
+            this.data = data;
+            this.receiveBuffer = receiveBuffer;
+        }
     }
 
     public class PassThroughDeserializer implements Deserializer {
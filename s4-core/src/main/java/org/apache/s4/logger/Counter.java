@@ -0,0 +1,104 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.s4.logger;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceFieldUpdater;
+
+/**
+ * A cumulative counter, safe and cheap to update from many threads.
+ * <p>
+ * Updates first go to a single atomic value. Once two threads are seen
+ * updating it at the same time, the counter switches to striped cells, one
+ * cache line apart, selected by thread, so that concurrent updates do not
+ * contend. Reading sums the cells.
+ * <p>
+ * Obtain counters once from {@link Monitor#counter(String, String, String...)}
+ * and keep the reference: updating a counter neither allocates nor looks up
+ * anything.
+ */
+public final class Counter {
+    private static final int STRIPES;
+    // longs per stripe, so that stripes are on distinct cache lines
+    private static final int PAD = 8;
+
+    static {
+        int stripes = 1;
+        int target = Math.min(Runtime.getRuntime().availableProcessors(), 64);
+        while (stripes < target) {
+            stripes <<= 1;
+        }
+        STRIPES = stripes;
+    }
+
+    private static final AtomicReferenceFieldUpdater<Counter, AtomicLongArray> CELLS_UPDATER = AtomicReferenceFieldUpdater.newUpdater(Counter.class,
+                                                                                                                                      AtomicLongArray.class,
+                                                                                                                                      "cells");
+
+    private final MetricKey key;
+    private final AtomicLong base = new AtomicLong();
+    private volatile AtomicLongArray cells;
+
+    public Counter(MetricKey key) {
+        this.key = key;
+    }
+
+    public MetricKey getKey() {
+        return key;
+    }
+
+    public void increment() {
+        add(1L);
+    }
+
+    public void add(long delta) {
+        AtomicLongArray c = cells;
+        if (c == null) {
+            long b = base.get();
+            if (base.compareAndSet(b, b + delta)) {
+                return;
+            }
+            // contended: switch to striped cells
+            CELLS_UPDATER.compareAndSet(this, null, new AtomicLongArray(STRIPES
+                    * PAD));
+            c = cells;
+        }
+        int stripe = (int) Thread.currentThread().getId() & (STRIPES - 1);
+        c.getAndAdd(stripe * PAD, delta);
+    }
+
+    /**
+     * @return the sum of all the updates so far
+     */
+    public long get() {
+        long sum = base.get();
+        AtomicLongArray c = cells;
+        if (c != null) {
+            for (int i = 0; i < STRIPES; i++) {
+                sum += c.get(i * PAD);
+            }
+        }
+        return sum;
+    }
+
+    @Override
+    public String toString() {
+        return key + " = " + get();
+    }
+}
@@ -0,0 +1,64 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.s4.logger;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The last value set for a metric, such as a queue size.
+ */
+public final class Gauge {
+    private final MetricKey key;
+    private final AtomicLong value = new AtomicLong();
+    private volatile boolean updated = false;
+
+    public Gauge(MetricKey key) {
+        this.key = key;
+    }
+
+    public MetricKey getKey() {
+        return key;
+    }
+
+    public void set(long newValue) {
+        value.set(newValue);
+        if (!updated) {
+            updated = true;
+        }
+    }
+
+    public long get() {
+        return value.get();
+    }
+
+    /**
+     * @return true if the gauge was set since the last call to this method.
+     */
+    boolean clearUpdated() {
+        if (updated) {
+            updated = false;
+            return true;
+        }
+        return false;
+    }
+
+    @Override
+    public String toString() {
+        return key + " = " + get();
+    }
+}
@@ -0,0 +1,209 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.s4.logger;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Distribution of recorded values, typically latencies in nanoseconds.
+ * <p>
+ * Values are counted in log-linear buckets, in the manner of HdrHistogram:
+ * values below 128 have a bucket each, and above that every power of two is
+ * split in 64 buckets, so that any value is reported with a relative error
+ * below 1/64 (about 1.5%) with a fixed amount of memory and no allocation when
+ * recording.
+ * <p>
+ * Recording is thread-safe and lock-free. Histograms can be merged with
+ * {@link #add(Histogram)}, and {@link #copy()} gives a consistent enough
+ * snapshot for reporting.
+ */
+public final class Histogram {
+    private static final int SUB_BUCKET_BITS = 6;
+    private static final int SUB_BUCKET_HALF = 1 << SUB_BUCKET_BITS; // 64
+    private static final int LINEAR_LIMIT = SUB_BUCKET_HALF << 1; // 128
+    private static final int BUCKET_COUNT = bucketIndex(Long.MAX_VALUE) + 1;
+
+    private final MetricKey key;
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKET_COUNT);
+    private final AtomicLong totalCount = new AtomicLong();
+    private final AtomicLong totalSum = new AtomicLong();
+    private final AtomicLong maxValue = new AtomicLong();
+
+    public Histogram(MetricKey key) {
+        this.key = key;
+    }
+
+    public MetricKey getKey() {
+        return key;
+    }
+
+    /**
+     * Records a value. Negative values are recorded as 0.
+     */
+    public void record(long value) {
+        if (value < 0) {
+            value = 0;
+        }
+        counts.incrementAndGet(bucketIndex(value));
+        totalCount.incrementAndGet();
+        totalSum.addAndGet(value);
+        long max = maxValue.get();
+        while (value > max && !maxValue.compareAndSet(max, value)) {
+            max = maxValue.get();
+        }
+    }
+
+    /**
+     * Adds the values recorded by another histogram to this one.
+     */
+    public void add(Histogram other) {
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            long count = other.counts.get(i);
+            if (count != 0) {
+                counts.addAndGet(i, count);
+            }
+        }
+        totalCount.addAndGet(other.totalCount.get());
+        totalSum.addAndGet(other.totalSum.get());
+        long otherMax = other.maxValue.get();
+        long max = maxValue.get();
+        while (otherMax > max && !maxValue.compareAndSet(max, otherMax)) {
+            max = maxValue.get();
+        }
+    }
+
+    /**
+     * @return a copy of this histogram, with the same key
+     */
+    public Histogram copy() {
+        Histogram copy = new Histogram(key);
+        copy.add(this);
+        return copy;
+    }
+
+    /**
+     * Removes from this histogram the values recorded in an earlier copy of
+     * it, leaving the values recorded since. The maximum is then only known
+     * to the precision of the buckets.
+     */
+    public void subtract(Histogram earlier) {
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            long count = earlier.counts.get(i);
+            if (count != 0) {
+                counts.addAndGet(i, -count);
+            }
+        }
+        totalCount.addAndGet(-earlier.totalCount.get());
+        totalSum.addAndGet(-earlier.totalSum.get());
+        long max = 0;
+        for (int i = BUCKET_COUNT - 1; i >= 0; i--) {
+            if (counts.get(i) > 0) {
+                max = Math.min(highestValueInBucket(i), maxValue.get());
+                break;
+            }
+        }
+        maxValue.set(max);
+    }
+
+    public long getCount() {
+        return totalCount.get();
+    }
+
+    /**
+     * @return the sum of the recorded values
+     */
+    public long getSum() {
+        return totalSum.get();
+    }
+
+    public long getMax() {
+        return maxValue.get();
+    }
+
+    public double getMean() {
+        long count = totalCount.get();
+        return (count == 0) ? 0.0 : (double) totalSum.get() / count;
+    }
+
+    /**
+     * @param percentile
+     *            between 0 and 100
+     * @return the highest value, to the precision of the buckets, under which
+     *         the given percentage of the recorded values fall; 0 if nothing
+     *         was recorded
+     */
+    public long getValueAtPercentile(double percentile) {
+        long total = 0;
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            total += counts.get(i);
+        }
+        if (total == 0) {
+            return 0;
+        }
+        long rank = (long) Math.ceil(Math.min(percentile, 100.0) / 100.0
+                * total);
+        if (rank < 1) {
+            rank = 1;
+        }
+        long seen = 0;
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            seen += counts.get(i);
+            if (seen >= rank) {
+                return Math.min(highestValueInBucket(i), maxValue.get());
+            }
+        }
+        return maxValue.get();
+    }
+
+    /**
+     * @return a one line summary: count, mean, median, 90th, 99th and 99.9th
+     *         percentiles, and maximum
+     */
+    public String summary() {
+        return "count=" + getCount() + " mean=" + (long) getMean() + " p50="
+                + getValueAtPercentile(50.0) + " p90="
+                + getValueAtPercentile(90.0) + " p99="
+                + getValueAtPercentile(99.0) + " p999="
+                + getValueAtPercentile(99.9) + " max=" + getMax();
+    }
+
+    @Override
+    public String toString() {
+        return key + " = " + summary();
+    }
+
+    static int bucketIndex(long value) {
+        if (value < LINEAR_LIMIT) {
+            return (int) value;
+        }
+        // shift such that the value falls in [64, 128)
+        int shift = 64 - Long.numberOfLeadingZeros(value) - SUB_BUCKET_BITS
+                - 1;
+        return (shift << SUB_BUCKET_BITS) + (int) (value >>> shift);
+    }
+
+    static long highestValueInBucket(int index) {
+        if (index < LINEAR_LIMIT) {
+            return index;
+        }
+        int shift = (index >>> SUB_BUCKET_BITS) - 1;
+        long subBucket = index - ((long) shift << SUB_BUCKET_BITS);
+        return ((subBucket + 1) << shift) - 1;
+    }
+}
@@ -21,10 +21,13 @@ import java.util.HashMap;
 import java.util.Map;
 import java.util.Timer;
 import java.util.TimerTask;
-import java.util.concurrent.ConcurrentHashMap;
 
 public class Log4jMonitor extends TimerTask implements Monitor {
-    Map<String, Integer> metricMap = new ConcurrentHashMap<String, Integer>();
+    private final MetricsRegistry registry = new MetricsRegistry();
+    // counter values at the previous flush, only accessed by flushStats
+    private final Map<MetricKey, Long> flushedCounts = new HashMap<MetricKey, Long>();
+    // histograms as of the previous flush, only accessed by flushStats
+    private final Map<MetricKey, Histogram> flushedHistograms = new HashMap<MetricKey, Histogram>();
     private String loggerName = "s4";
     private int flushInterval = 600; // default is every 10 minutes
 
@@ -39,6 +42,10 @@ public class Log4jMonitor extends TimerTask implements Monitor {
         this.flushInterval = flushInterval;
     }
 
+    public MetricsRegistry getRegistry() {
+        return registry;
+    }
+
     public void init() {
         if (flushInterval > 0) {
             timer.scheduleAtFixedRate(this,
@@ -49,15 +56,40 @@ public class Log4jMonitor extends TimerTask implements Monitor {
 
     // TODO: this will be removed after changing above functions
     public void set(String metricName, int value) {
-        metricMap.put(metricName, value);
+        gauge(metricName, null).set(value);
     }
 
-    public void flushStats() {
+    /**
+     * Logs the gauges set, and the counts and distributions accumulated
+     * since the previous flush.
+     */
+    public synchronized void flushStats() {
         org.apache.log4j.Logger logger = org.apache.log4j.Logger.getLogger(loggerName);
-        for (String key : metricMap.keySet()) {
-            String message = key + " = " + metricMap.get(key);
-            logger.info(message);
-            metricMap.remove(key);
+        for (Counter counter : registry.getCounters()) {
+            long count = counter.get();
+            Long flushed = flushedCounts.get(counter.getKey());
+            long delta = (flushed == null) ? count : count - flushed;
+            if (delta != 0) {
+                logger.info(counter.getKey() + " = " + delta);
+                flushedCounts.put(counter.getKey(), count);
+            }
+        }
+        for (Gauge gauge : registry.getGauges()) {
+            if (gauge.clearUpdated()) {
+                logger.info(gauge.getKey() + " = " + gauge.get());
+            }
+        }
+        for (Histogram histogram : registry.getHistograms()) {
+            Histogram current = histogram.copy();
+            Histogram interval = current.copy();
+            Histogram flushed = flushedHistograms.get(histogram.getKey());
+            if (flushed != null) {
+                interval.subtract(flushed);
+            }
+            if (interval.getCount() > 0) {
+                logger.info(histogram.getKey() + " = " + interval.summary());
+                flushedHistograms.put(histogram.getKey(), current);
+            }
         }
         if (defaultMap != null) {
             for (String key : defaultMap.keySet()) {
@@ -73,12 +105,7 @@ public class Log4jMonitor extends TimerTask implements Monitor {
 
     @Override
     public void increment(String metricName, int increment) {
-        Integer currValue = metricMap.get(metricName);
-        if (currValue == null) {
-            currValue = 0;
-        }
-        currValue += increment;
-        metricMap.put(metricName, currValue);
+        counter(metricName, null).add(increment);
     }
 
     @Override
@@ -89,32 +116,32 @@ public class Log4jMonitor extends TimerTask implements Monitor {
 
     @Override
     public void increment(String metricName, int increment, String metricEventName, String... furtherDistinctions) {
-        increment(buildMetricName(metricName,
-                                  metricEventName,
-                                  furtherDistinctions),
-                  increment);
-
+        counter(metricName, metricEventName, furtherDistinctions).add(increment);
     }
 
     @Override
     public void set(String metricName, int value, String metricEventName, String... furtherDistinctions) {
-        metricMap.put(buildMetricName(metricName,
-                                      metricEventName,
-                                      furtherDistinctions),
-                      value);
+        gauge(metricName, metricEventName, furtherDistinctions).set(value);
     }
 
-    private String buildMetricName(String metricName, String metricEventName, String[] furtherDistinctions) {
-        StringBuffer sb = new StringBuffer(metricEventName);
-        sb.append(":");
-        sb.append(metricName);
-        if (furtherDistinctions != null) {
-            for (String furtherDistinction : furtherDistinctions) {
-                sb.append(":");
-                sb.append(furtherDistinction);
-            }
-        }
-        return sb.toString().intern();
+    @Override
+    public Counter counter(String metricName, String metricEventName, String... furtherDistinctions) {
+        return registry.counter(new MetricKey(metricName,
+                                              metricEventName,
+                                              furtherDistinctions));
+    }
 
+    @Override
+    public Histogram histogram(String metricName, String metricEventName, String... furtherDistinctions) {
+        return registry.histogram(new MetricKey(metricName,
+                                                metricEventName,
+                                                furtherDistinctions));
+    }
+
+    @Override
+    public Gauge gauge(String metricName, String metricEventName, String... furtherDistinctions) {
+        return registry.gauge(new MetricKey(metricName,
+                                            metricEventName,
+                                            furtherDistinctions));
     }
 }
@@ -0,0 +1,106 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.s4.logger;
+
+import java.util.Arrays;
+
+/**
+ * Identity of a metric: a metric name, the name of the metric event it is
+ * reported in, and further distinctions such as a stream name or a PE id.
+ * <p>
+ * The string form is the one used in the monitor log:
+ * <code>metricEventName:metricName:distinction1:distinction2...</code>
+ */
+public final class MetricKey {
+    private final String metricName;
+    private final String metricEventName;
+    private final String[] distinctions;
+    private final int hashCode;
+    private volatile String name;
+
+    private static final String[] NO_DISTINCTIONS = new String[0];
+
+    public MetricKey(String metricName, String metricEventName,
+            String... distinctions) {
+        this.metricName = metricName;
+        this.metricEventName = metricEventName;
+        this.distinctions = (distinctions == null) ? NO_DISTINCTIONS
+                : distinctions.clone();
+        int h = metricName.hashCode();
+        h = 31 * h
+                + ((metricEventName == null) ? 0 : metricEventName.hashCode());
+        h = 31 * h + Arrays.hashCode(this.distinctions);
+        this.hashCode = h;
+    }
+
+    public String getMetricName() {
+        return metricName;
+    }
+
+    /**
+     * @return the metric event name, or null for metrics reported without
+     *         one
+     */
+    public String getMetricEventName() {
+        return metricEventName;
+    }
+
+    public String[] getDistinctions() {
+        return distinctions.clone();
+    }
+
+    @Override
+    public int hashCode() {
+        return hashCode;
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+        if (this == obj) {
+            return true;
+        }
+        if (!(obj instanceof MetricKey)) {
+            return false;
+        }
+        MetricKey other = (MetricKey) obj;
+        return hashCode == other.hashCode
+                && metricName.equals(other.metricName)
+                && (metricEventName == null ? other.metricEventName == null
+                        : metricEventName.equals(other.metricEventName))
+                && Arrays.equals(distinctions, other.distinctions);
+    }
+
+    @Override
+    public String toString() {
+        if (name == null) {
+            if (metricEventName == null) {
+                name = metricName;
+            } else {
+                StringBuilder sb = new StringBuilder(metricEventName);
+                sb.append(":");
+                sb.append(metricName);
+                for (String distinction : distinctions) {
+                    sb.append(":");
+                    sb.append(distinction);
+                }
+                name = sb.toString();
+            }
+        }
+        return name;
+    }
+}
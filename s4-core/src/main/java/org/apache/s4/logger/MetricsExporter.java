@@ -0,0 +1,224 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.s4.logger;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.management.Attribute;
+import javax.management.AttributeList;
+import javax.management.AttributeNotFoundException;
+import javax.management.DynamicMBean;
+import javax.management.InstanceAlreadyExistsException;
+import javax.management.MBeanAttributeInfo;
+import javax.management.MBeanInfo;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.apache.log4j.Logger;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Exposes the current metrics of a {@link Monitor} while the process runs.
+ * <p>
+ * When {@link #setHttpPort(int)} is set to a positive port, the metrics are
+ * served in the Prometheus text format (see {@link PrometheusFormat}) on
+ * <code>http://host:port/metrics</code>, by the HTTP server of the JDK. When
+ * {@link #setJmxEnabled(boolean)} is true, they are also registered in the
+ * platform MBean server as the read-only attributes of
+ * <code>org.apache.s4:type=Metrics,name=&lt;jmxName&gt;</code>.
+ * <p>
+ * Both are disabled by default.
+ */
+public class MetricsExporter {
+    private static Logger logger = Logger.getLogger(MetricsExporter.class);
+
+    private Monitor monitor;
+    private int httpPort = 0;
+    private boolean jmxEnabled = false;
+    private String jmxName = "s4";
+
+    private HttpServer httpServer;
+    private ObjectName objectName;
+
+    public void setMonitor(Monitor monitor) {
+        this.monitor = monitor;
+    }
+
+    /**
+     * Port of the HTTP endpoint; 0, the default, disables it.
+     */
+    public void setHttpPort(int httpPort) {
+        this.httpPort = httpPort;
+    }
+
+    public void setJmxEnabled(boolean jmxEnabled) {
+        this.jmxEnabled = jmxEnabled;
+    }
+
+    /**
+     * Name of the MBean, to tell apart several S4 processes in one JVM.
+     */
+    public void setJmxName(String jmxName) {
+        this.jmxName = jmxName;
+    }
+
+    public void init() throws Exception {
+        if (httpPort > 0) {
+            httpServer = HttpServer.create(new InetSocketAddress(httpPort), 0);
+            httpServer.createContext("/metrics", new MetricsHandler());
+            httpServer.start();
+            logger.info("Serving metrics on port " + httpPort);
+        }
+        if (jmxEnabled) {
+            MBeanServer mbeanServer = ManagementFactory.getPlatformMBeanServer();
+            ObjectName name = new ObjectName("org.apache.s4:type=Metrics,name="
+                    + ObjectName.quote(jmxName));
+            try {
+                mbeanServer.registerMBean(new MetricsMBean(), name);
+                objectName = name;
+            } catch (InstanceAlreadyExistsException e) {
+                logger.warn("Metrics MBean " + name
+                        + " already registered, not registering it again");
+            }
+        }
+    }
+
+    public void close() {
+        if (httpServer != null) {
+            httpServer.stop(0);
+            httpServer = null;
+        }
+        if (objectName != null) {
+            try {
+                ManagementFactory.getPlatformMBeanServer()
+                                 .unregisterMBean(objectName);
+            } catch (Exception e) {
+                logger.warn("Cannot unregister metrics MBean " + objectName, e);
+            }
+            objectName = null;
+        }
+    }
+
+    class MetricsHandler implements HttpHandler {
+        public void handle(HttpExchange exchange) throws IOException {
+            try {
+                byte[] body = PrometheusFormat.format(monitor.getRegistry())
+                                              .getBytes("UTF-8");
+                exchange.getResponseHeaders()
+                        .set("Content-Type", PrometheusFormat.CONTENT_TYPE);
+                exchange.sendResponseHeaders(200, body.length);
+                OutputStream os = exchange.getResponseBody();
+                os.write(body);
+                os.close();
+            } finally {
+                exchange.close();
+            }
+        }
+    }
+
+    /**
+     * Counters and gauges as <code>long</code> attributes named after their
+     * key, and histograms as one attribute per statistic, e.g.
+     * <code>key p99</code>.
+     */
+    class MetricsMBean implements DynamicMBean {
+        private Map<String, Long> values() {
+            MetricsRegistry registry = monitor.getRegistry();
+            Map<String, Long> values = new HashMap<String, Long>();
+            for (Counter counter : registry.getCounters()) {
+                values.put(counter.getKey().toString(), counter.get());
+            }
+            for (Gauge gauge : registry.getGauges()) {
+                values.put(gauge.getKey().toString(), gauge.get());
+            }
+            for (Histogram histogram : registry.getHistograms()) {
+                Histogram snapshot = histogram.copy();
+                String key = snapshot.getKey().toString();
+                values.put(key + " count", snapshot.getCount());
+                values.put(key + " p50", snapshot.getValueAtPercentile(50.0));
+                values.put(key + " p99", snapshot.getValueAtPercentile(99.0));
+                values.put(key + " max", snapshot.getMax());
+            }
+            return values;
+        }
+
+        public Object getAttribute(String attribute)
+                throws AttributeNotFoundException {
+            Long value = values().get(attribute);
+            if (value == null) {
+                throw new AttributeNotFoundException(attribute);
+            }
+            return value;
+        }
+
+        public AttributeList getAttributes(String[] attributes) {
+            Map<String, Long> values = values();
+            AttributeList list = new AttributeList();
+            for (String attribute : attributes) {
+                Long value = values.get(attribute);
+                if (value != null) {
+                    list.add(new Attribute(attribute, value));
+                }
+            }
+            return list;
+        }
+
+        public MBeanInfo getMBeanInfo() {
+            List<MBeanAttributeInfo> attributes = new ArrayList<MBeanAttributeInfo>();
+            for (String name : values().keySet()) {
+                attributes.add(new MBeanAttributeInfo(name,
+                                                      "long",
+                                                      name,
+                                                      true,
+                                                      false,
+                                                      false));
+            }
+            return new MBeanInfo(MetricsMBean.class.getName(),
+                                 "S4 metrics",
+                                 attributes.toArray(new MBeanAttributeInfo[attributes.size()]),
+                                 null,
+                                 null,
+                                 null);
+        }
+
+        public Object invoke(String actionName, Object[] params,
+                             String[] signature) {
+            throw new UnsupportedOperationException(actionName);
+        }
+
+        public void setAttribute(Attribute attribute)
+                throws AttributeNotFoundException {
+            throw new AttributeNotFoundException("Metrics are read-only: "
+                    + attribute.getName());
+        }
+
+        public AttributeList setAttributes(AttributeList attributes) {
+            return new AttributeList();
+        }
+    }
+}
@@ -0,0 +1,83 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.s4.logger;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Holds the counters and gauges of a monitor, by {@link MetricKey}.
+ * <p>
+ * Looking a metric up allocates its key: hot code paths should look their
+ * metrics up once and keep the returned handle.
+ */
+public class MetricsRegistry {
+    private final ConcurrentMap<MetricKey, Counter> counters = new ConcurrentHashMap<MetricKey, Counter>();
+    private final ConcurrentMap<MetricKey, Gauge> gauges = new ConcurrentHashMap<MetricKey, Gauge>();
+    private final ConcurrentMap<MetricKey, Histogram> histograms = new ConcurrentHashMap<MetricKey, Histogram>();
+
+    public Counter counter(MetricKey key) {
+        Counter counter = counters.get(key);
+        if (counter == null) {
+            Counter newCounter = new Counter(key);
+            counter = counters.putIfAbsent(key, newCounter);
+            if (counter == null) {
+                counter = newCounter;
+            }
+        }
+        return counter;
+    }
+
+    public Gauge gauge(MetricKey key) {
+        Gauge gauge = gauges.get(key);
+        if (gauge == null) {
+            Gauge newGauge = new Gauge(key);
+            gauge = gauges.putIfAbsent(key, newGauge);
+            if (gauge == null) {
+                gauge = newGauge;
+            }
+        }
+        return gauge;
+    }
+
+    public Histogram histogram(MetricKey key) {
+        Histogram histogram = histograms.get(key);
+        if (histogram == null) {
+            Histogram newHistogram = new Histogram(key);
+            histogram = histograms.putIfAbsent(key, newHistogram);
+            if (histogram == null) {
+                histogram = newHistogram;
+            }
+        }
+        return histogram;
+    }
+
+    public List<Counter> getCounters() {
+        return new ArrayList<Counter>(counters.values());
+    }
+
+    public List<Gauge> getGauges() {
+        return new ArrayList<Gauge>(gauges.values());
+    }
+
+    public List<Histogram> getHistograms() {
+        return new ArrayList<Histogram>(histograms.values());
+    }
+}
@@ -29,4 +29,31 @@ public interface Monitor {
     public void flushStats();
 
     public void setDefaultValue(String key, int val);
+
+    /**
+     * Returns the counter reported under the given name. The counter is
+     * created on first use; callers on hot paths should keep the returned
+     * handle rather than look it up for each update.
+     */
+    public Counter counter(String metricName, String metricEventName, String... aggKeys);
+
+    /**
+     * Returns the gauge reported under the given name. The gauge is created
+     * on first use; callers on hot paths should keep the returned handle
+     * rather than look it up for each update.
+     */
+    public Gauge gauge(String metricName, String metricEventName, String... aggKeys);
+
+    /**
+     * Returns the histogram reported under the given name. The histogram is
+     * created on first use; callers on hot paths should keep the returned
+     * handle rather than look it up for each update.
+     */
+    public Histogram histogram(String metricName, String metricEventName, String... aggKeys);
+
+    /**
+     * @return the registry holding the current values of all the metrics of
+     *         this monitor
+     */
+    public MetricsRegistry getRegistry();
 }
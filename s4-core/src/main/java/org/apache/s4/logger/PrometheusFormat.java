@@ -0,0 +1,177 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.s4.logger;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Writes the metrics of a {@link MetricsRegistry} in the Prometheus text
+ * exposition format.
+ * <p>
+ * A metric is exposed as <code>s4_</code> followed by its metric name, with
+ * the metric event name as the <code>event</code> label. Further distinctions
+ * are read as label name and value pairs, as in <code>"at", peId</code>.
+ * Counters and gauges are exposed as such, and histograms as summaries with
+ * the 0.5, 0.9, 0.99 and 0.999 quantiles.
+ */
+public class PrometheusFormat {
+    public static final String CONTENT_TYPE = "text/plain; version=0.0.4";
+
+    private static final double[] QUANTILES = { 0.5, 0.9, 0.99, 0.999 };
+
+    private static final Comparator<MetricKey> KEY_ORDER = new Comparator<MetricKey>() {
+        public int compare(MetricKey k1, MetricKey k2) {
+            int c = k1.getMetricName().compareTo(k2.getMetricName());
+            return (c != 0) ? c : k1.toString().compareTo(k2.toString());
+        }
+    };
+
+    public static String format(MetricsRegistry registry) {
+        StringBuilder sb = new StringBuilder();
+
+        List<Counter> counters = registry.getCounters();
+        Collections.sort(counters, new Comparator<Counter>() {
+            public int compare(Counter c1, Counter c2) {
+                return KEY_ORDER.compare(c1.getKey(), c2.getKey());
+            }
+        });
+        String previousName = null;
+        for (Counter counter : counters) {
+            String name = metricName(counter.getKey());
+            if (!name.equals(previousName)) {
+                sb.append("# TYPE ").append(name).append(" counter\n");
+                previousName = name;
+            }
+            sample(sb, name, counter.getKey(), null, counter.get());
+        }
+
+        List<Gauge> gauges = registry.getGauges();
+        Collections.sort(gauges, new Comparator<Gauge>() {
+            public int compare(Gauge g1, Gauge g2) {
+                return KEY_ORDER.compare(g1.getKey(), g2.getKey());
+            }
+        });
+        previousName = null;
+        for (Gauge gauge : gauges) {
+            String name = metricName(gauge.getKey());
+            if (!name.equals(previousName)) {
+                sb.append("# TYPE ").append(name).append(" gauge\n");
+                previousName = name;
+            }
+            sample(sb, name, gauge.getKey(), null, gauge.get());
+        }
+
+        List<Histogram> histograms = new ArrayList<Histogram>();
+        for (Histogram histogram : registry.getHistograms()) {
+            histograms.add(histogram.copy());
+        }
+        Collections.sort(histograms, new Comparator<Histogram>() {
+            public int compare(Histogram h1, Histogram h2) {
+                return KEY_ORDER.compare(h1.getKey(), h2.getKey());
+            }
+        });
+        previousName = null;
+        for (Histogram histogram : histograms) {
+            String name = metricName(histogram.getKey());
+            if (!name.equals(previousName)) {
+                sb.append("# TYPE ").append(name).append(" summary\n");
+                previousName = name;
+            }
+            for (double quantile : QUANTILES) {
+                sample(sb,
+                       name,
+                       histogram.getKey(),
+                       String.valueOf(quantile),
+                       histogram.getValueAtPercentile(quantile * 100.0));
+            }
+            sample(sb, name + "_sum", histogram.getKey(), null,
+                   histogram.getSum());
+            sample(sb, name + "_count", histogram.getKey(), null,
+                   histogram.getCount());
+        }
+        return sb.toString();
+    }
+
+    static String metricName(MetricKey key) {
+        return "s4_" + sanitize(key.getMetricName());
+    }
+
+    private static void sample(StringBuilder sb, String name, MetricKey key,
+                               String quantile, long value) {
+        sb.append(name);
+        String[] distinctions = key.getDistinctions();
+        boolean hasLabels = key.getMetricEventName() != null
+                || distinctions.length > 0 || quantile != null;
+        if (hasLabels) {
+            char separator = '{';
+            if (key.getMetricEventName() != null) {
+                label(sb, separator, "event", key.getMetricEventName());
+                separator = ',';
+            }
+            for (int i = 0; i < distinctions.length; i += 2) {
+                if (i + 1 < distinctions.length) {
+                    label(sb,
+                          separator,
+                          sanitize(distinctions[i]),
+                          distinctions[i + 1]);
+                } else {
+                    label(sb, separator, "distinction", distinctions[i]);
+                }
+                separator = ',';
+            }
+            if (quantile != null) {
+                label(sb, separator, "quantile", quantile);
+            }
+            sb.append('}');
+        }
+        sb.append(' ').append(value).append('\n');
+    }
+
+    private static void label(StringBuilder sb, char separator, String name,
+                              String value) {
+        sb.append(separator).append(name).append("=\"");
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c == '\\' || c == '"') {
+                sb.append('\\').append(c);
+            } else if (c == '\n') {
+                sb.append("\\n");
+            } else {
+                sb.append(c);
+            }
+        }
+        sb.append('"');
+    }
+
+    private static String sanitize(String name) {
+        StringBuilder sb = new StringBuilder(name.length());
+        for (int i = 0; i < name.length(); i++) {
+            char c = name.charAt(i);
+            if ((c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z')
+                    || (c >= '0' && c <= '9' && i > 0) || c == '_') {
+                sb.append(c);
+            } else {
+                sb.append('_');
+            }
+        }
+        return sb.toString();
+    }
+}
@@ -0,0 +1,77 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.s4.message;
+
+import java.util.List;
+
+/**
+ * State accumulated by the instance of a {@link org.apache.s4.processor.MergeablePE}
+ * which received part of the events of a hot key, on its way to the instance
+ * of the key on the partition the key hashes to.
+ * <p>
+ * It is dispatched on the control stream of the prototype (<code>#</code>
+ * followed by the prototype id), and partitioned on its key value, ignoring
+ * hot key splitting.
+ */
+public class PartialState {
+
+    private String keyValue;
+    private List<Object> keyValues;
+    private Object state;
+
+    public PartialState() {
+    }
+
+    public PartialState(String keyValue, Object state) {
+        this(keyValue, null, state);
+    }
+
+    /**
+     * @param keyValues
+     *            the value of each simple key of the PE instance, used to set
+     *            the key of the receiving instance when the state creates it
+     */
+    public PartialState(String keyValue, List<Object> keyValues, Object state) {
+        this.keyValue = keyValue;
+        this.keyValues = keyValues;
+        this.state = state;
+    }
+
+    /**
+     * @return the compound value of the PE instance the state comes from
+     */
+    public String getKeyValue() {
+        return keyValue;
+    }
+
+    /**
+     * @return the value of each simple key of the PE instance the state comes
+     *         from, or null if unknown
+     */
+    public List<Object> getKeyValues() {
+        return keyValues;
+    }
+
+    public Object getState() {
+        return state;
+    }
+
+    public String toString() {
+        return "{" + keyValue + " = " + state + "}";
+    }
+}
@@ -17,6 +17,7 @@
  */
 package org.apache.s4.processor;
 
+import org.apache.s4.dispatcher.EventDispatcher;
 import org.apache.s4.dispatcher.partitioner.CompoundKeyInfo;
 import org.apache.s4.dispatcher.partitioner.KeyInfo;
 import org.apache.s4.dispatcher.partitioner.KeyInfo.KeyPathElement;
@@ -26,6 +27,7 @@ import org.apache.s4.ft.InitiateCheckpointingEvent;
 import org.apache.s4.ft.RecoveryEvent;
 import org.apache.s4.ft.SafeKeeper;
 import org.apache.s4.ft.SafeKeeperId;
+import org.apache.s4.message.PartialState;
 import org.apache.s4.persist.Persister;
 import org.apache.s4.schema.Schema;
 import org.apache.s4.schema.Schema.Property;
@@ -122,6 +124,12 @@ public abstract class AbstractPE implements Cloneable {
     transient private long checkpointingPauseTimeInMillis;
 
     transient private OverloadDispatcher overloadDispatcher;
+    // true if the concrete class overrides processBatch
+    transient private boolean batchProcessing;
+
+    transient private EventDispatcher mergeDispatcher;
+    // receives part of the events of a hot key
+    transient private boolean partial = false;
 
     public void setSaveKeyRecord(boolean saveKeyRecord) {
         this.saveKeyRecord = saveKeyRecord;
@@ -143,6 +151,16 @@ public abstract class AbstractPE implements Cloneable {
         this.checkpointingPauseTimeInMillis = checkpointingPauseTimeInMillis;
     }
 
+    /**
+     * Dispatcher through which the instances of a {@link MergeablePE} which
+     * receive part of the events of a hot key hand their state over to the
+     * instance on the partition of the key. Without it, they output as any
+     * other instance.
+     */
+    public void setMergeDispatcher(EventDispatcher mergeDispatcher) {
+        this.mergeDispatcher = mergeDispatcher;
+    }
+
     public void setLogPauses(boolean logPauses) {
         this.logPauses = logPauses;
     }
@@ -188,6 +206,23 @@ public abstract class AbstractPE implements Cloneable {
         } catch (Exception e) {
             throw new RuntimeException(e);
         }
+
+        try {
+            batchProcessing = !this.getClass()
+                                   .getMethod("processBatch", List.class)
+                                   .getDeclaringClass()
+                                   .equals(AbstractPE.class);
+        } catch (NoSuchMethodException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * @return true if this PE overrides {@link #processBatch(List)}, in
+     *         which case the container may deliver events in batches.
+     */
+    public boolean isBatchProcessing() {
+        return batchProcessing;
     }
 
     /**
@@ -202,6 +237,9 @@ public abstract class AbstractPE implements Cloneable {
             if (compoundKeyInfo != null)
                 keyValueString = compoundKeyInfo.getCompoundValue();
         }
+        if (!partial && compoundKeyInfo != null && compoundKeyInfo.isPartial()) {
+            markPartial();
+        }
 
         this.streamName = streamName;
 
@@ -220,11 +258,110 @@ public abstract class AbstractPE implements Cloneable {
             keyRecord.clear(); // the PE doesn't need it anymore
         }
 
+        countProcessedEvents(1);
+    }
+
+    /**
+     * Batch counterpart of {@link #execute(String, CompoundKeyInfo, Object)},
+     * used by the container for PEs that override
+     * {@link #processBatch(List)}. All the events were received on the same
+     * stream, for this PE instance.
+     * <p>
+     * Count based output and checkpointing are triggered at most once per
+     * batch, after the whole batch is processed.
+     */
+    public void executeBatch(String streamName,
+                             CompoundKeyInfo compoundKeyInfo,
+                             List<Object> events) {
+        if (events.isEmpty()) {
+            return;
+        }
+        if (keyValue == null || saveKeyRecord) {
+            setKeyValue(events.get(0), compoundKeyInfo);
+
+            if (compoundKeyInfo != null)
+                keyValueString = compoundKeyInfo.getCompoundValue();
+        }
+        if (!partial && compoundKeyInfo != null && compoundKeyInfo.isPartial()) {
+            markPartial();
+        }
+
+        this.streamName = streamName;
+        this.isCheckpointingEvent = false;
+
+        if (safeKeeper != null) {
+            if (!recoveryAttempted) {
+                recover();
+                recoveryAttempted = true;
+            }
+        }
+
+        processBatch(events);
+
+        if (saveKeyRecord) {
+            keyRecord.clear(); // the PE doesn't need it anymore
+        }
+
+        countProcessedEvents(events.size());
+    }
+
+    /**
+     * Processes a batch of events received on the same stream, in the order
+     * they were received.
+     * <p>
+     * The default implementation calls the matching <code>processEvent</code>
+     * method for each event. Override this method to handle a whole batch in
+     * one pass, for instance to update a counter once per batch. The
+     * container only delivers batches to PEs which override this method,
+     * when it is configured with a batch size greater than 1.
+     * 
+     * @param events
+     *            the events, never empty. The list belongs to the container:
+     *            do not keep a reference to it.
+     */
+    public void processBatch(List<Object> events) {
+        for (Object event : events) {
+            overloadDispatcher.dispatch(this, event);
+        }
+    }
+
+    private void markPartial() {
+        partial = true;
+        if (!(this instanceof MergeablePE)) {
+            Logger.getLogger("s4").warn("PE " + getId()
+                    + " is not mergeable but receives part of the events of hot key "
+                    + keyValueString
+                    + ": disable hot key splitting on its input streams");
+        }
+    }
+
+    /**
+     * Instances of a {@link MergeablePE} receiving part of the events of a hot
+     * key send their state to the instance on the partition of the key, on
+     * the control stream of the prototype, instead of producing output.
+     */
+    private void outputOrMerge() {
+        if (partial && mergeDispatcher != null && this instanceof MergeablePE) {
+            Object state = ((MergeablePE) this).takePartialState();
+            if (state != null) {
+                mergeDispatcher.dispatchEvent("#" + getId(),
+                                              new PartialState(keyValueString,
+                                                               keyValue,
+                                                               state));
+            }
+        } else {
+            output();
+        }
+    }
+
+    // output and checkpointing bookkeeping after processing count events
+    private void countProcessedEvents(int count) {
         if (outputFrequencyType == FrequencyType.EVENTCOUNT && outputFrequency > 0 && !isCheckpointingEvent) {
-            eventCount++;
-            if (eventCount % outputFrequency == 0) {
+            int previousCount = eventCount;
+            eventCount += count;
+            if (eventCount / outputFrequency != previousCount / outputFrequency) {
                 try {
-                    output();
+                    outputOrMerge();
                 } catch (Exception e) {
                     Logger.getLogger("s4").error("Exception calling output() method in execute()", e);
                 }
@@ -235,8 +372,9 @@ public abstract class AbstractPE implements Cloneable {
         if (!isCheckpointingEvent) {
             checkpointable = true; // dirty flag
             if (checkpointingFrequencyType == FrequencyType.EVENTCOUNT && checkpointingFrequency > 0) {
-                checkpointableEventCount++;
-                if (checkpointableEventCount % checkpointingFrequency == 0) {
+                int previousCount = checkpointableEventCount;
+                checkpointableEventCount += count;
+                if (checkpointableEventCount / checkpointingFrequency != previousCount / checkpointingFrequency) {
                     // for count-based frequency, we directly checkpoint here
                     checkpoint();
                 }
@@ -274,6 +412,28 @@ public abstract class AbstractPE implements Cloneable {
         return streamName;
     }
 
+    /**
+     * Sets the key of an instance created before it received any event, such
+     * as the instance a {@link PartialState} is merged into, so that it can
+     * output. Does nothing if the key is already set.
+     * 
+     * @param keyValue
+     *            the value of each simple key, or null to use the compound
+     *            value as the only one
+     */
+    void initKeyValue(String keyValueString, List<Object> keyValue) {
+        if (this.keyValue != null) {
+            return;
+        }
+        this.keyValueString = keyValueString;
+        if (keyValue != null) {
+            this.keyValue = new ArrayList<Object>(keyValue);
+        } else {
+            this.keyValue = new ArrayList<Object>(1);
+            this.keyValue.add(keyValueString);
+        }
+    }
+
     private void setKeyValue(Object event, CompoundKeyInfo compoundKeyInfo) {
         if (compoundKeyInfo == null) {
             return;
@@ -298,7 +458,7 @@ public abstract class AbstractPE implements Cloneable {
                     property = schema.getProperties().get(keyPathElementName);
                     value = null;
                     try {
-                        value = property.getGetterMethod().invoke(record);
+                        value = property.getValue(record);
                     } catch (Exception e) {
                         Logger.getLogger("s4").error(e);
                         return;
@@ -320,19 +480,9 @@ public abstract class AbstractPE implements Cloneable {
                         }
                         continue;
                     } else if (property.isList()) {
-                        try {
-                            list = (List) property.getGetterMethod().invoke(record);
-                        } catch (Exception e) {
-                            Logger.getLogger("s4").error(e);
-                            return;
-                        }
+                        list = (List) value;
                     } else {
-                        try {
-                            record = property.getGetterMethod().invoke(record);
-                        } catch (Exception e) {
-                            Logger.getLogger("s4").error(e);
-                            return;
-                        }
+                        record = value;
                         schema = property.getSchema();
                     }
                 }
@@ -727,7 +877,7 @@ public abstract class AbstractPE implements Cloneable {
 
                         if (PeriodicInvokerType.OUTPUT.equals(type)) {
                             try {
-                                pe.output();
+                                pe.outputOrMerge();
                                 outputCount++;
                             } catch (Exception e) {
                                 Logger.getLogger("s4").error("Exception calling output() method", e);
@@ -104,8 +104,7 @@ public abstract class AbstractWindowingPE extends AbstractPE {
                         && (property.getType().equals(Long.TYPE) || property.getType()
                                                                             .equals(Long.class))) {
                     try {
-                        maybeCurrentTime = (Long) property.getGetterMethod()
-                                                          .invoke(event);
+                        maybeCurrentTime = (Long) property.getValue(event);
                     } catch (Exception e) {
                         throw new RuntimeException(e);
                     }
@@ -20,6 +20,7 @@ package org.apache.s4.processor;
 import org.apache.s4.collector.EventWrapper;
 import org.apache.s4.dispatcher.EventDispatcher;
 import org.apache.s4.dispatcher.partitioner.CompoundKeyInfo;
+import org.apache.s4.message.PartialState;
 import org.apache.s4.message.PrototypeRequest;
 import org.apache.s4.message.Response;
 import org.apache.s4.message.SinglePERequest;
@@ -75,6 +76,25 @@ public class ControlEventProcessor {
             String stream = response.getRInfo().getStream();
 
             dispatcher.dispatchEvent(stream, response);
+
+        } else if (event instanceof PartialState) {
+            // Merge the state of a PE instance which received part of the
+            // events of a hot key
+            PartialState partialState = (PartialState) event;
+            AbstractPE pe = p.lookupPE(partialState.getKeyValue());
+            if (pe == null) {
+                // no event of the key reached this instance yet, or it
+                // expired: it takes its key from the state
+                pe = p.getPE(partialState.getKeyValue());
+                if (pe == null) {
+                    return;
+                }
+                pe.initKeyValue(partialState.getKeyValue(),
+                                partialState.getKeyValues());
+            }
+            if (pe instanceof MergeablePE) {
+                ((MergeablePE) pe).mergePartialState(partialState.getState());
+            }
         }
 
     }
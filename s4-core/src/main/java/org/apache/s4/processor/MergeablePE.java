@@ -0,0 +1,53 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.s4.processor;
+
+/**
+ * A PE whose state for a key can be built in several instances, each one
+ * receiving part of the events of the key, and merged afterwards.
+ * <p>
+ * Implementing this interface allows the partitioner to spread the events of
+ * a hot key over several partitions (see
+ * {@link org.apache.s4.dispatcher.partitioner.DefaultPartitioner#setHotKeySplitFactor(int)}).
+ * Instead of producing output, the instances which only receive part of the
+ * events of a key hand their state over to the instance on the partition the
+ * key hashes to, through the dispatcher set with
+ * {@link AbstractPE#setMergeDispatcher(org.apache.s4.dispatcher.EventDispatcher)}.
+ * This happens whenever the instance would otherwise output, so these PEs
+ * should output on a time boundary. The state is merged by the
+ * {@link ControlEventProcessor} of the receiving container.
+ * <p>
+ * Counters, sums, minimums, maximums and sketches are typical mergeable
+ * states.
+ */
+public interface MergeablePE {
+
+    /**
+     * Returns the state accumulated since the previous call, and resets it.
+     * 
+     * @return the state, or null if there is nothing to hand over. It is
+     *         serialized and sent to another node.
+     */
+    Object takePartialState();
+
+    /**
+     * Merges into this instance a state returned by
+     * {@link #takePartialState()} on another instance of the same key.
+     */
+    void mergePartialState(Object partialState);
+}
@@ -24,49 +24,287 @@ import static org.apache.s4.util.MetricsName.pecontainer_ev_err_ct;
 import static org.apache.s4.util.MetricsName.pecontainer_ev_nq_ct;
 import static org.apache.s4.util.MetricsName.pecontainer_ev_process_ct;
 import static org.apache.s4.util.MetricsName.pecontainer_exec_elapse_time;
+import static org.apache.s4.util.MetricsName.pecontainer_exec_latency;
 import static org.apache.s4.util.MetricsName.pecontainer_msg_drop_ct;
 import static org.apache.s4.util.MetricsName.pecontainer_pe_ct;
+import static org.apache.s4.util.MetricsName.pecontainer_priority_ev_nq_ct;
+import static org.apache.s4.util.MetricsName.pecontainer_priority_qsz;
 import static org.apache.s4.util.MetricsName.pecontainer_qsz;
+import static org.apache.s4.util.MetricsName.pecontainer_queue_latency;
 import static org.apache.s4.util.MetricsName.pecontainer_qsz_w;
 import org.apache.s4.collector.EventWrapper;
 import org.apache.s4.dispatcher.partitioner.CompoundKeyInfo;
 import org.apache.s4.ft.CheckpointingEvent;
 import org.apache.s4.ft.SafeKeeper;
+import org.apache.s4.logger.Counter;
+import org.apache.s4.logger.Gauge;
+import org.apache.s4.logger.Histogram;
+import org.apache.s4.logger.MetricKey;
 import org.apache.s4.logger.Monitor;
+import org.apache.s4.message.PrototypeRequest;
+import org.apache.s4.processor.RoutingIndex.StreamKind;
+import org.apache.s4.util.MetricsName;
 import org.apache.s4.util.clock.Clock;
 import org.apache.s4.util.clock.EventClock;
+import org.apache.s4.util.queue.LinkedQueueFactory;
+import org.apache.s4.util.queue.QueueFactory;
 
 import java.util.ArrayList;
-import java.util.Collections;
-import java.util.HashMap;
+import java.util.IdentityHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.apache.log4j.Logger;
 
-public class PEContainer implements Runnable, AsynchronousEventProcessor {
+/**
+ * Executes the processing elements of a node.
+ * <p>
+ * Events are processed by a configurable number of worker threads (see
+ * {@link #setWorkerCount(int)}), each one draining its own queue. Every PE
+ * instance is owned by exactly one worker, chosen from a hash of the compound
+ * value the instance is keyed on, so a given PE instance is always executed by
+ * the same thread, in the order its events were queued. PEs can therefore
+ * still be written as single threaded code.
+ * <p>
+ * When {@link #setMaxBatchSize(int)} is greater than 1, the events drained
+ * together from a worker queue are grouped by target PE instance, and PEs
+ * overriding {@link AbstractPE#processBatch(List)} receive them as a batch.
+ * Events received on different streams are never put in the same batch, and
+ * a PE always sees its events in queue order.
+ * <p>
+ * Placement rules:
+ * <ul>
+ * <li>an event is queued to every worker that owns one of its compound keys,
+ * and each worker only invokes the PE instances it owns;</li>
+ * <li>keyless PE instances (advice key <code>*</code>) are owned by the worker
+ * of the <code>*</code> key;</li>
+ * <li>control events (<code>#</code> streams) are handled by the worker owning
+ * the first compound key of the event, or by the first worker if the event has
+ * no key;</li>
+ * <li>prototype requests, which read all the PE instances of a prototype, are
+ * handled by the first worker while all the other workers wait;</li>
+ * <li>checkpointing and recovery events are handled by the worker owning the
+ * key of the target PE.</li>
+ * </ul>
+ * Control, checkpointing and recovery events do not go through the data queue
+ * of the worker but through an unbounded priority lane, which the worker
+ * services ahead of data events (see {@link #setPriorityRatio(int)}). They are
+ * therefore neither delayed behind a backlog of data events nor dropped when
+ * the data queue is full.
+ * <p>
+ * With the default of one worker, the behavior is that of a single
+ * "PEContainer" thread.
+ * <p>
+ * A sample of the events (see {@link #setLatencySamplingInterval(int)}) is
+ * timed: the time they spend in the worker queues is recorded by stream, and
+ * the execution time of the PEs they are delivered to by prototype, in
+ * {@link Histogram}s which are reported by the monitor and can be queried with
+ * {@link #getQueueLatency(String)} and {@link #getExecutionLatency(String)}.
+ */
+public class PEContainer implements AsynchronousEventProcessor {
     private static Logger logger = Logger.getLogger(PEContainer.class);
-    BlockingQueue<EventWrapper> workQueue;
-    private List<PrototypeWrapper> prototypeWrappers = new ArrayList<PrototypeWrapper>();
+    private static final String KEYLESS = "*";
+    private static final int DRAIN_BATCH_SIZE = 64;
+    // queued in the data queue of a worker to wake it up for priority events
+    private static final EventWrapper PRIORITY_SIGNAL = new EventWrapper();
+
+    private Worker[] workers;
+    private List<PrototypeWrapper> prototypeWrappers = new CopyOnWriteArrayList<PrototypeWrapper>();
     private Monitor monitor;
+    // metric handles, resolved when the monitor is set
+    private Counter enqueuedCounter;
+    private Counter droppedCounter;
+    private Counter priorityEnqueuedCounter;
+    private Counter dequeuedCounter;
+    private Counter processedCounter;
+    private Counter errorCounter;
+    private Counter execTimeCounter;
+    private Gauge queueSizeGauge;
+    private Gauge priorityQueueSizeGauge;
+    private ConcurrentMap<String, Counter> processedByPE = new ConcurrentHashMap<String, Counter>();
+    private ConcurrentMap<String, Counter> errorsByPE = new ConcurrentHashMap<String, Counter>();
+    private ConcurrentMap<String, Counter> execTimeByStream = new ConcurrentHashMap<String, Counter>();
+    private ConcurrentMap<String, Histogram> execLatencyByPrototype = new ConcurrentHashMap<String, Histogram>();
+    private ConcurrentMap<String, Histogram> queueLatencyByStream = new ConcurrentHashMap<String, Histogram>();
+    private int latencySamplingInterval = 16;
+    // not synchronized: a lost update only shifts the sample
+    private int samplingCountdown;
     private Clock clock;
     private int maxQueueSize = 1000;
+    private int workerCount = 1;
+    private int priorityRatio = 0;
+    private int maxBatchSize = 1;
+    private QueueFactory queueFactory = new LinkedQueueFactory();
     private boolean trackByKey;
-    private Map<String, Integer> countByEventType = Collections.synchronizedMap(new HashMap<String, Integer>());
+    private ConcurrentMap<String, AtomicInteger> countByEventType = new ConcurrentHashMap<String, AtomicInteger>();
 	private SafeKeeper safeKeeper;
 
+    // rebuilt whenever a prototype is added
+    private volatile RoutingIndex routingIndex = RoutingIndex.EMPTY;
+
     private ControlEventProcessor controlEventProcessor = null;
 
+    /**
+     * Capacity of the queue of each worker. Events are dropped when the queue
+     * of a target worker is full.
+     */
     public void setMaxQueueSize(int maxQueueSize) {
         this.maxQueueSize = maxQueueSize;
     }
 
+    /**
+     * Number of threads executing PEs. Defaults to 1.
+     */
+    public void setWorkerCount(int workerCount) {
+        this.workerCount = workerCount;
+    }
+
+    public int getWorkerCount() {
+        return workerCount;
+    }
+
+    /**
+     * Maximum number of priority events (control, checkpointing and recovery
+     * events) a worker processes before each data event. Defaults to 0, for
+     * no limit: priority events are always processed first.
+     */
+    public void setPriorityRatio(int priorityRatio) {
+        this.priorityRatio = priorityRatio;
+    }
+
+    /**
+     * Maximum number of events delivered at once to PEs which override
+     * {@link AbstractPE#processBatch(List)}. Defaults to 1: no batching.
+     */
+    public void setMaxBatchSize(int maxBatchSize) {
+        this.maxBatchSize = maxBatchSize;
+    }
+
+    /**
+     * Factory of the worker queues. Defaults to {@link LinkedQueueFactory}.
+     */
+    public void setQueueFactory(QueueFactory queueFactory) {
+        this.queueFactory = queueFactory;
+    }
+
+    /**
+     * One event out of <code>latencySamplingInterval</code> has its time in
+     * queue and the execution time of the PEs it is delivered to recorded.
+     * Defaults to 16; 1 times every event and 0 disables the latency
+     * histograms.
+     */
+    public void setLatencySamplingInterval(int latencySamplingInterval) {
+        this.latencySamplingInterval = latencySamplingInterval;
+    }
+
+    /**
+     * @return a snapshot of the execution time of the PEs of the given
+     *         prototype, in nanoseconds, or null if none was recorded
+     */
+    public Histogram getExecutionLatency(String prototypeId) {
+        Histogram histogram = execLatencyByPrototype.get(prototypeId);
+        return (histogram == null) ? null : histogram.copy();
+    }
+
+    /**
+     * @return a snapshot of the time spent in the worker queues by the events
+     *         of the given stream, in nanoseconds, or null if none was
+     *         recorded
+     */
+    public Histogram getQueueLatency(String streamName) {
+        Histogram histogram = queueLatencyByStream.get(streamName);
+        return (histogram == null) ? null : histogram.copy();
+    }
+
     public void setMonitor(Monitor monitor) {
+        if (monitor != null) {
+            String core = S4_CORE_METRICS.toString();
+            enqueuedCounter = monitor.counter(pecontainer_ev_nq_ct.toString(),
+                                              core);
+            droppedCounter = monitor.counter(pecontainer_msg_drop_ct.toString(),
+                                             core);
+            priorityEnqueuedCounter = monitor.counter(pecontainer_priority_ev_nq_ct.toString(),
+                                                      core);
+            dequeuedCounter = monitor.counter(pecontainer_ev_dq_ct.toString(),
+                                              core);
+            processedCounter = monitor.counter(pecontainer_ev_process_ct.toString(),
+                                               core);
+            errorCounter = monitor.counter(pecontainer_ev_err_ct.toString(),
+                                           core);
+            execTimeCounter = monitor.counter(pecontainer_exec_elapse_time.toString(),
+                                              core);
+            queueSizeGauge = monitor.gauge(pecontainer_qsz.toString(), core);
+            priorityQueueSizeGauge = monitor.gauge(pecontainer_priority_qsz.toString(),
+                                                   core);
+        }
         this.monitor = monitor;
     }
 
+    /**
+     * Returns the application counter of the given metric for a PE or a
+     * stream, caching the handle so that the hot path does not look it up in
+     * the monitor again.
+     */
+    private Counter appCounter(ConcurrentMap<String, Counter> cache,
+                               MetricsName metricName, String at) {
+        Counter counter = cache.get(at);
+        if (counter == null) {
+            counter = monitor.counter(metricName.toString(),
+                                      S4_APP_METRICS.toString(),
+                                      "at",
+                                      at);
+            cache.putIfAbsent(at, counter);
+        }
+        return counter;
+    }
+
+    /**
+     * Returns the histogram of the given metric for a prototype or a stream.
+     * Histograms are kept even without a monitor, for runtime queries.
+     */
+    private Histogram appHistogram(ConcurrentMap<String, Histogram> cache,
+                                   MetricsName metricName, String at) {
+        Histogram histogram = cache.get(at);
+        if (histogram == null) {
+            if (monitor != null) {
+                histogram = monitor.histogram(metricName.toString(),
+                                              S4_APP_METRICS.toString(),
+                                              "at",
+                                              at);
+            } else {
+                histogram = new Histogram(new MetricKey(metricName.toString(),
+                                                        S4_APP_METRICS.toString(),
+                                                        "at",
+                                                        at));
+            }
+            Histogram existing = cache.putIfAbsent(at, histogram);
+            if (existing != null) {
+                histogram = existing;
+            }
+        }
+        return histogram;
+    }
+
+    private void sampleLatency(EventWrapper eventWrapper) {
+        if (latencySamplingInterval <= 0) {
+            return;
+        }
+        if (--samplingCountdown <= 0) {
+            samplingCountdown = latencySamplingInterval;
+            long now = System.nanoTime();
+            // 0 means not sampled
+            eventWrapper.setEnqueueTime(now == 0 ? 1 : now);
+        }
+    }
+
     public void setClock(Clock s4Clock) {
         this.clock = s4Clock;
     }
@@ -86,8 +324,12 @@ public class PEContainer implements Runnable, AsynchronousEventProcessor {
     public void addProcessor(AbstractPE processor) {
         System.out.println("adding pe: " + processor);
         PrototypeWrapper pw = new PrototypeWrapper(processor, clock);
-        prototypeWrappers.add(pw);
-        adviceLists.add(pw.advise());
+        List<EventAdvice> advices = pw.advise();
+        synchronized (this) {
+            prototypeWrappers.add(pw);
+            adviceLists.add(advices);
+            routingIndex = new RoutingIndex(prototypeWrappers, adviceLists);
+        }
     }
 
     public void setProcessors(AbstractPE[] processors) {
@@ -104,19 +346,43 @@ public class PEContainer implements Runnable, AsynchronousEventProcessor {
 
     }
 
-    List<List<EventAdvice>> adviceLists = new ArrayList<List<EventAdvice>>();
+    List<List<EventAdvice>> adviceLists = new CopyOnWriteArrayList<List<EventAdvice>>();
 
     public void init() {
-        workQueue = new LinkedBlockingQueue<EventWrapper>(maxQueueSize);
-        for (PrototypeWrapper pw : prototypeWrappers) {
-            adviceLists.add(pw.advise());
+        if (workerCount < 1) {
+            workerCount = 1;
         }
-        Thread t = new Thread(this, "PEContainer");
-        t.start();
-        t = new Thread(new Watcher());
+        workers = new Worker[workerCount];
+        for (int i = 0; i < workerCount; i++) {
+            workers[i] = new Worker(i,
+                                    queueFactory.<EventWrapper> createQueue(maxQueueSize,
+                                                                            false));
+        }
+        for (int i = 0; i < workerCount; i++) {
+            Thread t = new Thread(workers[i], workerCount == 1 ? "PEContainer"
+                    : "PEContainer-" + i);
+            t.start();
+        }
+        Thread t = new Thread(new Watcher());
         t.start();
     }
 
+    /**
+     * Index of the worker owning the PE instances keyed on the given value.
+     * <p>
+     * The hash is spread so that the worker placement does not correlate with
+     * the partitioning of keys across nodes, which hashes the same values.
+     */
+    int workerFor(String keyValue) {
+        if (workerCount == 1) {
+            return 0;
+        }
+        int h = (keyValue == null) ? 0 : keyValue.hashCode();
+        h ^= (h >>> 20) ^ (h >>> 12);
+        h ^= (h >>> 7) ^ (h >>> 4);
+        return (h & Integer.MAX_VALUE) % workerCount;
+    }
+
     /*
      * (non-Javadoc)
      * 
@@ -126,29 +392,159 @@ public class PEContainer implements Runnable, AsynchronousEventProcessor {
      */
     @Override
     public void queueWork(EventWrapper eventWrapper) {
+        try {
+            sampleLatency(eventWrapper);
+            RoutingIndex.Route route = routingIndex.route(eventWrapper.getStreamName());
+            if (route.kind == StreamKind.CHECKPOINTING) {
+                queuePriorityWork(checkpointingWorker(eventWrapper),
+                                  eventWrapper);
+                return;
+            }
+
+            // no PE subscribes to the stream: the event is not even decoded,
+            // only its keys are counted
+            if (route.kind == StreamKind.DATA && route.targets.length == 0
+                    && !(clock instanceof EventClock)) {
+                if (trackByKey) {
+                    countKeys(eventWrapper);
+                }
+                return;
+            }
+
+            List<CompoundKeyInfo> compoundKeys = eventWrapper.getCompoundKeys();
+            if (route.kind == StreamKind.CONTROL) {
+                if (workerCount > 1
+                        && eventWrapper.getEvent() instanceof PrototypeRequest) {
+                    queueQuiescentWork(eventWrapper);
+                    return;
+                }
+                int worker = 0;
+                if (compoundKeys != null && !compoundKeys.isEmpty()) {
+                    worker = workerFor(compoundKeys.get(0).getCompoundValue());
+                }
+                queuePriorityWork(worker, eventWrapper);
+                return;
+            }
+
+            if (workerCount == 1) {
+                queueWork(0, eventWrapper);
+                return;
+            }
+
+            // an event is delivered once to each worker owning one of its
+            // keys
+            int keyCount = (compoundKeys == null) ? 0 : compoundKeys.size();
+            int[] targets = new int[keyCount + 1];
+            int targetCount = 0;
+            for (int i = 0; i < keyCount; i++) {
+                targetCount = addTarget(targets,
+                                        targetCount,
+                                        workerFor(compoundKeys.get(i)
+                                                              .getCompoundValue()));
+            }
+            if (targetCount == 0 || route.hasKeylessTarget) {
+                targetCount = addTarget(targets,
+                                        targetCount,
+                                        workerFor(KEYLESS));
+            }
+            for (int i = 0; i < targetCount; i++) {
+                queueWork(targets[i], eventWrapper);
+            }
+        } catch (Exception e) {
+            logger.error("Cannot queue event " + eventWrapper, e);
+        }
+    }
+
+    private static int addTarget(int[] targets, int targetCount, int worker) {
+        for (int i = 0; i < targetCount; i++) {
+            if (targets[i] == worker) {
+                return targetCount;
+            }
+        }
+        targets[targetCount] = worker;
+        return targetCount + 1;
+    }
+
+    private int checkpointingWorker(EventWrapper eventWrapper) {
+        if (workerCount == 1) {
+            return 0;
+        }
+        Object event = eventWrapper.getEvent();
+        if (event instanceof CheckpointingEvent) {
+            return workerFor(((CheckpointingEvent) event).getSafeKeeperId()
+                                                          .getKey());
+        }
+        // rejected by the worker anyway
+        return 0;
+    }
+
+    private void queueWork(int worker, EventWrapper eventWrapper) {
         boolean isAddSucceed = false;
 
         try {
-            isAddSucceed = workQueue.offer(eventWrapper);
+            isAddSucceed = workers[worker].workQueue.offer(eventWrapper);
             if (monitor != null) {
                 if (isAddSucceed) {
-                    monitor.increment(pecontainer_ev_nq_ct.toString(),
-                                      1,
-                                      S4_CORE_METRICS.toString());
+                    enqueuedCounter.increment();
                 } else {
-                    monitor.increment(pecontainer_msg_drop_ct.toString(),
-                                      1,
-                                      S4_CORE_METRICS.toString());
+                    droppedCounter.increment();
                 }
-                monitor.set(pecontainer_qsz.toString(),
-                            getQueueSize(),
-                            S4_CORE_METRICS.toString());
+                queueSizeGauge.set(getQueueSize());
+            }
+        } catch (Exception e) {
+            logger.error("metrics name doesn't exist", e);
+        }
+    }
+
+    private void queuePriorityWork(int worker, EventWrapper eventWrapper) {
+        Worker w = workers[worker];
+        w.priorityQueue.add(eventWrapper);
+        // wake up the worker if it is waiting for data events. If the data
+        // queue is full, the worker is busy and looks at the priority lane
+        // before waiting again.
+        if (w.signalPending.compareAndSet(false, true)
+                && !w.workQueue.offer(PRIORITY_SIGNAL)) {
+            w.signalPending.set(false);
+        }
+        try {
+            if (monitor != null) {
+                priorityEnqueuedCounter.increment();
+                priorityQueueSizeGauge.set(w.priorityQueue.size());
             }
         } catch (Exception e) {
             logger.error("metrics name doesn't exist", e);
         }
     }
 
+    /**
+     * Queues an event to every worker, in the same order for all of them, so
+     * that two such events cannot each hold some workers waiting for the
+     * others.
+     */
+    private synchronized void queueQuiescentWork(EventWrapper eventWrapper) {
+        QuiescentEventWrapper quiescentEventWrapper = new QuiescentEventWrapper(eventWrapper,
+                                                                                workerCount);
+        for (int i = 0; i < workerCount; i++) {
+            queuePriorityWork(i, quiescentEventWrapper);
+        }
+    }
+
+    /**
+     * An event processed by the first worker once all the other workers
+     * reached it, and wait for it to be processed.
+     */
+    static class QuiescentEventWrapper extends EventWrapper {
+        final CountDownLatch arrived;
+        final CountDownLatch done = new CountDownLatch(1);
+
+        QuiescentEventWrapper(EventWrapper eventWrapper, int workerCount) {
+            super(eventWrapper.getStreamName(),
+                  eventWrapper.getEvent(),
+                  eventWrapper.getCompoundKeys());
+            arrived = new CountDownLatch(workerCount - 1);
+        }
+    }
+
     // This will always be called by a different thread than the one executing
     // run()
     /*
@@ -158,148 +554,260 @@ public class PEContainer implements Runnable, AsynchronousEventProcessor {
      */
     @Override
     public int getQueueSize() {
-        return workQueue.size();
+        int size = 0;
+        for (Worker worker : workers) {
+            size += worker.workQueue.size() + worker.priorityQueue.size();
+        }
+        return size;
     }
 
     /**
-     * An event is a control event if its stream name begins with the character
-     * '#'.
-     * 
-     * Control events are handled specially.
-     * 
-     * @param e
-     *            the event wrapper to test
-     * @return true if and only if e is a control message.
+     * Drains the queues of one worker.
      */
-    private boolean testControlEvent(EventWrapper e) {
-        String streamName = e.getStreamName();
+    class Worker implements Runnable {
+        private final int index;
+        // batches of events not yet delivered, by PE instance
+        private final Map<AbstractPE, PendingBatch> pendingBatches = new IdentityHashMap<AbstractPE, PendingBatch>();
+        private final List<PendingBatch> pendingOrder = new ArrayList<PendingBatch>();
+        final BlockingQueue<EventWrapper> workQueue;
+        final BlockingQueue<EventWrapper> priorityQueue = new LinkedBlockingQueue<EventWrapper>();
+        // true while a PRIORITY_SIGNAL is in the data queue
+        final AtomicBoolean signalPending = new AtomicBoolean(false);
+
+        Worker(int index, BlockingQueue<EventWrapper> workQueue) {
+            this.index = index;
+            this.workQueue = workQueue;
+        }
 
-        if (streamName.length() > 0 && streamName.charAt(0) == '#')
-            return true;
+        public void run() {
+            int drainSize = Math.max(DRAIN_BATCH_SIZE, maxBatchSize);
+            List<EventWrapper> batch = new ArrayList<EventWrapper>(drainSize);
+            while (true) {
+                try {
+                    EventWrapper first = workQueue.poll();
+                    if (first == null) {
+                        // never wait with pending priority events
+                        if (!priorityQueue.isEmpty()) {
+                            processPriorityEvents(0);
+                            continue;
+                        }
+                        first = workQueue.take();
+                    }
+                    batch.add(first);
+                    workQueue.drainTo(batch, drainSize - 1);
+                    for (int i = 0; i < batch.size(); i++) {
+                        EventWrapper eventWrapper = batch.get(i);
+                        if (eventWrapper == PRIORITY_SIGNAL) {
+                            signalPending.set(false);
+                        }
+                        if (!priorityQueue.isEmpty()) {
+                            processPriorityEvents(priorityRatio);
+                        }
+                        if (eventWrapper != PRIORITY_SIGNAL) {
+                            safeProcess(eventWrapper);
+                        }
+                    }
+                    flushPendingBatches();
+                } catch (InterruptedException ie) {
+                    Logger.getLogger("s4").warn("PEContainer is interrupted",
+                                                ie);
+                    return;
+                } catch (Exception e) {
+                    Logger.getLogger("s4")
+                          .error("Exception choosing processing element to run",
+                                 e);
+                } finally {
+                    batch.clear();
+                }
+            }
+        }
 
-        return false;
-    }
+        /**
+         * @param max
+         *            maximum number of events to process, 0 for all the
+         *            available ones
+         */
+        private void processPriorityEvents(int max) {
+            // priority events (e.g. checkpoints, queries) must see the
+            // effect of the data events which were queued before them
+            flushPendingBatches();
+            EventWrapper eventWrapper;
+            int count = 0;
+            while ((max <= 0 || count < max)
+                    && (eventWrapper = priorityQueue.poll()) != null) {
+                if (eventWrapper instanceof QuiescentEventWrapper) {
+                    processQuiescent((QuiescentEventWrapper) eventWrapper);
+                } else {
+                    safeProcess(eventWrapper);
+                }
+                count++;
+            }
+        }
 
-    public void run() {
-        long startTime, endTime;
-        while (true) {
-            EventWrapper eventWrapper = null;
+        private void processQuiescent(QuiescentEventWrapper eventWrapper) {
             try {
-                eventWrapper = workQueue.take();
-                if (clock instanceof EventClock) {
-                    EventClock eventClock = (EventClock) clock;
-                    eventClock.update(eventWrapper);
-                    // To what time to update the clock
+                if (index != 0) {
+                    eventWrapper.arrived.countDown();
+                    eventWrapper.done.await();
+                    return;
                 }
-                if (trackByKey) {
-                    boolean foundOne = false;
-                    for (CompoundKeyInfo compoundKeyInfo : eventWrapper.getCompoundKeys()) {
-                        foundOne = true;
+                try {
+                    eventWrapper.arrived.await();
+                    safeProcess(eventWrapper);
+                } finally {
+                    eventWrapper.done.countDown();
+                }
+            } catch (InterruptedException ie) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        private void safeProcess(EventWrapper eventWrapper) {
+            try {
+                process(eventWrapper);
+            } catch (Exception e) {
+                Logger.getLogger("s4")
+                      .error("Exception choosing processing element to run", e);
+            }
+        }
+
+        private void invoke(AbstractPE pe, EventWrapper eventWrapper,
+                            CompoundKeyInfo compoundKeyInfo) {
+            if (maxBatchSize <= 1 || !pe.isBatchProcessing()) {
+                invokePE(pe, eventWrapper, compoundKeyInfo);
+                return;
+            }
+            PendingBatch pendingBatch = pendingBatches.get(pe);
+            if (pendingBatch != null
+                    && !pendingBatch.streamName.equals(eventWrapper.getStreamName())) {
+                flush(pendingBatch);
+                pendingBatch = null;
+            }
+            if (pendingBatch == null) {
+                pendingBatch = new PendingBatch(pe,
+                                                eventWrapper.getStreamName(),
+                                                compoundKeyInfo);
+                pendingBatches.put(pe, pendingBatch);
+                pendingOrder.add(pendingBatch);
+            }
+            pendingBatch.events.add(eventWrapper.getEvent());
+            pendingBatch.sampled |= eventWrapper.getEnqueueTime() != 0;
+            if (pendingBatch.events.size() >= maxBatchSize) {
+                flush(pendingBatch);
+            }
+        }
+
+        private void flush(PendingBatch pendingBatch) {
+            pendingBatches.remove(pendingBatch.pe);
+            pendingOrder.remove(pendingBatch);
+            invokeBatch(pendingBatch);
+        }
+
+        private void flushPendingBatches() {
+            if (pendingOrder.isEmpty()) {
+                return;
+            }
+            for (PendingBatch pendingBatch : pendingOrder) {
+                invokeBatch(pendingBatch);
+            }
+            pendingOrder.clear();
+            pendingBatches.clear();
+        }
+
+        private boolean owns(String keyValue) {
+            return workerCount == 1 || workerFor(keyValue) == index;
+        }
+
+        private void process(EventWrapper eventWrapper) {
+            long startTime, endTime;
+            if (clock instanceof EventClock) {
+                EventClock eventClock = (EventClock) clock;
+                eventClock.update(eventWrapper);
+                // To what time to update the clock
+            }
+            if (trackByKey) {
+                boolean foundOne = false;
+                for (CompoundKeyInfo compoundKeyInfo : eventWrapper.getCompoundKeys()) {
+                    foundOne = true;
+                    if (owns(compoundKeyInfo.getCompoundValue())) {
                         updateCount(eventWrapper.getStreamName() + " "
                                 + compoundKeyInfo.getCompoundKey());
                     }
-
-                    if (!foundOne) {
-                        updateCount(eventWrapper.getStreamName() + " *");
-                    }
                 }
 
-                startTime = System.currentTimeMillis();
-                if (logger.isDebugEnabled()) {
-                    logger.debug("STEP 5 (PEContainer): workQueue.take - "
-                            + eventWrapper.toString());
-                }
-                // Logger.getLogger("s4").debug(
-                // "Incoming: " + event.getEventName());
-                if (monitor != null) {
-                    monitor.increment(pecontainer_ev_dq_ct.toString(),
-                                      1,
-                                      S4_CORE_METRICS.toString());
+                if (!foundOne) {
+                    updateCount(eventWrapper.getStreamName() + " *");
                 }
-                // printPlainPartitionInfoList(event.getCompoundKeyList());
-
-                if (eventWrapper.getStreamName().endsWith("_checkpointing")
-                        || eventWrapper.getStreamName().endsWith("_recovery")) {
-                    // in that case, we don't need to iterate over all prototypes and advises: 
-                    // the target PE is specified in the event
-                    handleCheckpointingOrRecovery(eventWrapper);
-                } else {
-
-                    boolean ctrlEvent = testControlEvent(eventWrapper);
-
-                    // execute the PEs interested in this event
-                    for (int i = 0; i < prototypeWrappers.size(); i++) {
-                        if (logger.isDebugEnabled()) {
-                            logger.debug("STEP 6 (PEContainer): prototypeWrappers("
-                                    + i
-                                    + ") - "
-                                    + prototypeWrappers.get(i).toString()
-                                    + " - " + eventWrapper.getStreamName());
-                        }
+            }
 
-                        // first check if this is a control message and handle
-                        // it if
-                        // so.
-                        if (ctrlEvent) {
-                            if (controlEventProcessor != null) {
-                                controlEventProcessor.process(eventWrapper,
-                                        prototypeWrappers.get(i));
-                            }
+            startTime = System.currentTimeMillis();
+            if (logger.isDebugEnabled()) {
+                logger.debug("STEP 5 (PEContainer): workQueue.take - "
+                        + eventWrapper.toString());
+            }
+            // Logger.getLogger("s4").debug(
+            // "Incoming: " + event.getEventName());
+            if (monitor != null) {
+                dequeuedCounter.increment();
+            }
+            if (eventWrapper.getEnqueueTime() != 0) {
+                appHistogram(queueLatencyByStream,
+                             pecontainer_queue_latency,
+                             eventWrapper.getStreamName()).record(System.nanoTime()
+                        - eventWrapper.getEnqueueTime());
+            }
+            // printPlainPartitionInfoList(event.getCompoundKeyList());
+
+            RoutingIndex.Route route = routingIndex.route(eventWrapper.getStreamName());
+            if (route.kind == StreamKind.CHECKPOINTING) {
+                // in that case, we don't need to iterate over all prototypes and advises: 
+                // the target PE is specified in the event
+                handleCheckpointingOrRecovery(eventWrapper, route);
+            } else if (route.kind == StreamKind.CONTROL) {
+                if (controlEventProcessor != null) {
+                    for (RoutingIndex.Target target : route.targets) {
+                        controlEventProcessor.process(eventWrapper,
+                                                      target.prototype);
+                    }
+                }
+            } else {
+                // execute the PEs interested in this event
+                for (RoutingIndex.Target target : route.targets) {
+                    if (logger.isDebugEnabled()) {
+                        logger.debug("STEP 6 (PEContainer): " + target
+                                + " - " + eventWrapper.getStreamName());
+                    }
 
-                            continue;
+                    if (target.keyless) {
+                        if (owns(KEYLESS)) {
+                            invoke(target.prototype.getPE(KEYLESS),
+                                   eventWrapper,
+                                   null);
                         }
+                        continue;
+                    }
 
-                        // otherwise, continue processing event.
-                        List<EventAdvice> adviceList = adviceLists.get(i);
-                        for (EventAdvice eventAdvice : adviceList) {
-                            if (eventAdvice.getEventName().equals("*")
-                                    || eventAdvice.getEventName().equals(
-                                            eventWrapper.getStreamName())) {
-                                // event name matches
-                            } else {
-                                continue;
-                            }
-
-                            if (eventAdvice.getKey().equals("*")) {
-                                invokePE(prototypeWrappers.get(i).getPE("*"),
-                                        eventWrapper, null);
-                                continue;
-                            }
-                            
-                            for (CompoundKeyInfo compoundKeyInfo : eventWrapper
-                                    .getCompoundKeys()) {
-                                if (eventAdvice.getKey().equals(
-                                        compoundKeyInfo.getCompoundKey())) {
-                                    invokePE(
-                                            prototypeWrappers
-                                                    .get(i)
-                                                    .getPE(compoundKeyInfo
-                                                            .getCompoundValue()),
-                                            eventWrapper, compoundKeyInfo);
-                                }
-                            }
+                    for (CompoundKeyInfo compoundKeyInfo : eventWrapper.getCompoundKeys()) {
+                        if (target.key.equals(compoundKeyInfo.getCompoundKey())
+                                && owns(compoundKeyInfo.getCompoundValue())) {
+                            invoke(target.prototype.getPE(compoundKeyInfo.getCompoundValue()),
+                                   eventWrapper,
+                                   compoundKeyInfo);
                         }
                     }
                 }
+            }
 
-                endTime = System.currentTimeMillis();
-                if (monitor != null) {
-                    // TODO: need to be changed for more accurate calc
-                    monitor.increment(pecontainer_exec_elapse_time.toString(),
-                                      (int) (endTime - startTime),
-                                      S4_CORE_METRICS.toString());
-                }
-            } catch (InterruptedException ie) {
-                Logger.getLogger("s4").warn("PEContainer is interrupted", ie);
-                return;
-            } catch (Exception e) {
-                Logger.getLogger("s4")
-                      .error("Exception choosing processing element to run", e);
+            endTime = System.currentTimeMillis();
+            if (monitor != null) {
+                // TODO: need to be changed for more accurate calc
+                execTimeCounter.add(endTime - startTime);
             }
         }
     }
 
-    private void handleCheckpointingOrRecovery(EventWrapper eventWrapper) {
+    private void handleCheckpointingOrRecovery(EventWrapper eventWrapper,
+                                               RoutingIndex.Route route) {
         CheckpointingEvent checkpointingEvent = null;
         try {
             checkpointingEvent = (CheckpointingEvent) eventWrapper.getEvent();
@@ -312,60 +820,48 @@ public class PEContainer implements Runnable, AsynchronousEventProcessor {
         // 1. event is targeted towards PE prototype whose name is given by the
         // name of the stream
         // 2. PE id is given by the event
-        for (int i = 0; i < prototypeWrappers.size(); i++) {
+        // the route only holds the prototypes subscribed to the stream
+        for (RoutingIndex.Target target : route.targets) {
             if (checkpointingEvent.getSafeKeeperId().getPrototypeId()
-                    .equals(prototypeWrappers.get(i).getId())) {
-                
-                // check that PE is subscribed to checkpointing stream
-                List<EventAdvice> advices = adviceLists.get(i);
-                for (EventAdvice eventAdvice : advices) {
-                    if (eventAdvice.getEventName().equals(eventWrapper.getStreamName())){
-                        invokePE(
-                                prototypeWrappers.get(i).getPE(
-                                        checkpointingEvent.getSafeKeeperId().getKey()),
-                                        eventWrapper, null);
-                        break;
-                    }
-                }
+                    .equals(target.prototype.getId())) {
+                invokePE(target.prototype.getPE(checkpointingEvent.getSafeKeeperId()
+                                                                  .getKey()),
+                         eventWrapper,
+                         null);
             }
         }
-        
-
     }
 
     private void invokePE(AbstractPE pe, EventWrapper eventWrapper,
                           CompoundKeyInfo compoundKeyInfo) {
         try {
+            boolean sampled = eventWrapper.getEnqueueTime() != 0;
+            long startNanos = sampled ? System.nanoTime() : 0;
             long startTime = System.currentTimeMillis();
             pe.execute(eventWrapper.getStreamName(),
                        compoundKeyInfo,
                        eventWrapper.getEvent());
             long endTime = System.currentTimeMillis();
+            if (sampled) {
+                appHistogram(execLatencyByPrototype,
+                             pecontainer_exec_latency,
+                             pe.getId()).record(System.nanoTime() - startNanos);
+            }
             if (monitor != null) {
-                monitor.increment(pecontainer_ev_process_ct.toString(),
-                                  1,
-                                  S4_CORE_METRICS.toString());
-                monitor.increment(pecontainer_ev_process_ct.toString(),
-                                  1,
-                                  S4_APP_METRICS.toString(),
-                                  "at",
-                                  pe.getId());
-                monitor.increment(pecontainer_exec_elapse_time.toString(),
-                                  (int) (endTime - startTime),
-                                  S4_APP_METRICS.toString(),
-                                  "at",
-                                  eventWrapper.getStreamName());
+                processedCounter.increment();
+                appCounter(processedByPE,
+                           pecontainer_ev_process_ct,
+                           pe.getId()).increment();
+                appCounter(execTimeByStream,
+                           pecontainer_exec_elapse_time,
+                           eventWrapper.getStreamName()).add(endTime - startTime);
             }
         } catch (Exception e) {
             if (monitor != null) {
-                monitor.increment(pecontainer_ev_err_ct.toString(),
-                                  1,
-                                  S4_CORE_METRICS.toString());
-                monitor.increment(pecontainer_ev_err_ct.toString(),
-                                  1,
-                                  S4_APP_METRICS.toString(),
-                                  "at",
-                                  pe.getId());
+                errorCounter.increment();
+                appCounter(errorsByPE,
+                           pecontainer_ev_err_ct,
+                           pe.getId()).increment();
             }
             Logger.getLogger("s4")
                   .error("Exception running processing element", e);
@@ -373,13 +869,93 @@ public class PEContainer implements Runnable, AsynchronousEventProcessor {
 
     }
 
+    /**
+     * Events waiting to be delivered to a PE as a batch.
+     */
+    static class PendingBatch {
+        final AbstractPE pe;
+        final String streamName;
+        final CompoundKeyInfo compoundKeyInfo;
+        final List<Object> events = new ArrayList<Object>();
+        // true if one of the events is sampled for latency metrics
+        boolean sampled;
+
+        PendingBatch(AbstractPE pe, String streamName,
+                CompoundKeyInfo compoundKeyInfo) {
+            this.pe = pe;
+            this.streamName = streamName;
+            this.compoundKeyInfo = compoundKeyInfo;
+        }
+    }
+
+    private void invokeBatch(PendingBatch pendingBatch) {
+        AbstractPE pe = pendingBatch.pe;
+        int count = pendingBatch.events.size();
+        try {
+            long startNanos = pendingBatch.sampled ? System.nanoTime() : 0;
+            long startTime = System.currentTimeMillis();
+            pe.executeBatch(pendingBatch.streamName,
+                            pendingBatch.compoundKeyInfo,
+                            pendingBatch.events);
+            long endTime = System.currentTimeMillis();
+            if (pendingBatch.sampled) {
+                // a batch is timed as a single execution
+                appHistogram(execLatencyByPrototype,
+                             pecontainer_exec_latency,
+                             pe.getId()).record(System.nanoTime() - startNanos);
+            }
+            if (monitor != null) {
+                processedCounter.add(count);
+                appCounter(processedByPE,
+                           pecontainer_ev_process_ct,
+                           pe.getId()).add(count);
+                appCounter(execTimeByStream,
+                           pecontainer_exec_elapse_time,
+                           pendingBatch.streamName).add(endTime - startTime);
+            }
+        } catch (Exception e) {
+            if (monitor != null) {
+                errorCounter.increment();
+                appCounter(errorsByPE,
+                           pecontainer_ev_err_ct,
+                           pe.getId()).increment();
+            }
+            Logger.getLogger("s4")
+                  .error("Exception running processing element", e);
+        }
+    }
+
+    /**
+     * Counts the keys of an event which is not queued, as the worker would
+     * have: all of them, since no other worker counts it.
+     */
+    private void countKeys(EventWrapper eventWrapper) {
+        List<CompoundKeyInfo> compoundKeys = eventWrapper.getCompoundKeys();
+        if (compoundKeys == null || compoundKeys.isEmpty()) {
+            updateCount(eventWrapper.getStreamName() + " *");
+            return;
+        }
+        for (CompoundKeyInfo compoundKeyInfo : compoundKeys) {
+            updateCount(eventWrapper.getStreamName() + " "
+                    + compoundKeyInfo.getCompoundKey());
+        }
+    }
+
+    int getCount(String key) {
+        AtomicInteger count = countByEventType.get(key);
+        return (count == null) ? 0 : count.get();
+    }
+
     private void updateCount(String key) {
-        Integer countObj = countByEventType.get(key);
-        if (countObj == null) {
-            countObj = 0;
+        AtomicInteger count = countByEventType.get(key);
+        if (count == null) {
+            AtomicInteger newCount = new AtomicInteger();
+            count = countByEventType.putIfAbsent(key, newCount);
+            if (count == null) {
+                count = newCount;
+            }
         }
-        countObj++;
-        countByEventType.put(key, countObj);
+        count.incrementAndGet();
     }
 
     class Watcher implements Runnable {
@@ -410,7 +986,7 @@ public class PEContainer implements Runnable, AsynchronousEventProcessor {
 
                     if (trackByKey) {
                         for (String key : countByEventType.keySet()) {
-                            Integer countObj = countByEventType.get(key);
+                            AtomicInteger countObj = countByEventType.get(key);
                             if (countObj != null) {
                                 Logger.getLogger("s4").info("Count by " + key
                                         + ": " + countObj);
@@ -0,0 +1,212 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.s4.processor;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Immutable index from stream names to the PEs interested in them.
+ * <p>
+ * The index is computed from the advices of the prototypes when a prototype
+ * is added to the {@link PEContainer}, so that routing an event only takes a
+ * single lookup of its stream name followed by a walk of the resulting
+ * {@link Route}. Targets are kept in the order the container used to scan the
+ * prototypes and their advices: prototype order, then advice order.
+ * <p>
+ * Streams which are not explicitly advised (control streams, streams only
+ * subscribed through a <code>*</code> advice) are resolved on first use and
+ * cached.
+ */
+final class RoutingIndex {
+
+    static final String WILDCARD = "*";
+
+    enum StreamKind {
+        /** application events */
+        DATA,
+        /** control events: stream name starts with <code>#</code> */
+        CONTROL,
+        /** checkpointing and recovery events */
+        CHECKPOINTING
+    }
+
+    /**
+     * A PE prototype interested in a stream, and the compound key on which
+     * its instances are keyed.
+     */
+    static final class Target {
+        final int prototypeIndex;
+        final PrototypeWrapper prototype;
+        final String key;
+        final boolean keyless;
+
+        Target(int prototypeIndex, PrototypeWrapper prototype, String key) {
+            this.prototypeIndex = prototypeIndex;
+            this.prototype = prototype;
+            this.key = key;
+            this.keyless = WILDCARD.equals(key);
+        }
+
+        public String toString() {
+            return prototype.getId() + ":{" + key + "}";
+        }
+    }
+
+    /**
+     * Precomputed routing of a stream.
+     */
+    static final class Route {
+        final String streamName;
+        final StreamKind kind;
+        final Target[] targets;
+        final boolean hasKeylessTarget;
+
+        Route(String streamName, StreamKind kind, Target[] targets) {
+            this.streamName = streamName;
+            this.kind = kind;
+            this.targets = targets;
+            boolean keyless = false;
+            for (Target target : targets) {
+                keyless |= target.keyless;
+            }
+            this.hasKeylessTarget = keyless;
+        }
+
+        public String toString() {
+            StringBuilder sb = new StringBuilder();
+            sb.append(streamName).append(" (").append(kind).append("): ");
+            for (int i = 0; i < targets.length; i++) {
+                if (i > 0) {
+                    sb.append(", ");
+                }
+                sb.append(targets[i]);
+            }
+            return sb.toString();
+        }
+    }
+
+    private final PrototypeWrapper[] prototypes;
+    private final List<List<EventAdvice>> adviceLists;
+    private final Map<String, Route> routes;
+    private final Map<String, Route> resolvedRoutes = new ConcurrentHashMap<String, Route>();
+
+    static final RoutingIndex EMPTY = new RoutingIndex(new ArrayList<PrototypeWrapper>(),
+                                                       new ArrayList<List<EventAdvice>>());
+
+    /**
+     * @param prototypeWrappers
+     *            the prototypes, in container order
+     * @param adviceLists
+     *            the advices of each prototype, at the same index
+     */
+    RoutingIndex(List<PrototypeWrapper> prototypeWrappers,
+            List<List<EventAdvice>> adviceLists) {
+        this.prototypes = prototypeWrappers.toArray(new PrototypeWrapper[prototypeWrappers.size()]);
+        this.adviceLists = new ArrayList<List<EventAdvice>>(adviceLists.subList(0,
+                                                                                prototypes.length));
+
+        Set<String> streamNames = new LinkedHashSet<String>();
+        for (List<EventAdvice> advices : this.adviceLists) {
+            for (EventAdvice eventAdvice : advices) {
+                if (!WILDCARD.equals(eventAdvice.getEventName())) {
+                    streamNames.add(eventAdvice.getEventName());
+                }
+            }
+        }
+
+        Map<String, Route> routes = new HashMap<String, Route>();
+        for (String streamName : streamNames) {
+            routes.put(streamName, buildRoute(streamName));
+        }
+        this.routes = routes;
+    }
+
+    /**
+     * @return the routing of the given stream; never null.
+     */
+    Route route(String streamName) {
+        Route route = routes.get(streamName);
+        if (route == null) {
+            route = resolvedRoutes.get(streamName);
+            if (route == null) {
+                route = buildRoute(streamName);
+                resolvedRoutes.put(streamName, route);
+            }
+        }
+        return route;
+    }
+
+    PrototypeWrapper[] getPrototypes() {
+        return prototypes;
+    }
+
+    static StreamKind classify(String streamName) {
+        if (streamName.endsWith("_checkpointing")
+                || streamName.endsWith("_recovery")) {
+            return StreamKind.CHECKPOINTING;
+        }
+        if (streamName.length() > 0 && streamName.charAt(0) == '#') {
+            return StreamKind.CONTROL;
+        }
+        return StreamKind.DATA;
+    }
+
+    private Route buildRoute(String streamName) {
+        StreamKind kind = classify(streamName);
+        List<Target> targets = new ArrayList<Target>();
+        for (int i = 0; i < prototypes.length; i++) {
+            switch (kind) {
+            case CONTROL:
+                // the control event processor decides which prototypes
+                // handle the event
+                targets.add(new Target(i, prototypes[i], null));
+                break;
+            case CHECKPOINTING:
+                // only prototypes explicitly subscribed to the stream, at most
+                // once each
+                for (EventAdvice eventAdvice : adviceLists.get(i)) {
+                    if (eventAdvice.getEventName().equals(streamName)) {
+                        targets.add(new Target(i,
+                                               prototypes[i],
+                                               eventAdvice.getKey()));
+                        break;
+                    }
+                }
+                break;
+            default:
+                for (EventAdvice eventAdvice : adviceLists.get(i)) {
+                    if (eventAdvice.getEventName().equals(WILDCARD)
+                            || eventAdvice.getEventName().equals(streamName)) {
+                        targets.add(new Target(i,
+                                               prototypes[i],
+                                               eventAdvice.getKey()));
+                    }
+                }
+            }
+        }
+        return new Route(streamName,
+                         kind,
+                         targets.toArray(new Target[targets.size()]));
+    }
+}
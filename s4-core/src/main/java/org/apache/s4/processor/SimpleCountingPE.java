@@ -21,7 +21,7 @@ import org.apache.s4.persist.Persister;
 
 import java.util.List;
 
-public class SimpleCountingPE extends AbstractPE {
+public class SimpleCountingPE extends AbstractPE implements MergeablePE {
     private boolean clearOnOutput;
     private OutputFormatter outputFormatter;
     private Persister persister;
@@ -91,4 +91,23 @@ public class SimpleCountingPE extends AbstractPE {
         }
     }
 
+    public Object takePartialState() {
+        synchronized (this) {
+            if (!dirty) {
+                return null;
+            }
+            Long partialCount = new Long(counter);
+            counter = 0;
+            dirty = false;
+            return partialCount;
+        }
+    }
+
+    public void mergePartialState(Object partialState) {
+        synchronized (this) {
+            counter += (Long) partialState;
+            dirty = true;
+        }
+    }
+
 }
@@ -0,0 +1,241 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.s4.schema;
+
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.bcel.Constants;
+import org.apache.bcel.classfile.JavaClass;
+import org.apache.bcel.generic.BranchInstruction;
+import org.apache.bcel.generic.ClassGen;
+import org.apache.bcel.generic.ConstantPoolGen;
+import org.apache.bcel.generic.InstructionFactory;
+import org.apache.bcel.generic.InstructionHandle;
+import org.apache.bcel.generic.InstructionList;
+import org.apache.bcel.generic.MethodGen;
+import org.apache.bcel.generic.ObjectType;
+import org.apache.bcel.generic.Type;
+import org.apache.log4j.Logger;
+
+/**
+ * Generates {@link PropertyAccessor}s which call a chain of getters directly,
+ * instead of through {@link Method#invoke(Object, Object...)}.
+ * <p>
+ * For the getters <code>getA</code>, <code>getB</code> of a key path
+ * <code>a/b</code>, the generated accessor is equivalent to:
+ * 
+ * <pre>
+ * public Object get(Object record) {
+ *     A a = ((Event) record).getA();
+ *     if (a == null) {
+ *         return null;
+ *     }
+ *     return box(a.getB());
+ * }
+ * </pre>
+ * 
+ * Getters of classes which are not public cannot be called from generated
+ * code; they are then called by reflection.
+ */
+public class AccessorGenerator {
+    private static Logger logger = Logger.getLogger(AccessorGenerator.class);
+    private static final String ACCESSOR_INTERFACE = PropertyAccessor.class.getName();
+    private static final AtomicInteger classCount = new AtomicInteger();
+
+    /**
+     * @param getters
+     *            no-argument getters, each one declared by a supertype of the
+     *            type returned by the previous one; all but the last must
+     *            return an object
+     */
+    public static PropertyAccessor generate(List<Method> getters) {
+        if (getters.isEmpty()) {
+            throw new IllegalArgumentException("No getter to generate an accessor for");
+        }
+        for (Method getter : getters) {
+            if (!Modifier.isPublic(getter.getDeclaringClass().getModifiers())) {
+                return new ReflectiveAccessor(getters);
+            }
+        }
+        try {
+            return (PropertyAccessor) generateClass(getters).newInstance();
+        } catch (Throwable t) {
+            logger.warn("Cannot generate accessor for " + getters
+                    + ", using reflection", t);
+            return new ReflectiveAccessor(getters);
+        }
+    }
+
+    private static Class<?> generateClass(List<Method> getters) {
+        String className = "org.apache.s4.schema.GeneratedAccessor"
+                + classCount.incrementAndGet();
+
+        ClassGen cg = new ClassGen(className,
+                                   "java.lang.Object",
+                                   className + ".java",
+                                   Constants.ACC_PUBLIC | Constants.ACC_SUPER
+                                           | Constants.ACC_FINAL,
+                                   new String[] { ACCESSOR_INTERFACE });
+        ConstantPoolGen cp = cg.getConstantPool();
+        InstructionFactory instFactory = new InstructionFactory(cg, cp);
+
+        cg.addEmptyConstructor(Constants.ACC_PUBLIC);
+
+        InstructionList il = new InstructionList();
+        MethodGen method = new MethodGen(Constants.ACC_PUBLIC,
+                                         Type.OBJECT,
+                                         new Type[] { Type.OBJECT },
+                                         new String[] { "record" },
+                                         "get",
+                                         className,
+                                         il,
+                                         cp);
+
+        List<BranchInstruction> nullChecks = new ArrayList<BranchInstruction>();
+        il.append(InstructionFactory.createLoad(Type.OBJECT, 1));
+        for (int i = 0; i < getters.size(); i++) {
+            Method getter = getters.get(i);
+            if (i > 0) {
+                // the previous value is on the stack
+                il.append(InstructionFactory.createDup(1));
+                BranchInstruction ifNull = InstructionFactory.createBranchInstruction(Constants.IFNULL,
+                                                                                      null);
+                il.append(ifNull);
+                nullChecks.add(ifNull);
+            }
+            Class<?> owner = getter.getDeclaringClass();
+            il.append(instFactory.createCheckCast(new ObjectType(owner.getName())));
+            il.append(instFactory.createInvoke(owner.getName(),
+                                               getter.getName(),
+                                               Type.getType(getter.getReturnType()),
+                                               Type.NO_ARGS,
+                                               owner.isInterface() ? Constants.INVOKEINTERFACE
+                                                       : Constants.INVOKEVIRTUAL));
+        }
+        Class<?> valueType = getters.get(getters.size() - 1).getReturnType();
+        if (valueType.isPrimitive()) {
+            Class<?> boxType = boxType(valueType);
+            il.append(instFactory.createInvoke(boxType.getName(),
+                                               "valueOf",
+                                               Type.getType(boxType),
+                                               new Type[] { Type.getType(valueType) },
+                                               Constants.INVOKESTATIC));
+        }
+        il.append(InstructionFactory.createReturn(Type.OBJECT));
+        if (!nullChecks.isEmpty()) {
+            // an intermediate value is null: it is on the stack, return it
+            InstructionHandle returnNull = il.append(InstructionFactory.createReturn(Type.OBJECT));
+            for (BranchInstruction nullCheck : nullChecks) {
+                nullCheck.setTarget(returnNull);
+            }
+        }
+
+        method.setMaxStack();
+        method.setMaxLocals();
+        cg.addMethod(method.getMethod());
+        il.dispose();
+
+        JavaClass jc = cg.getJavaClass();
+        ClassLoader parent = getters.get(0).getDeclaringClass().getClassLoader();
+        if (parent == null) {
+            parent = AccessorGenerator.class.getClassLoader();
+        }
+        return new AccessorClassLoader(parent).defineClass(className,
+                                                           jc.getBytes());
+    }
+
+    private static Class<?> boxType(Class<?> primitiveType) {
+        if (primitiveType == Integer.TYPE) {
+            return Integer.class;
+        } else if (primitiveType == Long.TYPE) {
+            return Long.class;
+        } else if (primitiveType == Boolean.TYPE) {
+            return Boolean.class;
+        } else if (primitiveType == Double.TYPE) {
+            return Double.class;
+        } else if (primitiveType == Float.TYPE) {
+            return Float.class;
+        } else if (primitiveType == Short.TYPE) {
+            return Short.class;
+        } else if (primitiveType == Byte.TYPE) {
+            return Byte.class;
+        } else if (primitiveType == Character.TYPE) {
+            return Character.class;
+        }
+        throw new IllegalArgumentException("Cannot box " + primitiveType);
+    }
+
+    /**
+     * Loads a generated accessor. The parent is the loader of the record
+     * class, so that the accessor can refer to it. The accessor interface is
+     * found through the parent too; when it is not visible from there, it is
+     * taken from the loader of this class.
+     */
+    static class AccessorClassLoader extends ClassLoader {
+        AccessorClassLoader(ClassLoader parent) {
+            super(parent);
+        }
+
+        @Override
+        protected Class<?> loadClass(String name, boolean resolve)
+                throws ClassNotFoundException {
+            if (name.equals(ACCESSOR_INTERFACE)) {
+                return PropertyAccessor.class;
+            }
+            return super.loadClass(name, resolve);
+        }
+
+        Class<?> defineClass(String name, byte[] bytes) {
+            return defineClass(name, bytes, 0, bytes.length);
+        }
+    }
+
+    /**
+     * Calls the getters by reflection, for the classes generated code cannot
+     * access.
+     */
+    static class ReflectiveAccessor implements PropertyAccessor {
+        private final Method[] getters;
+
+        ReflectiveAccessor(List<Method> getters) {
+            this.getters = getters.toArray(new Method[getters.size()]);
+        }
+
+        public Object get(Object record) {
+            Object value = record;
+            try {
+                for (Method getter : getters) {
+                    if (value == null) {
+                        return null;
+                    }
+                    value = getter.invoke(value);
+                }
+            } catch (InvocationTargetException e) {
+                throw new RuntimeException(e.getCause());
+            } catch (IllegalAccessException e) {
+                throw new RuntimeException(e);
+            }
+            return value;
+        }
+    }
+}
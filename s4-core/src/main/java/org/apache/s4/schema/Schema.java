@@ -27,9 +27,17 @@ import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
 public class Schema {
     private Map<String, Property> properties = new HashMap<String, Property>();
+    private Map<List<String>, PropertyAccessor> pathAccessors = new ConcurrentHashMap<List<String>, PropertyAccessor>();
+    // cached in pathAccessors for paths which have no accessor
+    private static final PropertyAccessor NO_ACCESSOR = new PropertyAccessor() {
+        public Object get(Object record) {
+            return null;
+        }
+    };
     @SuppressWarnings("unchecked")
     private Class type;
 
@@ -86,6 +94,37 @@ public class Schema {
         }
     }
 
+    /**
+     * Returns an accessor reading the value at the end of a key path, such as
+     * <code>user/id</code>, with a single generated class per schema and path.
+     * 
+     * @return the accessor, or null if the path does not exist or goes
+     *         through a list, in which case the path must be walked property
+     *         by property
+     */
+    public PropertyAccessor getAccessor(List<String> keyPath) {
+        PropertyAccessor accessor = pathAccessors.get(keyPath);
+        if (accessor == null) {
+            List<Method> getters = new ArrayList<Method>(keyPath.size());
+            Schema schema = this;
+            for (int i = 0; i < keyPath.size(); i++) {
+                Property property = (schema == null) ? null
+                        : schema.getProperties().get(keyPath.get(i));
+                if (property == null || property.isList()
+                        || property.getGetterMethod() == null) {
+                    getters = null;
+                    break;
+                }
+                getters.add(property.getGetterMethod());
+                schema = property.getSchema();
+            }
+            accessor = (getters == null || getters.isEmpty()) ? NO_ACCESSOR
+                    : AccessorGenerator.generate(getters);
+            pathAccessors.put(new ArrayList<String>(keyPath), accessor);
+        }
+        return (accessor == NO_ACCESSOR) ? null : accessor;
+    }
+
     public String toString() {
         return this.toString("");
     }
@@ -117,6 +156,7 @@ public class Schema {
         private Method setterMethod;
         private boolean isList;
         private boolean isNumber;
+        private volatile PropertyAccessor accessor;
 
         @SuppressWarnings("unchecked")
         public Class getType() {
@@ -151,6 +191,23 @@ public class Schema {
             return componentProperty;
         }
 
+        /**
+         * Reads this property from a record through a generated accessor,
+         * which is much cheaper than invoking the getter by reflection.
+         */
+        public Object getValue(Object record) {
+            if (accessor == null) {
+                if (getterMethod == null) {
+                    throw new IllegalStateException("Property " + name
+                            + " has no getter");
+                }
+                List<Method> getters = new ArrayList<Method>(1);
+                getters.add(getterMethod);
+                accessor = AccessorGenerator.generate(getters);
+            }
+            return accessor.get(record);
+        }
+
         public static Property getProperty(String propertyName, Method getterMethod, Method setterMethod, Type parameterType) {
             if (parameterType instanceof Class) {
                 Class ptClass = (Class) parameterType;
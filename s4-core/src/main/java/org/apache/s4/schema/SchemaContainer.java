@@ -17,20 +17,33 @@
  */
 package org.apache.s4.schema;
 
-import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 
+/**
+ * Cache of the {@link Schema}s of event classes.
+ * <p>
+ * The generated accessors of a schema's properties (see
+ * {@link Schema.Property#getValue(Object)}) are built once per container and
+ * class. Containers are held by PE prototypes, whose instances share them,
+ * and by partitioners and clocks, so there are only a few per class. The
+ * cache is deliberately not static: a container, the classes it has seen and
+ * their accessor classes can be collected together, for instance when the
+ * class loader of an application is discarded. Schemas are keyed by
+ * {@link Class} identity, which also tells apart classes of the same name
+ * loaded by different class loaders.
+ */
 public class SchemaContainer {
-    private Map<String, Schema> schemaMap = new ConcurrentHashMap<String, Schema>();
+    private final ConcurrentMap<Class<?>, Schema> schemaMap = new ConcurrentHashMap<Class<?>, Schema>();
 
     public Schema getSchema(Class<?> clazz) {
-        String schemaKey = clazz.getClassLoader().toString() + ":"
-                + clazz.getName();
-
-        Schema schema = schemaMap.get(schemaKey);
+        Schema schema = schemaMap.get(clazz);
         if (schema == null) {
-            schema = new Schema(clazz);
-            schemaMap.put(schemaKey, schema);
+            Schema newSchema = new Schema(clazz);
+            schema = schemaMap.putIfAbsent(clazz, newSchema);
+            if (schema == null) {
+                schema = newSchema;
+            }
         }
 
         return schema;
@@ -17,18 +17,83 @@
  */
 package org.apache.s4.serialize;
 
+import org.apache.s4.collector.EventWrapper;
+import org.apache.s4.dispatcher.partitioner.CompoundKeyInfo;
+import org.apache.s4.dispatcher.partitioner.KeyInfo;
+import org.apache.s4.message.PartialState;
+import org.apache.s4.message.PrototypeRequest;
+import org.apache.s4.message.Request;
+import org.apache.s4.message.Response;
+import org.apache.s4.message.SinglePERequest;
+
+import java.nio.BufferOverflowException;
 import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
 
 import com.esotericsoftware.kryo.Kryo;
-import com.esotericsoftware.kryo.ObjectBuffer;
+import com.esotericsoftware.kryo.SerializationException;
 import com.esotericsoftware.kryo.serialize.SimpleSerializer;
 
+/**
+ * Kryo based serializer.
+ * <p>
+ * A single instance is shared by the emitter, the listener threads and the
+ * safe keeper. Kryo instances are not thread safe when classes are
+ * registered on the fly, so each thread gets its own Kryo instance, along
+ * with an output buffer which is reused from one message to the next.
+ * <p>
+ * Registered classes are written as a small integer id instead of their
+ * name. The framework classes found in every message (event wrapper, keys,
+ * requests) are always registered, followed by the classes given to
+ * {@link #setRegisteredClasses}. Ids are assigned in registration order, so
+ * all the nodes and adapters of a cluster must be configured with the same
+ * list; classes should only ever be appended to it. Classes which are not
+ * registered are still written by name.
+ * <p>
+ * Event wrappers are written header first: the stream name and the compound
+ * keys, followed by the event itself as a separate body. The receiving node
+ * reads the header only, and the event is decoded when it is first accessed
+ * (see {@link EventWrapper#getEvent()}), so that events which no PE consumes
+ * are never decoded. The header starts with a 0 byte, which a plain Kryo
+ * message only ever contains on its own, for null.
+ */
 public class KryoSerDeser implements SerializerDeserializer {
 
-    private Kryo kryo = new Kryo();
-    
     private int initialBufferSize = 2048;
     private int maxBufferSize = 256*1024;
+    private boolean headerFirst = true;
+
+    private static final byte HEADER_MARKER = 0;
+    private static final byte HEADER_VERSION = 1;
+    private static final int BODY_LENGTH_SIZE = 4;
+
+    // the order of these classes defines their ids: only append
+    private static final Class<?>[] FRAMEWORK_CLASSES = {
+            ArrayList.class, HashMap.class, EventWrapper.class,
+            CompoundKeyInfo.class, KeyInfo.class,
+            KeyInfo.KeyPathElementName.class,
+            KeyInfo.KeyPathElementIndex.class, PartialState.class,
+            SinglePERequest.class, PrototypeRequest.class, Response.class,
+            Request.ClientRInfo.class, Request.PERInfo.class,
+            Request.NullRInfo.class };
+
+    private volatile List<Class<?>> registeredClasses = new ArrayList<Class<?>>();
+
+    private final ThreadLocal<Kryo> kryos = new ThreadLocal<Kryo>() {
+        @Override
+        protected Kryo initialValue() {
+            return createKryo();
+        }
+    };
+
+    private final ThreadLocal<ByteBuffer> buffers = new ThreadLocal<ByteBuffer>() {
+        @Override
+        protected ByteBuffer initialValue() {
+            return ByteBuffer.allocate(initialBufferSize);
+        }
+    };
 
     public void setInitialBufferSize(int initialBufferSize) {
         this.initialBufferSize = initialBufferSize;
@@ -38,11 +103,57 @@ public class KryoSerDeser implements SerializerDeserializer {
         this.maxBufferSize = maxBufferSize;
     }
 
+    /**
+     * When true, the default, event wrappers are written header first, and
+     * their events are decoded lazily by the receiver. Event wrappers which
+     * carry compound key names (client adapters) are always written as plain
+     * Kryo messages. Reading supports both forms regardless of this setting.
+     */
+    public void setHeaderFirst(boolean headerFirst) {
+        this.headerFirst = headerFirst;
+    }
+
+    /**
+     * Application classes to register, typically the events and the values
+     * of the keys. Must be set before the serializer is used, and be the same
+     * on every node and adapter of the cluster.
+     * 
+     * @throws IllegalArgumentException
+     *             if one of the classes cannot be loaded: registering the
+     *             following classes would give them ids which differ from
+     *             the other nodes.
+     */
+    public void setRegisteredClasses(String[] classNames) {
+        List<Class<?>> classes = new ArrayList<Class<?>>();
+        for (String className : classNames) {
+            className = className.trim();
+            if (className.length() == 0) {
+                continue;
+            }
+            try {
+                classes.add(Class.forName(className));
+            } catch (ClassNotFoundException e) {
+                throw new IllegalArgumentException("Cannot register class "
+                        + className, e);
+            }
+        }
+        this.registeredClasses = classes;
+    }
+
+    /**
+     * @return the Kryo instance of the calling thread
+     */
     public Kryo getKryo() {
-		return kryo;
-	}
+        return kryos.get();
+    }
 
-	public KryoSerDeser() {
+    /**
+     * Creates the Kryo instance of a thread. Subclasses registering classes
+     * or serializers should do so here, so that every thread sees the same
+     * registrations.
+     */
+    protected Kryo createKryo() {
+        Kryo kryo = new Kryo();
         kryo.setRegistrationOptional(true);
 
         // UUIDs don't have a no-arg constructor.
@@ -61,17 +172,150 @@ public class KryoSerDeser implements SerializerDeserializer {
                           }
 
                       });
+
+        for (Class<?> type : FRAMEWORK_CLASSES) {
+            kryo.register(type);
+        }
+        for (Class<?> type : registeredClasses) {
+            kryo.register(type);
+        }
+        return kryo;
     }
 
     @Override
     public Object deserialize(byte[] rawMessage) {
-        ObjectBuffer buffer = new ObjectBuffer(kryo, initialBufferSize, maxBufferSize);
-        return buffer.readClassAndObject(rawMessage);
+        return deserialize(ByteBuffer.wrap(rawMessage));
+    }
+
+    /**
+     * Reads a message from the given buffer, starting at its position.
+     * The position is moved past the message.
+     */
+    @Override
+    public Object deserialize(ByteBuffer buffer) {
+        if (buffer.remaining() > 1
+                && buffer.get(buffer.position()) == HEADER_MARKER) {
+            return readEventWrapper(buffer);
+        }
+        return kryos.get().readClassAndObject(buffer);
     }
 
     @Override
     public byte[] serialize(Object message) {
-        ObjectBuffer buffer = new ObjectBuffer(kryo, initialBufferSize, maxBufferSize);
-        return buffer.writeClassAndObject(message);
+        ByteBuffer buffer = buffers.get();
+        while (true) {
+            buffer.clear();
+            try {
+                serialize(message, buffer);
+                break;
+            } catch (BufferOverflowException e) {
+                if (buffer.capacity() >= maxBufferSize) {
+                    throw new SerializationException("Buffer limit exceeded serializing object of type: "
+                            + message.getClass().getName());
+                }
+                buffer = ByteBuffer.allocate(Math.min(buffer.capacity() * 2,
+                                                      maxBufferSize));
+                buffers.set(buffer);
+            }
+        }
+        byte[] rawMessage = new byte[buffer.position()];
+        buffer.flip();
+        buffer.get(rawMessage);
+        return rawMessage;
+    }
+
+    /**
+     * Writes a message into the given buffer, starting at its position,
+     * without going through an intermediate array.
+     * 
+     * @return the number of bytes written
+     * @throws BufferOverflowException
+     *             if the message does not fit in the remaining space of the
+     *             buffer. The position of the buffer is left unchanged.
+     */
+    public int serialize(Object message, ByteBuffer buffer) {
+        int start = buffer.position();
+        if (message instanceof EventWrapper) {
+            materializeKeys((EventWrapper) message);
+        }
+        try {
+            if (headerFirst && message instanceof EventWrapper
+                    && ((EventWrapper) message).getCompoundKeyNames() == null) {
+                writeEventWrapper((EventWrapper) message, buffer);
+            } else {
+                if (message instanceof EventWrapper) {
+                    // decodes a lazily received event
+                    ((EventWrapper) message).getEvent();
+                }
+                kryos.get().writeClassAndObject(buffer, message);
+            }
+        } catch (BufferOverflowException e) {
+            buffer.position(start);
+            Kryo.getContext().reset();
+            throw e;
+        } catch (SerializationException e) {
+            if (isBufferOverflow(e)) {
+                buffer.position(start);
+                Kryo.getContext().reset();
+                throw new BufferOverflowException();
+            }
+            throw e;
+        }
+        return buffer.position() - start;
+    }
+
+    // raw key values are not serialized, their string forms are
+    private static void materializeKeys(EventWrapper eventWrapper) {
+        List<CompoundKeyInfo> compoundKeys = eventWrapper.getCompoundKeys();
+        if (compoundKeys != null) {
+            for (CompoundKeyInfo compoundKey : compoundKeys) {
+                compoundKey.materializeValues();
+            }
+        }
+    }
+
+    private void writeEventWrapper(EventWrapper eventWrapper, ByteBuffer buffer) {
+        Kryo kryo = kryos.get();
+        buffer.put(HEADER_MARKER);
+        buffer.put(HEADER_VERSION);
+        kryo.writeClassAndObject(buffer, eventWrapper.getStreamName());
+        kryo.writeClassAndObject(buffer, eventWrapper.getCompoundKeys());
+        int bodyStart = buffer.position() + BODY_LENGTH_SIZE;
+        buffer.position(bodyStart);
+        kryo.writeClassAndObject(buffer, eventWrapper.getEvent());
+        buffer.putInt(bodyStart - BODY_LENGTH_SIZE,
+                      buffer.position() - bodyStart);
+    }
+
+    @SuppressWarnings("unchecked")
+    private EventWrapper readEventWrapper(ByteBuffer buffer) {
+        Kryo kryo = kryos.get();
+        buffer.get();
+        byte version = buffer.get();
+        if (version != HEADER_VERSION) {
+            throw new SerializationException("Unsupported event header version "
+                    + version);
+        }
+        String streamName = (String) kryo.readClassAndObject(buffer);
+        List<CompoundKeyInfo> compoundKeys = (List<CompoundKeyInfo>) kryo.readClassAndObject(buffer);
+        int bodyLength = buffer.getInt();
+        if (bodyLength < 0 || bodyLength > buffer.remaining()) {
+            throw new SerializationException("Truncated event body: "
+                    + bodyLength + " bytes");
+        }
+        // the buffer may be reused once this method returns: the body is
+        // copied, which is much cheaper than decoding it
+        byte[] eventBody = new byte[bodyLength];
+        buffer.get(eventBody);
+        return new EventWrapper(streamName, compoundKeys, eventBody, this);
+    }
+
+    private static boolean isBufferOverflow(Throwable e) {
+        for (Throwable cause = e; cause != null; cause = cause.getCause()) {
+            if (cause instanceof BufferOverflowException) {
+                return true;
+            }
+        }
+        return false;
     }
 }
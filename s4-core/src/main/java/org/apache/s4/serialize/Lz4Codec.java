@@ -0,0 +1,248 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.s4.serialize;
+
+/**
+ * Pure Java implementation of the LZ4 block format: a greedy compressor
+ * with a single hash table, in the spirit of the reference "fast" mode, and
+ * a decompressor which checks all its bounds.
+ * <p>
+ * The compressor keeps its hash table in a thread local, so that
+ * compressing does not allocate besides the output.
+ */
+public final class Lz4Codec {
+    private static final int MIN_MATCH = 4;
+    // the last 5 bytes are always literals, and the last match starts at
+    // least 12 bytes before the end
+    private static final int LAST_LITERALS = 5;
+    private static final int MF_LIMIT = 12;
+    private static final int MAX_OFFSET = 65535;
+    private static final int HASH_LOG = 12;
+    private static final int SKIP_TRIGGER = 6;
+
+    private static final ThreadLocal<int[]> hashTables = new ThreadLocal<int[]>() {
+        @Override
+        protected int[] initialValue() {
+            return new int[1 << HASH_LOG];
+        }
+    };
+
+    private Lz4Codec() {
+    }
+
+    /**
+     * @return the size of the largest block compressing
+     *         <code>length</code> bytes can produce
+     */
+    public static int maxCompressedLength(int length) {
+        return length + length / 255 + 16;
+    }
+
+    /**
+     * Compresses <code>src[srcOff, srcOff + length)</code> into
+     * <code>dst</code>, which must have room for
+     * {@link #maxCompressedLength(int)} bytes from <code>dstOff</code>.
+     * 
+     * @return the compressed length
+     */
+    public static int compress(byte[] src, int srcOff, int length,
+                               byte[] dst, int dstOff) {
+        int end = srcOff + length;
+        int op = dstOff;
+        int anchor = srcOff;
+        if (length >= MF_LIMIT + 1) {
+            // entries left by previous calls are harmless: every candidate
+            // is checked against the data
+            int[] hashTable = hashTables.get();
+            int matchStartLimit = end - MF_LIMIT;
+            int matchEndLimit = end - LAST_LITERALS;
+            int ip = srcOff;
+            int searches = 1 << SKIP_TRIGGER;
+            while (ip < matchStartLimit) {
+                int sequence = readInt(src, ip);
+                int h = hash(sequence);
+                int ref = hashTable[h];
+                hashTable[h] = ip;
+                if (ref < srcOff || ref >= ip || ip - ref > MAX_OFFSET
+                        || readInt(src, ref) != sequence) {
+                    // skip faster through data which does not compress
+                    ip += searches++ >>> SKIP_TRIGGER;
+                    continue;
+                }
+                searches = 1 << SKIP_TRIGGER;
+
+                while (ip > anchor && ref > srcOff
+                        && src[ip - 1] == src[ref - 1]) {
+                    ip--;
+                    ref--;
+                }
+                int matchLength = MIN_MATCH;
+                while (ip + matchLength < matchEndLimit
+                        && src[ref + matchLength] == src[ip + matchLength]) {
+                    matchLength++;
+                }
+
+                op = writeSequence(src,
+                                   anchor,
+                                   ip - anchor,
+                                   ip - ref,
+                                   matchLength,
+                                   dst,
+                                   op);
+                ip += matchLength;
+                anchor = ip;
+            }
+        }
+        return writeLastLiterals(src, anchor, end - anchor, dst, op) - dstOff;
+    }
+
+    /**
+     * Decompresses a block into <code>dst</code>.
+     * 
+     * @return the decompressed length
+     * @throws IllegalArgumentException
+     *             if the block is malformed or decompresses to more than
+     *             <code>maxLength</code> bytes
+     */
+    public static int decompress(byte[] src, int srcOff, int length,
+                                 byte[] dst, int dstOff, int maxLength) {
+        int ip = srcOff;
+        int end = srcOff + length;
+        int op = dstOff;
+        int outEnd = dstOff + maxLength;
+        try {
+            while (ip < end) {
+                int token = src[ip++] & 0xFF;
+
+                int literalLength = token >>> 4;
+                if (literalLength == 0xF) {
+                    int b;
+                    do {
+                        b = src[ip++] & 0xFF;
+                        literalLength += b;
+                    } while (b == 0xFF);
+                }
+                if (literalLength > end - ip || literalLength > outEnd - op) {
+                    throw new IllegalArgumentException("Malformed block: literals overflow at "
+                            + (ip - srcOff));
+                }
+                System.arraycopy(src, ip, dst, op, literalLength);
+                ip += literalLength;
+                op += literalLength;
+                if (ip == end) {
+                    // the last sequence has no match
+                    break;
+                }
+
+                int offset = (src[ip] & 0xFF) | ((src[ip + 1] & 0xFF) << 8);
+                ip += 2;
+                if (offset == 0 || offset > op - dstOff) {
+                    throw new IllegalArgumentException("Malformed block: offset "
+                            + offset + " at " + (ip - srcOff));
+                }
+                int matchLength = token & 0xF;
+                if (matchLength == 0xF) {
+                    int b;
+                    do {
+                        b = src[ip++] & 0xFF;
+                        matchLength += b;
+                    } while (b == 0xFF);
+                }
+                matchLength += MIN_MATCH;
+                if (matchLength > outEnd - op) {
+                    throw new IllegalArgumentException("Malformed block: match overflow at "
+                            + (ip - srcOff));
+                }
+                int ref = op - offset;
+                if (offset >= matchLength) {
+                    System.arraycopy(dst, ref, dst, op, matchLength);
+                    op += matchLength;
+                } else {
+                    // overlapping match: repeats the last offset bytes
+                    for (int i = 0; i < matchLength; i++) {
+                        dst[op++] = dst[ref++];
+                    }
+                }
+            }
+        } catch (IndexOutOfBoundsException e) {
+            // reading past the end of the block, or a length which
+            // overflowed
+            throw new IllegalArgumentException("Malformed block: truncated");
+        }
+        return op - dstOff;
+    }
+
+    private static int writeSequence(byte[] src, int literalStart,
+                                     int literalLength, int offset,
+                                     int matchLength, byte[] dst, int op) {
+        int tokenPosition = op++;
+        int token;
+        if (literalLength >= 0xF) {
+            token = 0xF << 4;
+            op = writeLength(literalLength - 0xF, dst, op);
+        } else {
+            token = literalLength << 4;
+        }
+        System.arraycopy(src, literalStart, dst, op, literalLength);
+        op += literalLength;
+
+        dst[op++] = (byte) offset;
+        dst[op++] = (byte) (offset >>> 8);
+
+        int extraMatchLength = matchLength - MIN_MATCH;
+        if (extraMatchLength >= 0xF) {
+            token |= 0xF;
+            op = writeLength(extraMatchLength - 0xF, dst, op);
+        } else {
+            token |= extraMatchLength;
+        }
+        dst[tokenPosition] = (byte) token;
+        return op;
+    }
+
+    private static int writeLastLiterals(byte[] src, int literalStart,
+                                         int literalLength, byte[] dst, int op) {
+        if (literalLength >= 0xF) {
+            dst[op++] = (byte) (0xF << 4);
+            op = writeLength(literalLength - 0xF, dst, op);
+        } else {
+            dst[op++] = (byte) (literalLength << 4);
+        }
+        System.arraycopy(src, literalStart, dst, op, literalLength);
+        return op + literalLength;
+    }
+
+    private static int writeLength(int length, byte[] dst, int op) {
+        while (length >= 0xFF) {
+            dst[op++] = (byte) 0xFF;
+            length -= 0xFF;
+        }
+        dst[op++] = (byte) length;
+        return op;
+    }
+
+    private static int hash(int sequence) {
+        return (sequence * -1640531535) >>> (32 - HASH_LOG);
+    }
+
+    private static int readInt(byte[] data, int position) {
+        return (data[position] & 0xFF) | ((data[position + 1] & 0xFF) << 8)
+                | ((data[position + 2] & 0xFF) << 16)
+                | ((data[position + 3] & 0xFF) << 24);
+    }
+}
@@ -0,0 +1,113 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.s4.serialize;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Compression of the datagrams sent between nodes, with {@link Lz4Codec}.
+ * <p>
+ * A compressed datagram is made of a header, the magic number
+ * {@link #MAGIC} followed by the uncompressed length, and of the compressed
+ * block. All integers are 4 bytes, big endian. The datagram may hold a
+ * single message or a frame (see {@link MessageFrames}). Receivers tell
+ * compressed datagrams from plain ones by their header, so that compressed
+ * and uncompressed traffic can be mixed.
+ */
+public final class MessageCompression {
+    /** "S4LZ" */
+    public static final int MAGIC = 0x53344C5A;
+    public static final int HEADER_SIZE = 8;
+    /** largest uncompressed length accepted by {@link #decompress} */
+    public static final int MAX_LENGTH = 16 * 1024 * 1024;
+
+    // compression output, before it is trimmed to the compressed length
+    private static final ThreadLocal<byte[]> scratchBuffers = new ThreadLocal<byte[]>();
+
+    private MessageCompression() {
+    }
+
+    /**
+     * @return true if the remaining bytes of the buffer are a compressed
+     *         datagram
+     */
+    public static boolean isCompressed(ByteBuffer data) {
+        return data.remaining() >= HEADER_SIZE
+                && data.getInt(data.position()) == MAGIC;
+    }
+
+    /**
+     * @return the compressed datagram, or null if compressing does not make
+     *         the data smaller
+     */
+    public static byte[] compress(byte[] data) {
+        int maxLength = HEADER_SIZE + Lz4Codec.maxCompressedLength(data.length);
+        byte[] compressed = scratchBuffers.get();
+        if (compressed == null || compressed.length < maxLength) {
+            compressed = new byte[maxLength];
+            scratchBuffers.set(compressed);
+        }
+        int length = HEADER_SIZE
+                + Lz4Codec.compress(data, 0, data.length, compressed, HEADER_SIZE);
+        if (length >= data.length) {
+            return null;
+        }
+        ByteBuffer header = ByteBuffer.wrap(compressed);
+        header.putInt(MAGIC);
+        header.putInt(data.length);
+        byte[] datagram = new byte[length];
+        System.arraycopy(compressed, 0, datagram, 0, length);
+        return datagram;
+    }
+
+    /**
+     * Decompresses the remaining bytes of a buffer. The position of the
+     * buffer is not modified.
+     * 
+     * @throws IllegalArgumentException
+     *             if the datagram is malformed
+     */
+    public static byte[] decompress(ByteBuffer datagram) {
+        if (datagram.remaining() < HEADER_SIZE) {
+            throw new IllegalArgumentException("Truncated header: "
+                    + datagram.remaining() + " bytes");
+        }
+        int length = datagram.getInt(datagram.position() + 4);
+        if (length < 0 || length > MAX_LENGTH) {
+            throw new IllegalArgumentException("Bad uncompressed length: "
+                    + length);
+        }
+        byte[] block = new byte[datagram.remaining() - HEADER_SIZE];
+        ByteBuffer source = datagram.duplicate();
+        source.position(source.position() + HEADER_SIZE);
+        source.get(block);
+
+        byte[] data = new byte[length];
+        int decompressed = Lz4Codec.decompress(block,
+                                               0,
+                                               block.length,
+                                               data,
+                                               0,
+                                               length);
+        if (decompressed != length) {
+            throw new IllegalArgumentException("Truncated block: "
+                    + decompressed + " bytes instead of " + length);
+        }
+        return data;
+    }
+}
@@ -0,0 +1,230 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.s4.serialize;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+
+/**
+ * Packing of several serialized messages in a single datagram.
+ * <p>
+ * A frame is made of a header, the magic number {@link #MAGIC} followed by
+ * the number of messages, and of the messages, each one preceded by its
+ * length. All integers are 4 bytes, big endian. A single message is not
+ * framed, so that senders which do not pack remain compatible.
+ * <p>
+ * Receivers tell frames from plain messages by the magic number alone, which
+ * a plain message never starts with. The messages of the comm layer are
+ * event wrappers serialized by {@link KryoSerDeser}: they start with
+ * <code>0x00</code> when written header first, and with the Kryo id of
+ * {@link org.apache.s4.collector.EventWrapper} otherwise, which is fixed by
+ * the registration order of the framework classes and written as the single
+ * byte <code>0x15</code>. Neither is <code>0x53</code>, the first byte of
+ * {@link #MAGIC}. Whatever the serializer, {@link Builder#build()} still
+ * frames a single message which starts with the magic number, so that it
+ * cannot be mistaken for a frame.
+ */
+public final class MessageFrames {
+    /** "S4FR" */
+    public static final int MAGIC = 0x53344652;
+    public static final int HEADER_SIZE = 8;
+    public static final int LENGTH_SIZE = 4;
+
+    private MessageFrames() {
+    }
+
+    /**
+     * @return true if the data is a frame, false if it is a single message
+     */
+    public static boolean isFrame(byte[] data) {
+        return data.length >= HEADER_SIZE && readInt(data, 0) == MAGIC;
+    }
+
+    /**
+     * @return true if the remaining bytes of the buffer are a frame, false if
+     *         they are a single message
+     */
+    public static boolean isFrame(ByteBuffer data) {
+        return data.remaining() >= HEADER_SIZE
+                && data.getInt(data.position()) == MAGIC;
+    }
+
+    /**
+     * Adds the messages of a frame to a collection.
+     * 
+     * @return the number of messages added
+     * @throws IllegalArgumentException
+     *             if the frame is truncated or malformed
+     */
+    public static int unpack(byte[] frame, Collection<? super byte[]> messages) {
+        int count = checkFrame(ByteBuffer.wrap(frame));
+        int position = HEADER_SIZE;
+        for (int i = 0; i < count; i++) {
+            int length = readInt(frame, position);
+            position += LENGTH_SIZE;
+            byte[] message = new byte[length];
+            System.arraycopy(frame, position, message, 0, length);
+            messages.add(message);
+            position += length;
+        }
+        return count;
+    }
+
+    /**
+     * Adds the messages of a frame held in the remaining bytes of a buffer to
+     * a collection, as views of the buffer: the messages are not copied. The
+     * position of the buffer is not modified.
+     * 
+     * @return the number of messages added
+     * @throws IllegalArgumentException
+     *             if the frame is truncated or malformed
+     */
+    public static int unpack(ByteBuffer frame,
+                             Collection<? super ByteBuffer> messages) {
+        int count = checkFrame(frame);
+        int position = frame.position() + HEADER_SIZE;
+        for (int i = 0; i < count; i++) {
+            int length = frame.getInt(position);
+            position += LENGTH_SIZE;
+            ByteBuffer message = frame.duplicate();
+            message.limit(position + length);
+            message.position(position);
+            messages.add(message.slice());
+            position += length;
+        }
+        return count;
+    }
+
+    /**
+     * Checks that the messages of a frame fill it exactly, before any of them
+     * is handed over.
+     * 
+     * @return the number of messages
+     */
+    private static int checkFrame(ByteBuffer frame) {
+        int start = frame.position();
+        int end = frame.limit();
+        if (end - start < HEADER_SIZE || frame.getInt(start) != MAGIC) {
+            throw new IllegalArgumentException("Not a frame");
+        }
+        int count = frame.getInt(start + 4);
+        if (count < 0 || count > (end - start - HEADER_SIZE) / LENGTH_SIZE) {
+            throw new IllegalArgumentException("Bad frame: " + count
+                    + " messages in " + (end - start) + " bytes");
+        }
+        int position = start + HEADER_SIZE;
+        for (int i = 0; i < count; i++) {
+            if (position + LENGTH_SIZE > end) {
+                throw new IllegalArgumentException("Truncated frame: message "
+                        + i + " of " + count);
+            }
+            int length = frame.getInt(position);
+            position += LENGTH_SIZE;
+            if (length < 0 || length > end - position) {
+                throw new IllegalArgumentException("Truncated frame: message "
+                        + i + " of " + count + " has length " + length);
+            }
+            position += length;
+        }
+        if (position != end) {
+            throw new IllegalArgumentException("Bad frame: " + (end - position)
+                    + " bytes after message " + count);
+        }
+        return count;
+    }
+
+    /**
+     * Accumulates messages up to a maximum frame size. Not thread safe.
+     */
+    public static class Builder {
+        private final int maxFrameSize;
+        private final List<byte[]> messages = new ArrayList<byte[]>();
+        private int size = HEADER_SIZE;
+
+        public Builder(int maxFrameSize) {
+            this.maxFrameSize = maxFrameSize;
+        }
+
+        /**
+         * Adds a message, unless the frame would exceed the maximum size. The
+         * first message is always added: if it is too large to share a
+         * frame, it is then sent on its own.
+         * 
+         * @return false if the message was not added
+         */
+        public boolean add(byte[] message) {
+            int newSize = size + LENGTH_SIZE + message.length;
+            if (newSize > maxFrameSize && !messages.isEmpty()) {
+                return false;
+            }
+            messages.add(message);
+            size = newSize;
+            return true;
+        }
+
+        public int getCount() {
+            return messages.size();
+        }
+
+        /**
+         * @return the frame, or the message itself if there is only one and
+         *         it does not start with {@link MessageFrames#MAGIC}
+         */
+        public byte[] build() {
+            if (messages.size() == 1 && !startsWithMagic(messages.get(0))) {
+                return messages.get(0);
+            }
+            byte[] frame = new byte[size];
+            writeInt(frame, 0, MAGIC);
+            writeInt(frame, 4, messages.size());
+            int position = HEADER_SIZE;
+            for (byte[] message : messages) {
+                writeInt(frame, position, message.length);
+                position += LENGTH_SIZE;
+                System.arraycopy(message, 0, frame, position, message.length);
+                position += message.length;
+            }
+            return frame;
+        }
+
+        public void reset() {
+            messages.clear();
+            size = HEADER_SIZE;
+        }
+    }
+
+    private static boolean startsWithMagic(byte[] message) {
+        return message.length >= LENGTH_SIZE && readInt(message, 0) == MAGIC;
+    }
+
+    private static int readInt(byte[] data, int position) {
+        return ((data[position] & 0xFF) << 24)
+                | ((data[position + 1] & 0xFF) << 16)
+                | ((data[position + 2] & 0xFF) << 8)
+                | (data[position + 3] & 0xFF);
+    }
+
+    private static void writeInt(byte[] data, int position, int value) {
+        data[position] = (byte) (value >>> 24);
+        data[position + 1] = (byte) (value >>> 16);
+        data[position + 2] = (byte) (value >>> 8);
+        data[position + 3] = (byte) value;
+    }
+}
@@ -17,8 +17,16 @@
  */
 package org.apache.s4.serialize;
 
+import java.nio.ByteBuffer;
+
 public interface SerializerDeserializer {
     public byte[] serialize(Object message);
 
     public Object deserialize(byte[] rawMessage);
+
+    /**
+     * Reads a message from the remaining bytes of a buffer, which may be a
+     * direct buffer or a view of a larger one.
+     */
+    public Object deserialize(ByteBuffer rawMessage);
 }
@@ -26,13 +26,19 @@ public enum MetricsName {
     low_level_listener_msg_in_ct("lll_in"), low_level_listener_msg_drop_ct(
             "lll_dr"), low_level_listener_qsz("lll_qsz"), low_level_listener_badmsg_ct(
             "lll_bad"), // exception can't be caught
+    low_level_listener_decompress_time("lll_dcmp_us"),
     generic_listener_msg_in_ct("gl_in"), pecontainer_ev_dq_ct("pec_dq"), pecontainer_ev_nq_ct(
             "pec_nq"), pecontainer_msg_drop_ct("pec_dr"), pecontainer_qsz(
             "pec_qsz"), pecontainer_qsz_w("pec_qsz_w"), pecontainer_ev_process_ct(
             "pec_pr"), pecontainer_pe_ct("pec_pe"), pecontainer_ev_err_ct(
             "pec_err"), // exception can't be caught
-    pecontainer_exec_elapse_time("pec_exec_t"), low_level_emitter_msg_out_ct(
-            "lle_out"), low_level_emitter_out_err_ct("lle_err"), low_level_emitter_qsz(
+    pecontainer_exec_elapse_time("pec_exec_t"), pecontainer_priority_ev_nq_ct(
+            "pec_p_nq"), pecontainer_priority_qsz("pec_p_qsz"), pecontainer_exec_latency(
+            "pec_exec_lat"), pecontainer_queue_latency("pec_q_lat"), low_level_emitter_msg_out_ct(
+            "lle_out"), low_level_emitter_local_ct("lle_loc"), low_level_emitter_out_err_ct(
+            "lle_err"), low_level_emitter_drop_ct("lle_dr"), low_level_emitter_compress_in_bytes(
+            "lle_cmp_in"), low_level_emitter_compress_out_bytes("lle_cmp_out"), low_level_emitter_compress_time(
+            "lle_cmp_us"), low_level_emitter_qsz(
             "lle_qsz"), s4_core_exit_ct("s4_ex_ct"), s4_core_free_mem("s4_fmem"), pe_join_ev_ct(
             "pe_j_ct"), pe_error_count("pe_err");
 
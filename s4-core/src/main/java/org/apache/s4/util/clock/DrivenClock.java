@@ -36,6 +36,11 @@ public class DrivenClock implements Clock {
         }
         List<TimerRequest> relevantRequests = null;
         synchronized (timerRequests) {
+            // the time may be updated concurrently by several PE container
+            // workers: never move it backwards
+            if (newCurrentTime < currentTime) {
+                return;
+            }
             currentTime = newCurrentTime;
             while (true) {
                 // inspect the top of the timer request list and see if any
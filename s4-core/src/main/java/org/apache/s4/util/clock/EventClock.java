@@ -47,7 +47,7 @@ public class EventClock extends DrivenClock {
                     && (property.getType().equals(Long.TYPE) || property
                             .getType().equals(Long.class))) {
                 try {
-                    eventTime = (Long) property.getGetterMethod().invoke(event);
+                    eventTime = (Long) property.getValue(event);
                     updateTime(eventTime);
                 } catch (Exception e) {
                     throw new RuntimeException(e);
@@ -0,0 +1,71 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.s4.util.queue;
+
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Spins, then yields, then parks the waiting thread for increasing periods of
+ * time, up to <code>maxParkNanos</code>. Idle threads use almost no CPU; the
+ * price is that a thread waiting for a while notices a new element with a
+ * delay of up to <code>maxParkNanos</code>.
+ */
+public class ParkingWaitStrategy implements WaitStrategy {
+
+    private int spinTries = 100;
+    private int yieldTries = 100;
+    private long minParkNanos = 1000L;
+    private long maxParkNanos = 1000000L;
+
+    public void setSpinTries(int spinTries) {
+        this.spinTries = spinTries;
+    }
+
+    public void setYieldTries(int yieldTries) {
+        this.yieldTries = yieldTries;
+    }
+
+    public void setMinParkNanos(long minParkNanos) {
+        this.minParkNanos = minParkNanos;
+    }
+
+    /**
+     * Upper bound of a single park. Defaults to 1 ms.
+     */
+    public void setMaxParkNanos(long maxParkNanos) {
+        this.maxParkNanos = maxParkNanos;
+    }
+
+    @Override
+    public void idle(int attempts) throws InterruptedException {
+        if (Thread.interrupted()) {
+            throw new InterruptedException();
+        }
+        if (attempts < spinTries) {
+            return;
+        }
+        if (attempts < spinTries + yieldTries) {
+            Thread.yield();
+            return;
+        }
+        // double the park time every attempt
+        int shift = Math.min(attempts - spinTries - yieldTries, 30);
+        long parkNanos = Math.min(minParkNanos << shift, maxParkNanos);
+        LockSupport.parkNanos(parkNanos);
+    }
+}
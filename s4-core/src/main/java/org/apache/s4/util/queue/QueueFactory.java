@@ -0,0 +1,39 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.s4.util.queue;
+
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * Creates the queues used between the stages of an S4 node (comm layer
+ * listener, PE container, comm layer emitter). Allows choosing the queue
+ * implementation from the configuration file.
+ */
+public interface QueueFactory {
+
+    /**
+     * @param capacity
+     *            maximum number of elements; 0 or less for an unbounded queue
+     *            where supported
+     * @param singleProducer
+     *            true if the caller guarantees that a single thread ever
+     *            inserts into the queue
+     * @return a new, empty queue
+     */
+    <E> BlockingQueue<E> createQueue(int capacity, boolean singleProducer);
+}
@@ -0,0 +1,320 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.s4.util.queue;
+
+import java.util.AbstractQueue;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A bounded, preallocated {@link BlockingQueue} backed by a ring buffer.
+ * <p>
+ * Producers and consumers coordinate through two sequence counters (the next
+ * position to write and the next position to read) and a sequence number per
+ * slot, which tells whether the slot is free for the producer of a given
+ * position or holds the element of that position. Inserting and removing
+ * elements neither takes a lock nor allocates.
+ * <p>
+ * In single producer mode, the insert position is advanced without a
+ * compare-and-set; the caller must guarantee that a single thread ever
+ * inserts elements. Any number of threads may consume.
+ * <p>
+ * Threads blocked in {@link #put(Object)} or {@link #take()} wait according to
+ * the {@link WaitStrategy} of the queue. {@link #drainTo(Collection, int)}
+ * removes a batch of elements at once and is the preferred way to consume.
+ * <p>
+ * The capacity is rounded up to the next power of two. Iterators are weakly
+ * consistent snapshots and do not support removal.
+ */
+public class RingBufferQueue<E> extends AbstractQueue<E> implements
+        BlockingQueue<E> {
+
+    private final int capacity;
+    private final int mask;
+    private final Object[] slots;
+    private final AtomicLongArray slotSequences;
+    private final boolean singleProducer;
+    private final WaitStrategy waitStrategy;
+
+    // next position to write
+    private final Sequence tail = new Sequence();
+    // next position to read
+    private final Sequence head = new Sequence();
+
+    public RingBufferQueue(int capacity) {
+        this(capacity, false, new ParkingWaitStrategy());
+    }
+
+    public RingBufferQueue(int capacity, boolean singleProducer,
+            WaitStrategy waitStrategy) {
+        if (capacity <= 0 || capacity > (1 << 30)) {
+            throw new IllegalArgumentException("Invalid capacity " + capacity);
+        }
+        int size = 1;
+        while (size < capacity) {
+            size <<= 1;
+        }
+        this.capacity = size;
+        this.mask = size - 1;
+        this.slots = new Object[size];
+        this.slotSequences = new AtomicLongArray(size);
+        for (int i = 0; i < size; i++) {
+            slotSequences.set(i, i);
+        }
+        this.singleProducer = singleProducer;
+        this.waitStrategy = waitStrategy;
+    }
+
+    public int getCapacity() {
+        return capacity;
+    }
+
+    @Override
+    public boolean offer(E e) {
+        if (e == null) {
+            throw new NullPointerException();
+        }
+        long position = tail.get();
+        int index;
+        while (true) {
+            index = (int) position & mask;
+            long difference = slotSequences.get(index) - position;
+            if (difference == 0) {
+                if (singleProducer) {
+                    tail.lazySet(position + 1);
+                    break;
+                }
+                if (tail.compareAndSet(position, position + 1)) {
+                    break;
+                }
+                position = tail.get();
+            } else if (difference < 0) {
+                // the slot still holds the element written one lap ago
+                return false;
+            } else {
+                position = tail.get();
+            }
+        }
+        slots[index] = e;
+        // publishes the element
+        slotSequences.lazySet(index, position + 1);
+        return true;
+    }
+
+    @Override
+    public E poll() {
+        long position = head.get();
+        int index;
+        while (true) {
+            index = (int) position & mask;
+            long difference = slotSequences.get(index) - (position + 1);
+            if (difference == 0) {
+                if (head.compareAndSet(position, position + 1)) {
+                    break;
+                }
+                position = head.get();
+            } else if (difference < 0) {
+                return null;
+            } else {
+                position = head.get();
+            }
+        }
+        return release(index, position);
+    }
+
+    @SuppressWarnings("unchecked")
+    private E release(int index, long position) {
+        E e = (E) slots[index];
+        slots[index] = null;
+        // frees the slot for the producer of the next lap
+        slotSequences.lazySet(index, position + capacity);
+        return e;
+    }
+
+    @SuppressWarnings("unchecked")
+    @Override
+    public E peek() {
+        while (true) {
+            long position = head.get();
+            int index = (int) position & mask;
+            if (slotSequences.get(index) != position + 1) {
+                return null;
+            }
+            E e = (E) slots[index];
+            if (e != null && head.get() == position) {
+                return e;
+            }
+        }
+    }
+
+    @Override
+    public void put(E e) throws InterruptedException {
+        int attempts = 0;
+        while (!offer(e)) {
+            waitStrategy.idle(attempts++);
+        }
+    }
+
+    @Override
+    public boolean offer(E e, long timeout, TimeUnit unit)
+            throws InterruptedException {
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        int attempts = 0;
+        while (!offer(e)) {
+            if (System.nanoTime() - deadline >= 0) {
+                return false;
+            }
+            waitStrategy.idle(attempts++);
+        }
+        return true;
+    }
+
+    @Override
+    public E take() throws InterruptedException {
+        int attempts = 0;
+        E e;
+        while ((e = poll()) == null) {
+            waitStrategy.idle(attempts++);
+        }
+        return e;
+    }
+
+    @Override
+    public E poll(long timeout, TimeUnit unit) throws InterruptedException {
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        int attempts = 0;
+        E e;
+        while ((e = poll()) == null) {
+            if (System.nanoTime() - deadline >= 0) {
+                return null;
+            }
+            waitStrategy.idle(attempts++);
+        }
+        return e;
+    }
+
+    @Override
+    public int drainTo(Collection<? super E> c) {
+        return drainTo(c, Integer.MAX_VALUE);
+    }
+
+    /**
+     * Removes up to <code>maxElements</code> available elements with a single
+     * update of the read position.
+     */
+    @Override
+    public int drainTo(Collection<? super E> c, int maxElements) {
+        if (c == null) {
+            throw new NullPointerException();
+        }
+        if (c == this) {
+            throw new IllegalArgumentException();
+        }
+        int max = Math.min(maxElements, capacity);
+        while (true) {
+            long position = head.get();
+            int available = 0;
+            while (available < max
+                    && slotSequences.get((int) (position + available) & mask) == position
+                            + available + 1) {
+                available++;
+            }
+            if (available == 0) {
+                return 0;
+            }
+            // no other consumer can take the claimed elements once the read
+            // position has moved past them
+            if (head.compareAndSet(position, position + available)) {
+                for (int i = 0; i < available; i++) {
+                    c.add(release((int) (position + i) & mask, position + i));
+                }
+                return available;
+            }
+        }
+    }
+
+    @Override
+    public int remainingCapacity() {
+        return capacity - size();
+    }
+
+    @Override
+    public int size() {
+        long h = head.get();
+        long size = tail.get() - h;
+        if (size < 0) {
+            return 0;
+        }
+        return (int) Math.min(size, capacity);
+    }
+
+    @Override
+    public boolean isEmpty() {
+        return size() == 0;
+    }
+
+    @SuppressWarnings("unchecked")
+    @Override
+    public Iterator<E> iterator() {
+        List<E> snapshot = new ArrayList<E>();
+        long position = head.get();
+        for (int i = 0; i < capacity; i++) {
+            int index = (int) (position + i) & mask;
+            if (slotSequences.get(index) != position + i + 1) {
+                break;
+            }
+            Object e = slots[index];
+            if (e != null) {
+                snapshot.add((E) e);
+            }
+        }
+        final Iterator<E> it = snapshot.iterator();
+        return new Iterator<E>() {
+            public boolean hasNext() {
+                return it.hasNext();
+            }
+
+            public E next() {
+                return it.next();
+            }
+
+            public void remove() {
+                throw new UnsupportedOperationException();
+            }
+        };
+    }
+
+    /**
+     * Sequence counter padded so that the read and write positions do not
+     * share a cache line.
+     */
+    @SuppressWarnings("serial")
+    static final class Sequence extends AtomicLong {
+        volatile long p1, p2, p3, p4, p5, p6, p7 = 7L;
+
+        long sumPaddingToPreventOptimisation() {
+            return p1 + p2 + p3 + p4 + p5 + p6 + p7;
+        }
+    }
+}
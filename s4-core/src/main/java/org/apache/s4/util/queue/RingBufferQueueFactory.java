@@ -0,0 +1,69 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.s4.util.queue;
+
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * Creates {@link RingBufferQueue}s.
+ * <p>
+ * Configuration example:
+ * 
+ * <pre>
+ * &lt;bean id="queueFactory" class="org.apache.s4.util.queue.RingBufferQueueFactory"&gt;
+ *   &lt;property name="waitStrategy"&gt;
+ *     &lt;bean class="org.apache.s4.util.queue.YieldingWaitStrategy"/&gt;
+ *   &lt;/property&gt;
+ * &lt;/bean&gt;
+ * </pre>
+ */
+public class RingBufferQueueFactory implements QueueFactory {
+
+    private WaitStrategy waitStrategy = new ParkingWaitStrategy();
+    private int defaultCapacity = 65536;
+    private boolean multiProducer = false;
+
+    /**
+     * Wait strategy of the created queues. Defaults to
+     * {@link ParkingWaitStrategy}.
+     */
+    public void setWaitStrategy(WaitStrategy waitStrategy) {
+        this.waitStrategy = waitStrategy;
+    }
+
+    /**
+     * Capacity used for queues requested as unbounded. Defaults to 65536.
+     */
+    public void setDefaultCapacity(int defaultCapacity) {
+        this.defaultCapacity = defaultCapacity;
+    }
+
+    /**
+     * Always create multi-producer queues, even when the stage declares a
+     * single producer. Defaults to false.
+     */
+    public void setMultiProducer(boolean multiProducer) {
+        this.multiProducer = multiProducer;
+    }
+
+    @Override
+    public <E> BlockingQueue<E> createQueue(int capacity, boolean singleProducer) {
+        return new RingBufferQueue<E>(capacity > 0 ? capacity
+                : defaultCapacity, singleProducer && !multiProducer, waitStrategy);
+    }
+}
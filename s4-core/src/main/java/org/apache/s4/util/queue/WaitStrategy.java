@@ -0,0 +1,40 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.s4.util.queue;
+
+/**
+ * Strategy used by the threads of a {@link RingBufferQueue} while they wait
+ * for the queue to become non-empty (consumers) or non-full (producers).
+ * <p>
+ * Producers never signal waiting consumers: waiting threads poll the queue
+ * again after each call to {@link #idle(int)}. The strategy therefore trades
+ * CPU usage against the latency with which a waiting thread notices a change.
+ */
+public interface WaitStrategy {
+
+    /**
+     * Called each time a thread finds the queue empty (or full).
+     * 
+     * @param attempts
+     *            the number of consecutive unsuccessful attempts so far,
+     *            starting at 0
+     * @throws InterruptedException
+     *             if the waiting thread is interrupted
+     */
+    void idle(int attempts) throws InterruptedException;
+}
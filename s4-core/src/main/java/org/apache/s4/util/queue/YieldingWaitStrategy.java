@@ -0,0 +1,45 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.s4.util.queue;
+
+/**
+ * Spins for a while, then yields the processor between attempts. Low latency,
+ * and leaves the cores to other runnable threads, but still shows a waiting
+ * thread as busy.
+ */
+public class YieldingWaitStrategy implements WaitStrategy {
+
+    private int spinTries = 100;
+
+    /**
+     * Number of attempts before starting to yield. Defaults to 100.
+     */
+    public void setSpinTries(int spinTries) {
+        this.spinTries = spinTries;
+    }
+
+    @Override
+    public void idle(int attempts) throws InterruptedException {
+        if (Thread.interrupted()) {
+            throw new InterruptedException();
+        }
+        if (attempts >= spinTries) {
+            Thread.yield();
+        }
+    }
+}
@@ -0,0 +1,250 @@
+package org.apache.s4.dispatcher;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.apache.s4.collector.EventWrapper;
+import org.apache.s4.dispatcher.partitioner.CompoundKeyInfo;
+import org.apache.s4.dispatcher.partitioner.DefaultHasher;
+import org.apache.s4.dispatcher.partitioner.DefaultPartitioner;
+import org.apache.s4.dispatcher.partitioner.Partitioner;
+import org.apache.s4.emitter.EventEmitter;
+import org.junit.Test;
+
+public class TestDispatcher
+{
+
+   public static class Visit {
+       private String user;
+       private String page;
+
+       public Visit() {
+       }
+
+       public Visit(String user, String page) {
+           this.user = user;
+           this.page = page;
+       }
+
+       public String getUser() {
+           return user;
+       }
+
+       public void setUser(String user) {
+           this.user = user;
+       }
+
+       public String getPage() {
+           return page;
+       }
+
+       public void setPage(String page) {
+           this.page = page;
+       }
+   }
+
+   private static final int NODE_COUNT = 4;
+
+   /**
+    * Records the events emitted, in order, and the lists of the batch calls.
+    */
+   static class RecordingEmitter implements EventEmitter {
+       final List<Integer> partitions = new ArrayList<Integer>();
+       final List<EventWrapper> eventWrappers = new ArrayList<EventWrapper>();
+       // one entry per call of emit(int, List)
+       final List<Integer> batchPartitions = new ArrayList<Integer>();
+       final List<List<EventWrapper>> batches = new ArrayList<List<EventWrapper>>();
+
+       public void emit(int partitionId, EventWrapper eventWrapper) {
+           partitions.add(partitionId);
+           eventWrappers.add(eventWrapper);
+       }
+
+       public void emit(int partitionId, List<EventWrapper> eventWrappers) {
+           batchPartitions.add(partitionId);
+           batches.add(new ArrayList<EventWrapper>(eventWrappers));
+           for (EventWrapper eventWrapper : eventWrappers) {
+               emit(partitionId, eventWrapper);
+           }
+       }
+
+       public int getNodeCount() {
+           return NODE_COUNT;
+       }
+   }
+
+   private static Partitioner partitioner(String hashKey) {
+       DefaultPartitioner partitioner = new DefaultPartitioner();
+       partitioner.setHashKey(new String[] { hashKey });
+       partitioner.setHasher(new DefaultHasher());
+       return partitioner;
+   }
+
+   private static Dispatcher dispatcher(EventEmitter emitter) {
+       Dispatcher dispatcher = new Dispatcher();
+       dispatcher.setPartitioners(new Partitioner[] { partitioner("user"),
+               partitioner("page") });
+       dispatcher.setEventEmitter(emitter);
+       return dispatcher;
+   }
+
+   private static List<Visit> visits(int count) {
+       List<Visit> visits = new ArrayList<Visit>();
+       for (int i = 0; i < count; i++) {
+           visits.add(new Visit("user" + i, "page" + (i % 7)));
+       }
+       return visits;
+   }
+
+   /**
+    * Every (event, key) pair is emitted once, to the partition of the key,
+    * with one wrapper per event and partition, and one call per partition.
+    */
+   private static void assertGrouped(List<Visit> visits,
+           RecordingEmitter emitter, int firstBatch, int firstEvent) {
+       Partitioner user = partitioner("user");
+       Partitioner page = partitioner("page");
+       Set<String> expected = new HashSet<String>();
+       for (Visit visit : visits) {
+           for (Partitioner partitioner : new Partitioner[] { user, page }) {
+               CompoundKeyInfo key = partitioner.partition("visits", visit,
+                       NODE_COUNT).get(0);
+               expected.add(System.identityHashCode(visit) + " "
+                       + key.getCompoundKey() + "=" + key.getCompoundValue()
+                       + "@" + key.getPartitionId());
+           }
+       }
+
+       Set<Integer> batchPartitions = new HashSet<Integer>();
+       for (int i = firstBatch; i < emitter.batches.size(); i++) {
+           assertTrue(batchPartitions.add(emitter.batchPartitions.get(i)));
+           // events of a partition in dispatch order
+           int previous = -1;
+           for (EventWrapper eventWrapper : emitter.batches.get(i)) {
+               int index = visits.indexOf(eventWrapper.getEvent());
+               assertTrue(index > previous);
+               previous = index;
+           }
+       }
+
+       Set<String> emitted = new HashSet<String>();
+       for (int i = firstEvent; i < emitter.eventWrappers.size(); i++) {
+           EventWrapper eventWrapper = emitter.eventWrappers.get(i);
+           int partitionId = emitter.partitions.get(i);
+           Set<String> keyNames = new HashSet<String>();
+           for (CompoundKeyInfo key : eventWrapper.getCompoundKeys()) {
+               assertEquals(partitionId, key.getPartitionId());
+               assertTrue(keyNames.add(key.getCompoundKey()));
+               assertTrue(emitted.add(System.identityHashCode(eventWrapper.getEvent())
+                       + " "
+                       + key.getCompoundKey()
+                       + "="
+                       + key.getCompoundValue() + "@" + partitionId));
+           }
+       }
+       assertEquals(expected, emitted);
+   }
+
+   @Test
+   public void testGroupingByPartition() {
+       RecordingEmitter emitter = new RecordingEmitter();
+       Dispatcher dispatcher = dispatcher(emitter);
+       List<Visit> visits = visits(200);
+       dispatcher.dispatchEvents("visits", visits);
+       assertTrue(emitter.batches.size() <= NODE_COUNT);
+       assertGrouped(visits, emitter, 0, 0);
+       // some events have both keys on one partition, in a single wrapper
+       assertTrue(emitter.eventWrappers.size() < 2 * visits.size());
+
+       // the scratch space is reused by the next dispatch
+       int firstBatch = emitter.batches.size();
+       int firstEvent = emitter.eventWrappers.size();
+       List<Visit> more = visits(50);
+       dispatcher.dispatchEvents("visits", more);
+       assertGrouped(more, emitter, firstBatch, firstEvent);
+
+       // single events with several keys go through the same grouping
+       firstBatch = emitter.batches.size();
+       firstEvent = emitter.eventWrappers.size();
+       for (Visit visit : more) {
+           dispatcher.dispatchEvent("visits", visit);
+       }
+       assertEquals(firstBatch, emitter.batches.size());
+       assertGrouped(more, emitter, firstBatch, firstEvent);
+   }
+
+   /**
+    * Dispatches a nested stream from within each emit of the outer one, as
+    * an emitter delivering locally to a PE that emits would.
+    */
+   static class ReentrantEmitter extends RecordingEmitter {
+       Dispatcher dispatcher;
+       List<Visit> nested;
+       final RecordingEmitter nestedEmitter = new RecordingEmitter();
+       // the lists received, before and after the nested dispatch
+       final List<List<EventWrapper>> before = new ArrayList<List<EventWrapper>>();
+       final List<List<EventWrapper>> after = new ArrayList<List<EventWrapper>>();
+
+       public void emit(int partitionId, EventWrapper eventWrapper) {
+           if (eventWrapper.getStreamName().equals("nested")) {
+               nestedEmitter.emit(partitionId, eventWrapper);
+           } else {
+               super.emit(partitionId, eventWrapper);
+           }
+       }
+
+       public void emit(int partitionId, List<EventWrapper> eventWrappers) {
+           if (eventWrappers.get(0).getStreamName().equals("nested")) {
+               nestedEmitter.emit(partitionId, eventWrappers);
+               return;
+           }
+           before.add(new ArrayList<EventWrapper>(eventWrappers));
+           dispatcher.dispatchEvents("nested", nested);
+           for (Visit visit : nested) {
+               dispatcher.dispatchEvent("nested", visit);
+           }
+           after.add(new ArrayList<EventWrapper>(eventWrappers));
+           super.emit(partitionId, eventWrappers);
+       }
+   }
+
+   /**
+    * A dispatch from within emit gets its own scratch space: the list being
+    * emitted is not changed under the emitter, and both streams are
+    * delivered in full.
+    */
+   @Test
+   public void testReentrantDispatch() {
+       ReentrantEmitter emitter = new ReentrantEmitter();
+       Dispatcher dispatcher = dispatcher(emitter);
+       emitter.dispatcher = dispatcher;
+       emitter.nested = visits(30);
+
+       List<Visit> visits = visits(200);
+       dispatcher.dispatchEvents("visits", visits);
+       assertTrue(emitter.before.size() > 1);
+       assertEquals(emitter.before, emitter.after);
+       assertGrouped(visits, emitter, 0, 0);
+
+       // each emit of the outer stream dispatched the nested events twice,
+       // in a batch then one by one, both grouped alike
+       RecordingEmitter nestedEmitter = emitter.nestedEmitter;
+       int half = nestedEmitter.eventWrappers.size() / emitter.before.size()
+               / 2;
+       assertEquals(2 * half * emitter.before.size(),
+               nestedEmitter.eventWrappers.size());
+       for (int start = 0; start < nestedEmitter.eventWrappers.size(); start += half) {
+           RecordingEmitter dispatched = new RecordingEmitter();
+           dispatched.partitions.addAll(nestedEmitter.partitions.subList(start,
+                   start + half));
+           dispatched.eventWrappers.addAll(nestedEmitter.eventWrappers.subList(start,
+                   start + half));
+           assertGrouped(emitter.nested, dispatched, 0, 0);
+       }
+   }
+}
@@ -0,0 +1,178 @@
+package org.apache.s4.dispatcher.combiner;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.s4.collector.EventWrapper;
+import org.apache.s4.dispatcher.Dispatcher;
+import org.apache.s4.dispatcher.partitioner.CompoundKeyInfo;
+import org.apache.s4.dispatcher.partitioner.DefaultHasher;
+import org.apache.s4.dispatcher.partitioner.DefaultPartitioner;
+import org.apache.s4.dispatcher.partitioner.Partitioner;
+import org.apache.s4.emitter.EventEmitter;
+import org.junit.Test;
+
+public class TestCombiningBuffer
+{
+
+   public static class Visit {
+       private String user;
+       private String page;
+       private long count;
+
+       public Visit() {
+       }
+
+       public Visit(String user, String page, long count) {
+           this.user = user;
+           this.page = page;
+           this.count = count;
+       }
+
+       public String getUser() {
+           return user;
+       }
+
+       public void setUser(String user) {
+           this.user = user;
+       }
+
+       public String getPage() {
+           return page;
+       }
+
+       public void setPage(String page) {
+           this.page = page;
+       }
+
+       public long getCount() {
+           return count;
+       }
+
+       public void setCount(long count) {
+           this.count = count;
+       }
+   }
+
+   /**
+    * Sums the counts of the emitted events by key.
+    */
+   static class SummingEmitter implements EventEmitter {
+       final Map<String, Long> totals = new HashMap<String, Long>();
+       long total;
+
+       public synchronized void emit(int partitionId, EventWrapper eventWrapper) {
+           long count = ((Visit) eventWrapper.getEvent()).getCount();
+           for (CompoundKeyInfo key : eventWrapper.getCompoundKeys()) {
+               String name = key.getCompoundKey() + "="
+                       + key.getCompoundValue();
+               Long sum = totals.get(name);
+               totals.put(name, (sum == null ? 0 : sum) + count);
+               total += count;
+           }
+       }
+
+       public void emit(int partitionId, List<EventWrapper> eventWrappers) {
+           for (EventWrapper eventWrapper : eventWrappers) {
+               emit(partitionId, eventWrapper);
+           }
+       }
+
+       public int getNodeCount() {
+           return 4;
+       }
+
+       synchronized long getTotal() {
+           return total;
+       }
+
+       synchronized Long getTotal(String key) {
+           return totals.get(key);
+       }
+   }
+
+   private static Partitioner partitioner(String hashKey) {
+       DefaultPartitioner partitioner = new DefaultPartitioner();
+       partitioner.setHashKey(new String[] { hashKey });
+       partitioner.setHasher(new DefaultHasher());
+       return partitioner;
+   }
+
+   /**
+    * Events partitioned on two keys are wrapped once per partition; merging
+    * the events of one partition must not change those of the other one.
+    */
+   @Test
+   public void testEventsOnSeveralPartitions() throws Exception {
+       SummingEmitter emitter = new SummingEmitter();
+       SummingCombiner combiner = new SummingCombiner();
+       combiner.setProperty("count");
+       Map<String, Combiner> combiners = new HashMap<String, Combiner>();
+       combiners.put("visits", combiner);
+
+       Dispatcher dispatcher = new Dispatcher();
+       dispatcher.setPartitioners(new Partitioner[] { partitioner("user"),
+               partitioner("page") });
+       dispatcher.setEventEmitter(emitter);
+       dispatcher.setCombiners(combiners);
+       dispatcher.setCombineWindow(10);
+       dispatcher.init();
+
+       int eventCount = 300;
+       List<Visit> visits = new ArrayList<Visit>();
+       List<Visit> batch = new ArrayList<Visit>();
+       for (int i = 0; i < eventCount; i++) {
+           Visit visit = new Visit("user" + (i % 5), "page" + (i % 3), 2);
+           visits.add(visit);
+           if (i % 2 == 0) {
+               dispatcher.dispatchEvent("visits", visit);
+           } else {
+               batch.add(visit);
+               if (batch.size() == 10) {
+                   dispatcher.dispatchEvents("visits", batch);
+                   batch.clear();
+               }
+           }
+       }
+       dispatcher.dispatchEvents("visits", batch);
+
+       // each event counts once for its user and once for its page
+       long expected = 2L * 2 * eventCount;
+       for (int i = 0; i < 200 && emitter.getTotal() < expected; i++) {
+           Thread.sleep(10);
+       }
+       Thread.sleep(50);
+       assertEquals(expected, emitter.getTotal());
+       for (int u = 0; u < 5; u++) {
+           assertEquals(Long.valueOf(2 * eventCount / 5),
+                   emitter.getTotal("user=user" + u));
+       }
+       for (int p = 0; p < 3; p++) {
+           assertEquals(Long.valueOf(2 * eventCount / 3),
+                   emitter.getTotal("page=page" + p));
+       }
+       // the dispatched events are left as they were
+       for (Visit visit : visits) {
+           assertEquals(2, visit.getCount());
+       }
+   }
+
+   @Test
+   public void testCopyIsIndependent() {
+       SummingCombiner combiner = new SummingCombiner();
+       combiner.setProperty("count");
+       Visit first = new Visit("u", "p", 3);
+       Visit copy = (Visit) combiner.copy(first);
+       assertTrue(copy != first);
+       assertEquals("u", copy.getUser());
+       assertEquals("p", copy.getPage());
+       assertTrue(combiner.combine(copy, new Visit("u", "p", 4)) == copy);
+       assertEquals(7, copy.getCount());
+       assertEquals(3, first.getCount());
+   }
+}
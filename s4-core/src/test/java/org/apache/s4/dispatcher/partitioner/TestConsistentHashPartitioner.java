@@ -0,0 +1,164 @@
+package org.apache.s4.dispatcher.partitioner;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.apache.s4.message.PartialState;
+import org.apache.s4.message.SinglePERequest;
+import org.junit.Test;
+
+public class TestConsistentHashPartitioner
+{
+
+   public static class Visit {
+       private String user;
+       private String page;
+
+       public Visit() {
+       }
+
+       public Visit(String user, String page) {
+           this.user = user;
+           this.page = page;
+       }
+
+       public String getUser() {
+           return user;
+       }
+
+       public void setUser(String user) {
+           this.user = user;
+       }
+
+       public String getPage() {
+           return page;
+       }
+
+       public void setPage(String page) {
+           this.page = page;
+       }
+   }
+
+   private static ConsistentHashPartitioner partitioner(String... hashKey) {
+       ConsistentHashPartitioner partitioner = new ConsistentHashPartitioner();
+       partitioner.setHashKey(hashKey);
+       partitioner.setHasher(new DefaultHasher());
+       return partitioner;
+   }
+
+   @Test
+   public void testLookup() {
+       ConsistentHashPartitioner.Ring ring = new ConsistentHashPartitioner.Ring(2, 4);
+       assertEquals(8, ring.points.length);
+       for (int i = 1; i < ring.points.length; i++) {
+           assertTrue(ring.points[i - 1] <= ring.points[i]);
+       }
+       // a hash on a point goes to its owner, one past it to the next point
+       for (int i = 0; i < ring.points.length - 1; i++) {
+           if (ring.points[i] != ring.points[i + 1]) {
+               assertEquals(ring.owners[i], ring.lookup(ring.points[i]));
+               assertEquals(ring.owners[i + 1],
+                       ring.lookup(ring.points[i] + 1));
+           }
+       }
+       // past the last point, the ring wraps around to the first one
+       int last = ring.points.length - 1;
+       assertEquals(ring.owners[0], ring.lookup(0xffffffffL));
+       if (ring.points[last] < 0xffffffffL) {
+           assertEquals(ring.owners[0], ring.lookup(ring.points[last] + 1));
+       }
+       assertEquals(ring.owners[0], ring.lookup(0));
+
+       // equal points go to the first of them, the lowest partition
+       long[] points = { 10, 20, 20, 20, 30, 40, 50, 60 };
+       int[] owners = { 0, 1, 0, 1, 0, 1, 0, 1 };
+       System.arraycopy(points, 0, ring.points, 0, points.length);
+       System.arraycopy(owners, 0, ring.owners, 0, owners.length);
+       assertEquals(0, ring.lookup(5));
+       assertEquals(0, ring.lookup(10));
+       assertEquals(1, ring.lookup(11));
+       assertEquals(1, ring.lookup(20));
+       assertEquals(0, ring.lookup(21));
+       assertEquals(1, ring.lookup(60));
+       assertEquals(0, ring.lookup(61));
+   }
+
+   /**
+    * Growing from 16 to 20 partitions only moves the keys taken over by the
+    * new partitions, about 4/20 of them.
+    */
+   @Test
+   public void testMovedKeys() {
+       // one partitioner per count, as each one caches a single ring
+       ConsistentHashPartitioner before16 = partitioner("user");
+       ConsistentHashPartitioner after20 = partitioner("user");
+       DefaultPartitioner modulo = new DefaultPartitioner();
+       DefaultHasher hasher = new DefaultHasher();
+       int keyCount = 100000;
+       int moved = 0;
+       int movedByModulo = 0;
+       int[] counts = new int[20];
+       for (int i = 0; i < keyCount; i++) {
+           long hash = hasher.hash("user" + i);
+           int before = before16.getPartitionId(hash, 16);
+           int after = after20.getPartitionId(hash, 20);
+           counts[after]++;
+           if (before != after) {
+               moved++;
+               assertTrue(after >= 16);
+           }
+           if (modulo.getPartitionId(hash, 16) != modulo.getPartitionId(hash,
+                   20)) {
+               movedByModulo++;
+           }
+       }
+       double fraction = (double) moved / keyCount;
+       assertTrue("moved " + fraction, fraction > 0.15 && fraction < 0.25);
+       assertTrue(movedByModulo > keyCount / 2);
+       for (int count : counts) {
+           assertTrue("count " + count, count > keyCount / 20 / 2
+                   && count < keyCount / 20 * 2);
+       }
+   }
+
+   private static int partitionOf(List<CompoundKeyInfo> partitionInfoList) {
+       assertEquals(1, partitionInfoList.size());
+       return partitionInfoList.get(0).getPartitionId();
+   }
+
+   /**
+    * Requests and partial states for a key reach the partition of the
+    * key's events.
+    */
+   @Test
+   public void testRequestsFollowEvents() {
+       ConsistentHashPartitioner single = partitioner("user");
+       ConsistentHashPartitioner compound = partitioner("user", "page");
+       List<String> query = Collections.singletonList("$count");
+       int differentFromModulo = 0;
+       for (int i = 0; i < 200; i++) {
+           String user = "user" + i;
+           String page = "page" + (i % 7);
+           Visit visit = new Visit(user, page);
+
+           int partition = partitionOf(single.partition("visits", visit, 20));
+           assertEquals(partition, partitionOf(single.partition("visits",
+                   new SinglePERequest(Arrays.asList(user), query), 20)));
+           assertEquals(partition, partitionOf(single.partition("visits",
+                   new PartialState(user, null), 20)));
+           if (partition != new DefaultHasher().hash(user) % 20) {
+               differentFromModulo++;
+           }
+
+           assertEquals(partitionOf(compound.partition("visits", visit, 20)),
+                   partitionOf(compound.partition("visits",
+                           new SinglePERequest(Arrays.asList(user, page),
+                                   query), 20)));
+       }
+       assertTrue(differentFromModulo > 0);
+   }
+}
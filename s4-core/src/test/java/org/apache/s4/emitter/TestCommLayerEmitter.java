@@ -0,0 +1,363 @@
+package org.apache.s4.emitter;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.s4.collector.EventWrapper;
+import org.apache.s4.dispatcher.partitioner.CompoundKeyInfo;
+import org.apache.s4.dispatcher.partitioner.KeyInfo;
+import org.apache.s4.emitter.CommLayerEmitter.MessageHolder;
+import org.apache.s4.emitter.CommLayerEmitter.OverflowPolicy;
+import org.apache.s4.listener.CommLayerListener;
+import org.apache.s4.listener.EventHandler;
+import org.apache.s4.logger.Log4jMonitor;
+import org.apache.s4.serialize.KryoSerDeser;
+import org.apache.s4.util.MetricsName;
+import org.apache.s4.util.queue.LinkedQueueFactory;
+import org.junit.Test;
+
+public class TestCommLayerEmitter
+{
+
+   public static class Click {
+       private long user;
+       private String page;
+
+       public Click() {
+       }
+
+       public Click(long user, String page) {
+           this.user = user;
+           this.page = page;
+       }
+
+       public long getUser() {
+           return user;
+       }
+
+       public String getPage() {
+           return page;
+       }
+
+       public void setPage(String page) {
+           this.page = page;
+       }
+   }
+
+   static class RecordingHandler implements EventHandler {
+       final List<EventWrapper> received = new ArrayList<EventWrapper>();
+
+       public void processEvent(EventWrapper eventWrapper) {
+           received.add(eventWrapper);
+       }
+   }
+
+   /**
+    * Keys as built by the partitioner, with raw values.
+    */
+   private static List<CompoundKeyInfo> keys(long user, int partitionId) {
+       KeyInfo keyInfo = new KeyInfo();
+       keyInfo.addElementToPath("user");
+       keyInfo.setRawValue(Long.valueOf(user));
+       CompoundKeyInfo key = new CompoundKeyInfo();
+       key.addKeyInfo(keyInfo);
+       key.setCompoundKey("user");
+       key.setRawCompoundValue(Long.valueOf(user));
+       key.setPartitionId(partitionId);
+       List<CompoundKeyInfo> keys = new ArrayList<CompoundKeyInfo>();
+       keys.add(key);
+       return keys;
+   }
+
+   /**
+    * An event delivered locally, with the default copy, is the event the
+    * listener would have decoded from the network, and is not shared with
+    * the emitter.
+    */
+   @Test
+   public void testLocalDeliveryMatchesNetwork() {
+       KryoSerDeser serDeser = new KryoSerDeser();
+       RecordingHandler handler = new RecordingHandler();
+       CommLayerListener listener = new CommLayerListener();
+       listener.addHandler(handler);
+       CommLayerEmitter emitter = new CommLayerEmitter();
+       emitter.setSerDeser(serDeser);
+       emitter.setListener(listener);
+       emitter.setLocalDelivery(true);
+
+       Click click = new Click(7, "home");
+       EventWrapper emitted = new EventWrapper("clicks", click,
+               keys(7, listener.getId()));
+       emitter.emit(listener.getId(), emitted);
+       assertEquals(1, handler.received.size());
+       EventWrapper local = handler.received.get(0);
+       // as the listener decodes the messages of the emitter
+       EventWrapper network = (EventWrapper) serDeser.deserialize(ByteBuffer.wrap(serDeser.serialize(emitted)));
+
+       assertTrue(local != emitted);
+       assertTrue(Arrays.equals(serDeser.serialize(network),
+               serDeser.serialize(local)));
+       assertEquals(network.getStreamName(), local.getStreamName());
+       CompoundKeyInfo key = local.getCompoundKeys().get(0);
+       assertEquals("user", key.getCompoundKey());
+       assertEquals("7", key.getCompoundValue());
+       assertEquals("7", key.getKeyInfoList().get(0).getValue());
+       assertEquals(listener.getId(), key.getPartitionId());
+       Click received = (Click) local.getEvent();
+       assertTrue(received != click);
+       assertEquals(7, received.getUser());
+       assertEquals("home", received.getPage());
+
+       // later changes by the emitting PE are not seen by the receivers
+       click.setPage("cart");
+       assertEquals("home", received.getPage());
+
+       // without the copy, the receivers share the event
+       emitter.setCopyLocalEvents(false);
+       emitter.emit(listener.getId(), emitted);
+       assertEquals(2, handler.received.size());
+       assertTrue(handler.received.get(1) == emitted);
+   }
+
+   /**
+    * Keeps the queues it creates, one per sender thread, in order.
+    */
+   static class RecordingQueueFactory extends LinkedQueueFactory {
+       final List<BlockingQueue<MessageHolder>> queues = new ArrayList<BlockingQueue<MessageHolder>>();
+
+       @Override
+       @SuppressWarnings("unchecked")
+       public <E> BlockingQueue<E> createQueue(int capacity,
+               boolean singleProducer) {
+           BlockingQueue<E> queue = super.createQueue(capacity, singleProducer);
+           queues.add((BlockingQueue<MessageHolder>) queue);
+           return queue;
+       }
+   }
+
+   /**
+    * Records the threads serializing.
+    */
+   static class RecordingSerDeser extends KryoSerDeser {
+       final List<Thread> threads = Collections.synchronizedList(new ArrayList<Thread>());
+
+       @Override
+       public byte[] serialize(Object message) {
+           threads.add(Thread.currentThread());
+           return super.serialize(message);
+       }
+   }
+
+   /**
+    * An emitter whose queues are never drained: its listener never acquires
+    * a task, so the sending thread waits for it and no sender is created.
+    */
+   private static CommLayerEmitter emitter(int senderThreadCount,
+           int maxQueueSize, OverflowPolicy overflowPolicy,
+           RecordingQueueFactory queueFactory, RecordingSerDeser serDeser,
+           Log4jMonitor monitor) {
+       CommLayerEmitter emitter = new CommLayerEmitter();
+       emitter.setSerDeser(serDeser);
+       emitter.setListener(new CommLayerListener());
+       emitter.setSenderThreadCount(senderThreadCount);
+       emitter.setMaxQueueSize(maxQueueSize);
+       emitter.setOverflowPolicy(overflowPolicy);
+       emitter.setQueueFactory(queueFactory);
+       emitter.setMonitor(monitor);
+       emitter.init();
+       return emitter;
+   }
+
+   private static EventWrapper click(long user, int partitionId) {
+       return new EventWrapper("clicks", new Click(user, "home"), keys(user,
+               partitionId));
+   }
+
+   private static long dropCount(Log4jMonitor monitor) {
+       return monitor.counter(MetricsName.low_level_emitter_drop_ct.toString(),
+               MetricsName.S4_CORE_METRICS.toString()).get();
+   }
+
+   /**
+    * Messages are serialized by the emitting thread, and queued to the
+    * sender thread of their partition, in order.
+    */
+   @Test
+   public void testShardSelection() throws Exception {
+       RecordingQueueFactory queueFactory = new RecordingQueueFactory();
+       RecordingSerDeser emitterSerDeser = new RecordingSerDeser();
+       final CommLayerEmitter emitter = emitter(4, 1000, OverflowPolicy.BLOCK,
+               queueFactory, emitterSerDeser, new Log4jMonitor());
+       assertEquals(4, queueFactory.queues.size());
+
+       final int[] partitionIds = { 0, 1, 2, 3, 4, 5, 6, 7, 9, 13, -3,
+               Integer.MIN_VALUE + 2 };
+       final KryoSerDeser serDeser = new KryoSerDeser();
+       final Map<Integer, List<byte[]>> sent = new HashMap<Integer, List<byte[]>>();
+       Thread emitting = new Thread("emitting") {
+           public void run() {
+               for (int i = 0; i < 10; i++) {
+                   for (int partitionId : partitionIds) {
+                       EventWrapper eventWrapper = click(i, partitionId);
+                       if (!sent.containsKey(partitionId)) {
+                           sent.put(partitionId, new ArrayList<byte[]>());
+                       }
+                       sent.get(partitionId).add(serDeser.serialize(eventWrapper));
+                       emitter.emit(partitionId, eventWrapper);
+                   }
+               }
+           }
+       };
+       emitting.start();
+       emitting.join();
+
+       // queued serialized, by the emitting thread
+       assertEquals(10 * partitionIds.length, emitterSerDeser.threads.size());
+       for (Thread thread : emitterSerDeser.threads) {
+           assertTrue(thread == emitting);
+       }
+
+       Map<Integer, List<byte[]>> queued = new HashMap<Integer, List<byte[]>>();
+       int total = 0;
+       for (int i = 0; i < 4; i++) {
+           for (MessageHolder messageHolder : queueFactory.queues.get(i)) {
+               int partitionId = messageHolder.getPartitionId();
+               assertEquals(i, (partitionId & Integer.MAX_VALUE) % 4);
+               if (!queued.containsKey(partitionId)) {
+                   queued.put(partitionId, new ArrayList<byte[]>());
+               }
+               queued.get(partitionId).add(messageHolder.getRawMessage());
+               total++;
+           }
+       }
+       assertEquals(10 * partitionIds.length, total);
+       // 0 4 | 1 5 9 13 -3 | 2 6 MIN_VALUE+2 | 3 7
+       assertEquals(20, queueFactory.queues.get(0).size());
+       assertEquals(50, queueFactory.queues.get(1).size());
+       assertEquals(30, queueFactory.queues.get(2).size());
+       assertEquals(20, queueFactory.queues.get(3).size());
+       // each partition in emitting order, negative ids included
+       for (int partitionId : partitionIds) {
+           List<byte[]> expected = sent.get(partitionId);
+           List<byte[]> actual = queued.get(partitionId);
+           assertEquals(expected.size(), actual.size());
+           for (int i = 0; i < expected.size(); i++) {
+               assertTrue(Arrays.equals(expected.get(i), actual.get(i)));
+           }
+       }
+   }
+
+   /**
+    * With the drop policy, messages to a full queue are counted and
+    * dropped, without affecting the other queues.
+    */
+   @Test
+   public void testDropOverflow() {
+       RecordingQueueFactory queueFactory = new RecordingQueueFactory();
+       Log4jMonitor monitor = new Log4jMonitor();
+       CommLayerEmitter emitter = emitter(2, 3, OverflowPolicy.DROP,
+               queueFactory, new RecordingSerDeser(), monitor);
+
+       for (int i = 0; i < 5; i++) {
+           emitter.emit(0, click(i, 0));
+       }
+       assertEquals(2, dropCount(monitor));
+       emitter.emit(1, click(0, 1));
+       assertEquals(2, dropCount(monitor));
+       for (int i = 0; i < 4; i++) {
+           emitter.emit(3, click(10 + i, 3));
+       }
+       assertEquals(4, dropCount(monitor));
+
+       // the first messages were kept
+       BlockingQueue<MessageHolder> queue = queueFactory.queues.get(0);
+       assertEquals(3, queue.size());
+       KryoSerDeser serDeser = new KryoSerDeser();
+       long[] expectedUsers = { 0, 1, 2 };
+       for (long user : expectedUsers) {
+           EventWrapper eventWrapper = (EventWrapper) serDeser.deserialize(queue.poll().getRawMessage());
+           assertEquals(user, ((Click) eventWrapper.getEvent()).getUser());
+       }
+       assertEquals(3, queueFactory.queues.get(1).size());
+
+       // room again
+       emitter.emit(0, click(5, 0));
+       assertEquals(1, queue.size());
+       assertEquals(4, dropCount(monitor));
+   }
+
+   /**
+    * With the blocking policy, a thread emitting to a full queue waits for
+    * room, while the other queues are still available, and nothing is
+    * dropped.
+    */
+   @Test(timeout = 30000)
+   public void testBlockOverflow() throws Exception {
+       RecordingQueueFactory queueFactory = new RecordingQueueFactory();
+       Log4jMonitor monitor = new Log4jMonitor();
+       final CommLayerEmitter emitter = emitter(2, 2, OverflowPolicy.BLOCK,
+               queueFactory, new RecordingSerDeser(), monitor);
+
+       final List<Throwable> errors = Collections.synchronizedList(new ArrayList<Throwable>());
+       Thread emitting = new Thread("emitting") {
+           public void run() {
+               try {
+                   for (int i = 0; i < 4; i++) {
+                       emitter.emit(0, click(i, 0));
+                   }
+               } catch (Throwable t) {
+                   errors.add(t);
+               }
+           }
+       };
+       emitting.start();
+       BlockingQueue<MessageHolder> queue = queueFactory.queues.get(0);
+       while (queue.size() < 2) {
+           Thread.sleep(5);
+       }
+       emitting.join(200);
+       assertTrue(emitting.isAlive());
+       assertEquals(2, queue.size());
+
+       // the other sender thread's queue is not blocked
+       emitter.emit(1, click(9, 1));
+       assertEquals(1, queueFactory.queues.get(1).size());
+
+       KryoSerDeser serDeser = new KryoSerDeser();
+       List<Long> users = new ArrayList<Long>();
+       while (users.size() < 4) {
+           MessageHolder messageHolder = queue.poll(10, TimeUnit.SECONDS);
+           EventWrapper eventWrapper = (EventWrapper) serDeser.deserialize(messageHolder.getRawMessage());
+           users.add(((Click) eventWrapper.getEvent()).getUser());
+       }
+       emitting.join();
+       assertTrue(errors.isEmpty());
+       assertEquals(Arrays.asList(0L, 1L, 2L, 3L), users);
+       assertEquals(0, dropCount(monitor));
+
+       // an interrupted emitting thread gives up, interrupted
+       emitter.emit(0, click(4, 0));
+       emitter.emit(0, click(5, 0));
+       Thread.currentThread().interrupt();
+       try {
+           emitter.emit(0, click(6, 0));
+           fail();
+       } catch (RuntimeException e) {
+           assertTrue(Thread.interrupted());
+       }
+       assertEquals(2, queue.size());
+       assertFalse(Thread.currentThread().isInterrupted());
+   }
+}
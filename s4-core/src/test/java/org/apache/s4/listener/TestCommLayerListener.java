@@ -0,0 +1,258 @@
+package org.apache.s4.listener;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.s4.collector.EventWrapper;
+import org.apache.s4.comm.core.ListenerProcess;
+import org.apache.s4.comm.util.BufferPool;
+import org.apache.s4.dispatcher.partitioner.CompoundKeyInfo;
+import org.apache.s4.listener.CommLayerListener.ReceiveBuffer;
+import org.apache.s4.logger.Log4jMonitor;
+import org.apache.s4.serialize.KryoSerDeser;
+import org.apache.s4.serialize.MessageFrames;
+import org.junit.Test;
+
+public class TestCommLayerListener
+{
+
+   public static class Click {
+       private int id;
+       private String page;
+
+       public Click() {
+       }
+
+       public Click(int id, String page) {
+           this.id = id;
+           this.page = page;
+       }
+
+       public int getId() {
+           return id;
+       }
+
+       public String getPage() {
+           return page;
+       }
+   }
+
+   /**
+    * Every buffer handed out is stamped; the users of a buffer check the
+    * stamp until they release it, so a buffer released too early, or twice,
+    * and handed out again is noticed.
+    */
+   @Test(timeout = 60000)
+   public void testReceiveBufferReferenceCounting() throws Exception {
+       final BufferPool pool = new BufferPool(1024, 3);
+       final BlockingQueue<Object[]> messages = new LinkedBlockingQueue<Object[]>(16);
+       final AtomicInteger errors = new AtomicInteger();
+       final AtomicInteger released = new AtomicInteger();
+       final int messageCount = 20000;
+       List<Thread> threads = new ArrayList<Thread>();
+       for (int i = 0; i < 4; i++) {
+           Thread t = new Thread() {
+               public void run() {
+                   try {
+                       while (true) {
+                           Object[] message = messages.take();
+                           ReceiveBuffer receiveBuffer = (ReceiveBuffer) message[0];
+                           int stamp = (Integer) message[1];
+                           Thread.yield();
+                           if (receiveBuffer.getBuffer().getInt(0) != stamp) {
+                               errors.incrementAndGet();
+                           }
+                           receiveBuffer.release();
+                           if (released.incrementAndGet() == messageCount) {
+                               return;
+                           }
+                       }
+                   } catch (InterruptedException e) {
+                       Thread.currentThread().interrupt();
+                   }
+               }
+           };
+           t.start();
+           threads.add(t);
+       }
+
+       // as the receiver: a few messages per buffer, then the next buffer
+       ReceiveBuffer receiveBuffer = null;
+       for (int i = 0; i < messageCount; i++) {
+           if (i % 5 == 0) {
+               if (receiveBuffer != null) {
+                   receiveBuffer.release();
+               }
+               receiveBuffer = new ReceiveBuffer(pool);
+               receiveBuffer.getBuffer().putInt(0, i);
+           }
+           receiveBuffer.retain();
+           messages.put(new Object[] { receiveBuffer, i - i % 5 });
+       }
+       receiveBuffer.release();
+       while (released.get() < messageCount) {
+           Thread.sleep(5);
+       }
+       for (Thread t : threads) {
+           t.interrupt();
+       }
+
+       assertEquals(0, errors.get());
+       assertEquals(3, pool.getAllocatedCount());
+       // all the buffers are back, once each
+       List<ByteBuffer> buffers = new ArrayList<ByteBuffer>();
+       for (int i = 0; i < 3; i++) {
+           ByteBuffer buffer = pool.acquire();
+           for (ByteBuffer other : buffers) {
+               assertTrue(other != buffer);
+           }
+           buffers.add(buffer);
+       }
+       assertEquals(3, pool.getAllocatedCount());
+   }
+
+   /**
+    * Hands out prepared datagrams, as received from the network.
+    */
+   static class QueuedListenerProcess extends ListenerProcess {
+       final BlockingQueue<byte[]> datagrams = new LinkedBlockingQueue<byte[]>();
+
+       QueuedListenerProcess() {
+           super(null, null);
+       }
+
+       @Override
+       public Object acquireTaskAndCreateListener(Map<String, String> map) {
+           Map<String, String> config = new HashMap<String, String>();
+           config.put("partition", "0");
+           return config;
+       }
+
+       @Override
+       public ByteBuffer listen(ByteBuffer buffer) {
+           byte[] data;
+           try {
+               data = datagrams.take();
+           } catch (InterruptedException e) {
+               Thread.currentThread().interrupt();
+               throw new RuntimeException(e);
+           }
+           int start = buffer.position();
+           buffer.put(data);
+           ByteBuffer message = buffer.duplicate();
+           message.limit(buffer.position());
+           message.position(start);
+           return message.slice();
+       }
+   }
+
+   /**
+    * Decodes the events while they are delivered, as the PE container does.
+    */
+   static class RecordingHandler implements EventHandler {
+       final Map<Integer, Integer> receivedCounts = Collections.synchronizedMap(new HashMap<Integer, Integer>());
+       final AtomicInteger errors = new AtomicInteger();
+       final AtomicInteger count = new AtomicInteger();
+
+       public void processEvent(EventWrapper eventWrapper) {
+           Click click = (Click) eventWrapper.getEvent();
+           CompoundKeyInfo key = eventWrapper.getCompoundKeys().get(0);
+           if (!click.getPage().equals(page(click.getId()))
+                   || !key.getCompoundValue().equals(String.valueOf(click.getId()))) {
+               errors.incrementAndGet();
+           }
+           synchronized (receivedCounts) {
+               Integer received = receivedCounts.get(click.getId());
+               receivedCounts.put(click.getId(), received == null ? 1
+                       : received + 1);
+           }
+           count.incrementAndGet();
+       }
+   }
+
+   private static String page(int id) {
+       StringBuilder page = new StringBuilder();
+       for (int i = 0; i < (id * 37) % 3000; i++) {
+           page.append((char) ('a' + (id + i) % 26));
+       }
+       return page.toString();
+   }
+
+   private static List<CompoundKeyInfo> keys(int id) {
+       CompoundKeyInfo key = new CompoundKeyInfo();
+       key.setCompoundKey("id");
+       key.setCompoundValue(String.valueOf(id));
+       List<CompoundKeyInfo> keys = new ArrayList<CompoundKeyInfo>();
+       keys.add(key);
+       return keys;
+   }
+
+   /**
+    * Several receivers fill a few pooled buffers with single messages and
+    * frames, while the dequeuers decode them: every event is delivered
+    * once and intact, which requires the buffers to be reused, and only
+    * once they are no longer read. Handlers are added and removed
+    * meanwhile.
+    */
+   @Test(timeout = 60000)
+   public void testMultipleReceivers() throws Exception {
+       final QueuedListenerProcess datagramSource = new QueuedListenerProcess();
+       CommLayerListener listener = new CommLayerListener() {
+           @Override
+           ListenerProcess createListenerProcess() {
+               return datagramSource;
+           }
+       };
+       KryoSerDeser serDeser = new KryoSerDeser();
+       listener.setSerDeser(serDeser);
+       listener.setMonitor(new Log4jMonitor());
+       listener.setReceiverThreadCount(3);
+       listener.setMaxReceiveBuffers(4);
+       listener.setReceiveBufferSize(2 * 65507);
+       listener.setMaxQueueSize(100000);
+       RecordingHandler handler = new RecordingHandler();
+       listener.addHandler(handler);
+       listener.init();
+
+       int eventCount = 6000;
+       MessageFrames.Builder frame = new MessageFrames.Builder(8000);
+       for (int id = 0; id < eventCount; id++) {
+           byte[] message = serDeser.serialize(new EventWrapper("clicks",
+                   new Click(id, page(id)), keys(id)));
+           if (id % 3 == 0) {
+               datagramSource.datagrams.add(message);
+           } else if (!frame.add(message)) {
+               datagramSource.datagrams.add(frame.build());
+               frame.reset();
+               frame.add(message);
+           }
+       }
+       datagramSource.datagrams.add(frame.build());
+
+       while (handler.count.get() < eventCount) {
+           RecordingHandler other = new RecordingHandler();
+           listener.addHandler(other);
+           Thread.yield();
+           assertTrue(listener.removeHandler(other));
+           assertEquals(0, other.errors.get());
+       }
+       Thread.sleep(50);
+       assertEquals(0, handler.errors.get());
+       assertEquals(eventCount, handler.count.get());
+       assertEquals(eventCount, handler.receivedCounts.size());
+       for (int received : handler.receivedCounts.values()) {
+           assertEquals(1, received);
+       }
+       assertTrue(datagramSource.datagrams.isEmpty());
+   }
+}
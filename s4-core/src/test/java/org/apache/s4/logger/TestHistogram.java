@@ -0,0 +1,119 @@
+package org.apache.s4.logger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.Test;
+
+public class TestHistogram
+{
+
+   private static List<Long> boundaryValues() {
+       List<Long> values = new ArrayList<Long>();
+       for (long v = 0; v <= 300; v++) {
+           values.add(v);
+       }
+       for (int bit = 7; bit < 63; bit++) {
+           long power = 1L << bit;
+           values.add(power - 1);
+           values.add(power);
+           values.add(power + 1);
+           values.add(power + (power >>> 1));
+       }
+       values.add(Long.MAX_VALUE - 1);
+       values.add(Long.MAX_VALUE);
+       Collections.sort(values);
+       return values;
+   }
+
+   /**
+    * Every value falls in a bucket whose highest value is not below it and
+    * whose width is under 1/64 of the value; buckets are in value order.
+    */
+   @Test
+   public void testBucketBoundaries() {
+       int previousIndex = -1;
+       for (long value : boundaryValues()) {
+           int index = Histogram.bucketIndex(value);
+           long highest = Histogram.highestValueInBucket(index);
+           assertTrue("value " + value, highest >= value);
+           if (value < 128) {
+               assertEquals(value, highest);
+           } else {
+               assertTrue("value " + value, highest - value < value / 64);
+           }
+           if (highest < Long.MAX_VALUE) {
+               // the next bucket starts right after the highest value
+               assertEquals(index + 1, Histogram.bucketIndex(highest + 1));
+           }
+           assertTrue(index >= previousIndex);
+           previousIndex = index;
+       }
+       assertEquals(127, Histogram.bucketIndex(127));
+       assertEquals(128, Histogram.bucketIndex(128));
+       assertEquals(129, Histogram.highestValueInBucket(
+               Histogram.bucketIndex(128)));
+       assertEquals(Long.MAX_VALUE, Histogram.highestValueInBucket(
+               Histogram.bucketIndex(Long.MAX_VALUE)));
+   }
+
+   @Test
+   public void testPercentiles() {
+       Histogram histogram = new Histogram(new MetricKey("test", null));
+       assertEquals(0, histogram.getValueAtPercentile(50.0));
+       for (long v = 1; v <= 1000; v++) {
+           histogram.record(v);
+       }
+       histogram.record(-5);
+       assertEquals(1001, histogram.getCount());
+       assertEquals(500500, histogram.getSum());
+       assertEquals(1000, histogram.getMax());
+       assertEquals(0, histogram.getValueAtPercentile(0.0));
+       long median = histogram.getValueAtPercentile(50.0);
+       assertTrue(median >= 500 && median < 500 + 500 / 64 + 1);
+       long p99 = histogram.getValueAtPercentile(99.0);
+       assertTrue(p99 >= 990 && p99 < 990 + 990 / 64 + 1);
+       assertEquals(1000, histogram.getValueAtPercentile(100.0));
+   }
+
+   /**
+    * Subtracting an earlier copy leaves the values recorded in the interval.
+    */
+   @Test
+   public void testSubtractInterval() {
+       Histogram histogram = new Histogram(new MetricKey("test", null));
+       for (int i = 0; i < 100; i++) {
+           histogram.record(1000000);
+       }
+       Histogram earlier = histogram.copy();
+       for (int i = 0; i < 10; i++) {
+           histogram.record(50);
+       }
+       histogram.record(300);
+
+       Histogram interval = histogram.copy();
+       interval.subtract(earlier);
+       assertEquals(11, interval.getCount());
+       assertEquals(10 * 50 + 300, interval.getSum());
+       assertEquals(50, interval.getValueAtPercentile(90.0));
+       // the maximum is only known to the precision of its bucket
+       long max = interval.getMax();
+       assertTrue(max >= 300
+               && max <= Histogram.highestValueInBucket(
+                       Histogram.bucketIndex(300)));
+       assertEquals(max, interval.getValueAtPercentile(100.0));
+
+       // the original is unchanged, and an empty interval reports nothing
+       assertEquals(111, histogram.getCount());
+       assertEquals(1000000, histogram.getMax());
+       Histogram empty = histogram.copy();
+       empty.subtract(histogram);
+       assertEquals(0, empty.getCount());
+       assertEquals(0, empty.getMax());
+       assertEquals(0, empty.getValueAtPercentile(99.0));
+   }
+}
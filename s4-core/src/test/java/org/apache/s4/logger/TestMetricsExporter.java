@@ -0,0 +1,167 @@
+package org.apache.s4.logger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.lang.management.ManagementFactory;
+import java.net.HttpURLConnection;
+import java.net.ServerSocket;
+import java.net.URL;
+import java.util.HashSet;
+import java.util.Set;
+
+import javax.management.Attribute;
+import javax.management.AttributeList;
+import javax.management.AttributeNotFoundException;
+import javax.management.MBeanAttributeInfo;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.junit.Test;
+
+public class TestMetricsExporter
+{
+
+   private static Log4jMonitor monitor() {
+       Log4jMonitor monitor = new Log4jMonitor();
+       monitor.counter("ev_nq_ct", "s4_core").add(5);
+       monitor.counter("ev_process_ct", "s4_app", "at", "pe-1").add(3);
+       monitor.counter("ev_process_ct", "s4_app", "at", "pe\"2\\\n").add(4);
+       monitor.counter("1st-metric", null).add(7);
+       monitor.gauge("qsz", "s4_core").set(12);
+       monitor.gauge("odd", "s4_core", "alone").set(-1);
+       Histogram histogram = monitor.histogram("exec_latency", "s4_app", "at",
+               "pe-1");
+       for (int i = 1; i <= 100; i++) {
+           histogram.record(i);
+       }
+       return monitor;
+   }
+
+   @Test
+   public void testTextFormat() {
+       Log4jMonitor monitor = monitor();
+       Histogram histogram = monitor.histogram("exec_latency", "s4_app", "at",
+               "pe-1");
+       String expected = "# TYPE s4__st_metric counter\n"
+               + "s4__st_metric 7\n"
+               + "# TYPE s4_ev_nq_ct counter\n"
+               + "s4_ev_nq_ct{event=\"s4_core\"} 5\n"
+               + "# TYPE s4_ev_process_ct counter\n"
+               + "s4_ev_process_ct{event=\"s4_app\",at=\"pe\\\"2\\\\\\n\"} 4\n"
+               + "s4_ev_process_ct{event=\"s4_app\",at=\"pe-1\"} 3\n"
+               + "# TYPE s4_odd gauge\n"
+               + "s4_odd{event=\"s4_core\",distinction=\"alone\"} -1\n"
+               + "# TYPE s4_qsz gauge\n"
+               + "s4_qsz{event=\"s4_core\"} 12\n"
+               + "# TYPE s4_exec_latency summary\n"
+               + "s4_exec_latency{event=\"s4_app\",at=\"pe-1\",quantile=\"0.5\"} "
+               + histogram.getValueAtPercentile(50.0) + "\n"
+               + "s4_exec_latency{event=\"s4_app\",at=\"pe-1\",quantile=\"0.9\"} "
+               + histogram.getValueAtPercentile(90.0) + "\n"
+               + "s4_exec_latency{event=\"s4_app\",at=\"pe-1\",quantile=\"0.99\"} "
+               + histogram.getValueAtPercentile(99.0) + "\n"
+               + "s4_exec_latency{event=\"s4_app\",at=\"pe-1\",quantile=\"0.999\"} "
+               + histogram.getValueAtPercentile(99.9) + "\n"
+               + "s4_exec_latency_sum{event=\"s4_app\",at=\"pe-1\"} 5050\n"
+               + "s4_exec_latency_count{event=\"s4_app\",at=\"pe-1\"} 100\n";
+       assertEquals(expected, PrometheusFormat.format(monitor.getRegistry()));
+       assertEquals("", PrometheusFormat.format(new MetricsRegistry()));
+   }
+
+   @Test
+   public void testMBeanAttributes() throws Exception {
+       MetricsExporter exporter = new MetricsExporter();
+       exporter.setMonitor(monitor());
+       MetricsExporter.MetricsMBean mbean = exporter.new MetricsMBean();
+
+       Set<String> names = new HashSet<String>();
+       for (MBeanAttributeInfo info : mbean.getMBeanInfo().getAttributes()) {
+           assertEquals("long", info.getType());
+           assertTrue(info.isReadable());
+           assertTrue(!info.isWritable());
+           names.add(info.getName());
+       }
+       Set<String> expected = new HashSet<String>();
+       expected.add("s4_core:ev_nq_ct");
+       expected.add("s4_app:ev_process_ct:at:pe-1");
+       expected.add("s4_app:ev_process_ct:at:pe\"2\\\n");
+       expected.add("1st-metric");
+       expected.add("s4_core:qsz");
+       expected.add("s4_core:odd:alone");
+       for (String statistic : new String[] { "count", "p50", "p99", "max" }) {
+           expected.add("s4_app:exec_latency:at:pe-1 " + statistic);
+       }
+       assertEquals(expected, names);
+
+       assertEquals(5L, mbean.getAttribute("s4_core:ev_nq_ct"));
+       assertEquals(12L, mbean.getAttribute("s4_core:qsz"));
+       assertEquals(100L, mbean.getAttribute("s4_app:exec_latency:at:pe-1 count"));
+       assertEquals(100L, mbean.getAttribute("s4_app:exec_latency:at:pe-1 max"));
+       try {
+           mbean.getAttribute("unknown");
+           fail();
+       } catch (AttributeNotFoundException e) {
+           // expected
+       }
+       AttributeList list = mbean.getAttributes(new String[] {
+               "s4_core:ev_nq_ct", "unknown", "1st-metric" });
+       assertEquals(2, list.size());
+       assertEquals(7L, ((Attribute) list.get(1)).getValue());
+       try {
+           mbean.setAttribute(new Attribute("s4_core:qsz", 1L));
+           fail();
+       } catch (AttributeNotFoundException e) {
+           // expected
+       }
+       assertEquals(12L, mbean.getAttribute("s4_core:qsz"));
+   }
+
+   private static int freePort() throws Exception {
+       ServerSocket socket = new ServerSocket(0);
+       try {
+           return socket.getLocalPort();
+       } finally {
+           socket.close();
+       }
+   }
+
+   @Test
+   public void testEndpoints() throws Exception {
+       Log4jMonitor monitor = monitor();
+       MetricsExporter exporter = new MetricsExporter();
+       exporter.setMonitor(monitor);
+       int port = freePort();
+       exporter.setHttpPort(port);
+       exporter.setJmxEnabled(true);
+       exporter.setJmxName("test");
+       exporter.init();
+       MBeanServer mbeanServer = ManagementFactory.getPlatformMBeanServer();
+       ObjectName name = new ObjectName("org.apache.s4:type=Metrics,name="
+               + ObjectName.quote("test"));
+       try {
+           HttpURLConnection connection = (HttpURLConnection) new URL("http://localhost:"
+                   + port + "/metrics").openConnection();
+           assertEquals(200, connection.getResponseCode());
+           assertEquals(PrometheusFormat.CONTENT_TYPE,
+                   connection.getContentType());
+           InputStream in = connection.getInputStream();
+           ByteArrayOutputStream body = new ByteArrayOutputStream();
+           byte[] buffer = new byte[4096];
+           for (int n; (n = in.read(buffer)) > 0;) {
+               body.write(buffer, 0, n);
+           }
+           in.close();
+           assertEquals(PrometheusFormat.format(monitor.getRegistry()),
+                   body.toString("UTF-8"));
+
+           assertEquals(5L, mbeanServer.getAttribute(name, "s4_core:ev_nq_ct"));
+       } finally {
+           exporter.close();
+       }
+       assertTrue(!mbeanServer.isRegistered(name));
+   }
+}
@@ -0,0 +1,222 @@
+package org.apache.s4.processor;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import org.apache.s4.collector.EventWrapper;
+import org.apache.s4.dispatcher.partitioner.CompoundKeyInfo;
+import org.apache.s4.dispatcher.partitioner.KeyInfo;
+import org.apache.s4.util.clock.WallClock;
+import org.junit.Test;
+
+public class TestBatchProcessing
+{
+
+   public static class Click {
+       private String user;
+
+       public Click() {
+       }
+
+       public Click(String user) {
+           this.user = user;
+       }
+
+       public String getUser() {
+           return user;
+       }
+
+       public void setUser(String user) {
+           this.user = user;
+       }
+   }
+
+   /**
+    * Records the number of events processed when output and checkpointing
+    * are triggered.
+    */
+   public static class BatchCountingPE extends AbstractPE {
+       // shared by the instances, which only see one key in these tests
+       static final List<Integer> batchSizes = new ArrayList<Integer>();
+       static final List<Long> outputAt = new ArrayList<Long>();
+       static final List<Long> checkpointAt = new ArrayList<Long>();
+       static long eventCount;
+       static long firstBatchDelay;
+
+       static synchronized void reset() {
+           batchSizes.clear();
+           outputAt.clear();
+           checkpointAt.clear();
+           eventCount = 0;
+           firstBatchDelay = 0;
+       }
+
+       public void processEvent(Click click) {
+           synchronized (BatchCountingPE.class) {
+               eventCount++;
+           }
+       }
+
+       @Override
+       public void processBatch(List<Object> events) {
+           long delay;
+           synchronized (BatchCountingPE.class) {
+               batchSizes.add(events.size());
+               eventCount += events.size();
+               delay = batchSizes.size() == 1 ? firstBatchDelay : 0;
+           }
+           if (delay > 0) {
+               // lets the following events queue up
+               try {
+                   Thread.sleep(delay);
+               } catch (InterruptedException e) {
+                   Thread.currentThread().interrupt();
+               }
+           }
+       }
+
+       @Override
+       public void output() {
+           synchronized (BatchCountingPE.class) {
+               outputAt.add(eventCount);
+           }
+       }
+
+       @Override
+       protected void checkpoint() {
+           synchronized (BatchCountingPE.class) {
+               checkpointAt.add(eventCount);
+           }
+       }
+   }
+
+   private static CompoundKeyInfo key(String user) {
+       KeyInfo keyInfo = new KeyInfo();
+       keyInfo.addElementToPath("user");
+       keyInfo.setValue(user);
+       CompoundKeyInfo key = new CompoundKeyInfo();
+       key.addKeyInfo(keyInfo);
+       key.setCompoundKey("user");
+       key.setCompoundValue(user);
+       return key;
+   }
+
+   private static BatchCountingPE prototype(int outputFrequency,
+           int checkpointingFrequency) {
+       BatchCountingPE prototype = new BatchCountingPE();
+       prototype.setId("batches");
+       prototype.setKeys(new String[] { "clicks user" });
+       prototype.setOutputFrequencyByEventCount(outputFrequency);
+       prototype.setCheckpointingFrequencyByEventCount(checkpointingFrequency);
+       return prototype;
+   }
+
+   /**
+    * Output and checkpointing are triggered once by each batch crossing a
+    * multiple of their frequency, after the whole batch, and batches and
+    * single events are counted alike.
+    */
+   @Test
+   public void testCountsAcrossBatches() {
+       BatchCountingPE.reset();
+       BatchCountingPE pe = prototype(10, 7);
+       CompoundKeyInfo key = key("u");
+       assertTrue(pe.isBatchProcessing());
+
+       // sizes below, on and above the frequencies; 0 means a single event
+       int[] sizes = { 3, 3, 3, 1, 10, 0, 0, 25, 6, 0, 9, 1, 1, 30, 4 };
+       List<Long> expectedOutputs = new ArrayList<Long>();
+       List<Long> expectedCheckpoints = new ArrayList<Long>();
+       long count = 0;
+       for (int size : sizes) {
+           long previous = count;
+           if (size == 0) {
+               pe.execute("clicks", key, new Click("u"));
+               count++;
+           } else {
+               List<Object> batch = new ArrayList<Object>();
+               for (int i = 0; i < size; i++) {
+                   batch.add(new Click("u"));
+               }
+               pe.executeBatch("clicks", key, batch);
+               count += size;
+           }
+           if (count / 10 != previous / 10) {
+               expectedOutputs.add(count);
+           }
+           if (count / 7 != previous / 7) {
+               expectedCheckpoints.add(count);
+           }
+       }
+
+       assertEquals(count, BatchCountingPE.eventCount);
+       assertEquals(sizes.length - 3, BatchCountingPE.batchSizes.size());
+       assertEquals(expectedOutputs, BatchCountingPE.outputAt);
+       assertEquals(expectedCheckpoints, BatchCountingPE.checkpointAt);
+       // batches crossing several multiples trigger once
+       assertTrue(BatchCountingPE.outputAt.size() < count / 10);
+       assertTrue(BatchCountingPE.checkpointAt.size() < count / 7);
+   }
+
+   @Test
+   public void testEmptyBatch() {
+       BatchCountingPE.reset();
+       BatchCountingPE pe = prototype(1, 1);
+       pe.executeBatch("clicks", key("u"), new ArrayList<Object>());
+       assertEquals(0, BatchCountingPE.batchSizes.size());
+       assertEquals(0, BatchCountingPE.outputAt.size());
+       assertEquals(0, BatchCountingPE.checkpointAt.size());
+   }
+
+   /**
+    * The container delivers queued events in batches of at most the maximum
+    * size, each event once; with a frequency above the batch size, output is
+    * triggered as often as without batching.
+    */
+   @Test(timeout = 60000)
+   public void testContainerBatches() throws Exception {
+       BatchCountingPE.reset();
+       BatchCountingPE.firstBatchDelay = 200;
+       WallClock clock = new WallClock();
+       BatchCountingPE prototype = prototype(10, 1000000);
+       prototype.setClock(clock);
+
+       PEContainer container = new PEContainer();
+       container.setClock(clock);
+       container.setMaxBatchSize(8);
+       container.setMaxQueueSize(100000);
+       container.addProcessor(prototype);
+       container.init();
+
+       int eventCount = 1000;
+       for (int i = 0; i < eventCount; i++) {
+           container.queueWork(new EventWrapper("clicks", new Click("u"),
+                   Collections.singletonList(key("u"))));
+       }
+       while (true) {
+           synchronized (BatchCountingPE.class) {
+               if (BatchCountingPE.eventCount >= eventCount) {
+                   break;
+               }
+           }
+           Thread.sleep(10);
+       }
+       Thread.sleep(50);
+       synchronized (BatchCountingPE.class) {
+           assertEquals(eventCount, BatchCountingPE.eventCount);
+           int total = 0;
+           for (int size : BatchCountingPE.batchSizes) {
+               assertTrue(size >= 1 && size <= 8);
+               total += size;
+           }
+           assertEquals(eventCount, total);
+           // the events queued during the first batch were batched
+           assertTrue(BatchCountingPE.batchSizes.size() < eventCount / 2);
+           assertEquals(eventCount / 10, BatchCountingPE.outputAt.size());
+       }
+   }
+}
@@ -0,0 +1,146 @@
+package org.apache.s4.processor;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.s4.collector.EventWrapper;
+import org.apache.s4.dispatcher.EventDispatcher;
+import org.apache.s4.dispatcher.partitioner.CompoundKeyInfo;
+import org.apache.s4.dispatcher.partitioner.DefaultHasher;
+import org.apache.s4.dispatcher.partitioner.DefaultPartitioner;
+import org.apache.s4.dispatcher.partitioner.HotKeyDetector;
+import org.apache.s4.message.PartialState;
+import org.apache.s4.persist.HashMapPersister;
+import org.apache.s4.util.clock.WallClock;
+import org.junit.Test;
+
+public class TestHotKeyMerge
+{
+
+   public static class Click {
+       private String user;
+
+       public Click() {
+       }
+
+       public Click(String user) {
+           this.user = user;
+       }
+
+       public String getUser() {
+           return user;
+       }
+
+       public void setUser(String user) {
+           this.user = user;
+       }
+   }
+
+   private static final int PARTITION_COUNT = 8;
+
+   /**
+    * The events of a hot key are split over several partitions; the partial
+    * counts reach the home instance before its own events, and the home
+    * instance reports the full count.
+    */
+   @Test
+   public void testSplitAndMerge() {
+       HotKeyDetector detector = new HotKeyDetector();
+       detector.setSampleInterval(1);
+       detector.setMinSamples(10);
+       detector.setHotFraction(0.5);
+       DefaultPartitioner partitioner = new DefaultPartitioner();
+       partitioner.setHashKey(new String[] { "user" });
+       partitioner.setHasher(new DefaultHasher());
+       partitioner.setHotKeyDetector(detector);
+       partitioner.setHotKeySplitFactor(4);
+
+       final List<PartialState> partialStates = new ArrayList<PartialState>();
+       EventDispatcher mergeDispatcher = new EventDispatcher() {
+           public void dispatchEvent(String streamName, Object event) {
+               assertEquals("#counter", streamName);
+               partialStates.add((PartialState) event);
+           }
+
+           public void dispatchEvent(String streamName,
+                   List<List<String>> compoundKeyNames, Object event) {
+               dispatchEvent(streamName, event);
+           }
+
+           public void dispatchEvents(String streamName, List<?> events) {
+               for (Object event : events) {
+                   dispatchEvent(streamName, event);
+               }
+           }
+       };
+
+       WallClock clock = new WallClock();
+       HashMapPersister persister = new HashMapPersister(clock);
+       persister.init();
+       PrototypeWrapper[] partitions = new PrototypeWrapper[PARTITION_COUNT];
+       for (int i = 0; i < PARTITION_COUNT; i++) {
+           SimpleCountingPE prototype = new SimpleCountingPE();
+           prototype.setId("counter");
+           prototype.setPersister(persister);
+           prototype.setOutputFrequencyByEventCount(1);
+           prototype.setMergeDispatcher(mergeDispatcher);
+           prototype.setClock(clock);
+           partitions[i] = new PrototypeWrapper(prototype, clock);
+       }
+
+       // partial states go to the partition the key hashes to
+       int home = partitioner.partition("#counter",
+               new PartialState("hot", null), PARTITION_COUNT).get(0)
+               .getPartitionId();
+
+       // the events of the home partition are held back, so that the
+       // partial states reach it before the instance of the key exists
+       List<CompoundKeyInfo> heldBack = new ArrayList<CompoundKeyInfo>();
+       int eventCount = 1000;
+       int partialCount = 0;
+       for (int i = 0; i < eventCount; i++) {
+           Click click = new Click("hot");
+           CompoundKeyInfo keyInfo = partitioner.partition("clicks", click,
+                   PARTITION_COUNT).get(0);
+           if (keyInfo.getPartitionId() == home) {
+               heldBack.add(keyInfo);
+           } else {
+               assertTrue(keyInfo.isPartial());
+               partitions[keyInfo.getPartitionId()].getPE(
+                       keyInfo.getCompoundValue()).execute("clicks", keyInfo,
+                       click);
+               partialCount++;
+           }
+       }
+       assertTrue(partialCount > 0 && heldBack.size() > 0);
+       assertEquals(partialCount, partialStates.size());
+       // the split instances merge instead of producing output
+       assertEquals(null, persister.get("s4:counter:hot"));
+
+       ControlEventProcessor controlEventProcessor = new ControlEventProcessor();
+       for (PartialState partialState : partialStates) {
+           List<CompoundKeyInfo> keyInfoList = partitioner.partition(
+                   "#counter", partialState, PARTITION_COUNT);
+           assertEquals(home, keyInfoList.get(0).getPartitionId());
+           controlEventProcessor.process(new EventWrapper("#counter",
+                   partialState, keyInfoList), partitions[home]);
+       }
+       AbstractPE homePE = partitions[home].lookupPE("hot");
+       assertNotNull(homePE);
+       assertEquals("hot", homePE.getKeyValueString());
+       // as on a time boundary, before any event of the key
+       homePE.output();
+       assertEquals(Long.valueOf(partialCount),
+               persister.get("s4:counter:hot"));
+
+       for (CompoundKeyInfo keyInfo : heldBack) {
+           partitions[home].getPE(keyInfo.getCompoundValue()).execute(
+                   "clicks", keyInfo, new Click("hot"));
+       }
+       assertEquals(Long.valueOf(eventCount), persister.get("s4:counter:hot"));
+   }
+}
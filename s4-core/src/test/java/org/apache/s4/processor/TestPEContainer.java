@@ -0,0 +1,191 @@
+package org.apache.s4.processor;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.s4.collector.EventWrapper;
+import org.apache.s4.dispatcher.partitioner.CompoundKeyInfo;
+import org.apache.s4.dispatcher.partitioner.KeyInfo;
+import org.apache.s4.message.PrototypeRequest;
+import org.apache.s4.serialize.KryoSerDeser;
+import org.apache.s4.util.clock.WallClock;
+import org.junit.Test;
+
+public class TestPEContainer
+{
+
+   public static class Click {
+       private String user;
+
+       public Click() {
+       }
+
+       public Click(String user) {
+           this.user = user;
+       }
+
+       public String getUser() {
+           return user;
+       }
+
+       public void setUser(String user) {
+           this.user = user;
+       }
+   }
+
+   static final AtomicInteger executing = new AtomicInteger();
+   static final AtomicInteger processed = new AtomicInteger();
+
+   /**
+    * Takes a little while on every event, to overlap with the requests.
+    */
+   public static class BusyPE extends AbstractPE {
+       public void processEvent(Click click) {
+           executing.incrementAndGet();
+           try {
+               long end = System.nanoTime() + 20000;
+               while (System.nanoTime() < end) {
+                   Thread.yield();
+               }
+           } finally {
+               executing.decrementAndGet();
+               processed.incrementAndGet();
+           }
+       }
+
+       @Override
+       public void output() {
+       }
+   }
+
+   /**
+    * Records how many PEs execute while a prototype request is evaluated.
+    */
+   static class RecordingControlEventProcessor extends ControlEventProcessor {
+       final List<Integer> executingDuringRequests = Collections.synchronizedList(new ArrayList<Integer>());
+
+       @Override
+       protected void execute(EventWrapper e, PrototypeWrapper p) {
+           executingDuringRequests.add(executing.get());
+           long end = System.nanoTime() + 200000;
+           while (System.nanoTime() < end) {
+               Thread.yield();
+           }
+           executingDuringRequests.add(executing.get());
+       }
+   }
+
+   private static List<CompoundKeyInfo> keys(String user) {
+       KeyInfo keyInfo = new KeyInfo();
+       keyInfo.addElementToPath("user");
+       keyInfo.setValue(user);
+       CompoundKeyInfo key = new CompoundKeyInfo();
+       key.addKeyInfo(keyInfo);
+       key.setCompoundKey("user");
+       key.setCompoundValue(user);
+       List<CompoundKeyInfo> keys = new ArrayList<CompoundKeyInfo>();
+       keys.add(key);
+       return keys;
+   }
+
+   /**
+    * With several workers, a prototype request is evaluated while no PE
+    * executes, and only once.
+    */
+   @Test(timeout = 60000)
+   public void testPrototypeRequestsQuiesceWorkers() throws Exception {
+       WallClock clock = new WallClock();
+       BusyPE prototype = new BusyPE();
+       prototype.setId("busy");
+       prototype.setClock(clock);
+       prototype.setKeys(new String[] { "clicks user" });
+
+       RecordingControlEventProcessor controlEventProcessor = new RecordingControlEventProcessor();
+       PEContainer container = new PEContainer();
+       container.setClock(clock);
+       container.setWorkerCount(4);
+       container.setMaxQueueSize(100000);
+       container.setControlEventProcessor(controlEventProcessor);
+       container.addProcessor(prototype);
+       container.init();
+
+       int eventCount = 20000;
+       int requestCount = 0;
+       for (int i = 0; i < eventCount; i++) {
+           String user = "user" + (i % 97);
+           container.queueWork(new EventWrapper("clicks", new Click(user),
+                   keys(user)));
+           if (i % 500 == 0) {
+               container.queueWork(new EventWrapper("#busy",
+                       new PrototypeRequest(Collections.singletonList("count")),
+                       new ArrayList<CompoundKeyInfo>()));
+               requestCount++;
+           }
+       }
+       while (processed.get() < eventCount
+               || controlEventProcessor.executingDuringRequests.size() < 2 * requestCount) {
+           Thread.sleep(10);
+       }
+       Thread.sleep(50);
+       assertEquals(2 * requestCount,
+               controlEventProcessor.executingDuringRequests.size());
+       for (int count : controlEventProcessor.executingDuringRequests) {
+           assertEquals(0, count);
+       }
+   }
+
+   /**
+    * With tracking by key, the events of a stream no PE subscribes to are
+    * still dropped without being decoded, and their keys are counted.
+    */
+   @Test(timeout = 60000)
+   public void testUnsubscribedStreamsAreCounted() throws Exception {
+       WallClock clock = new WallClock();
+       BusyPE prototype = new BusyPE();
+       prototype.setId("busy");
+       prototype.setClock(clock);
+       prototype.setKeys(new String[] { "clicks user" });
+
+       PEContainer container = new PEContainer();
+       container.setClock(clock);
+       container.setWorkerCount(2);
+       container.setTrackByKey(true);
+       container.addProcessor(prototype);
+       container.init();
+
+       KryoSerDeser serDeser = new KryoSerDeser();
+       List<EventWrapper> views = new ArrayList<EventWrapper>();
+       for (int i = 0; i < 10; i++) {
+           String user = "user" + i;
+           EventWrapper view = (EventWrapper) serDeser.deserialize(serDeser.serialize(new EventWrapper("views",
+                   new Click(user),
+                   keys(user))));
+           container.queueWork(view);
+           views.add(view);
+       }
+       container.queueWork(new EventWrapper("views", new Click("user0"),
+               new ArrayList<CompoundKeyInfo>()));
+       for (EventWrapper view : views) {
+           assertFalse(view.isEventDecoded());
+       }
+       assertEquals(10, container.getCount("views user"));
+       assertEquals(1, container.getCount("views *"));
+
+       // the events of subscribed streams are counted by the workers
+       int processedBefore = processed.get();
+       for (int i = 0; i < 10; i++) {
+           String user = "user" + i;
+           container.queueWork(new EventWrapper("clicks", new Click(user),
+                   keys(user)));
+       }
+       while (processed.get() < processedBefore + 10) {
+           Thread.sleep(10);
+       }
+       assertEquals(10, container.getCount("clicks user"));
+   }
+}
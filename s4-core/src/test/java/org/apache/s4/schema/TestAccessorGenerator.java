@@ -0,0 +1,169 @@
+package org.apache.s4.schema;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Test;
+
+public class TestAccessorGenerator
+{
+
+   public static class User {
+       private long id;
+       private String name;
+
+       public long getId() {
+           return id;
+       }
+
+       public void setId(long id) {
+           this.id = id;
+       }
+
+       public String getName() {
+           return name;
+       }
+
+       public void setName(String name) {
+           this.name = name;
+       }
+   }
+
+   public static class Click {
+       private User user;
+       private int count;
+       private boolean valid;
+
+       public User getUser() {
+           return user;
+       }
+
+       public void setUser(User user) {
+           this.user = user;
+       }
+
+       public int getCount() {
+           return count;
+       }
+
+       public void setCount(int count) {
+           this.count = count;
+       }
+
+       public boolean getValid() {
+           return valid;
+       }
+
+       public void setValid(boolean valid) {
+           this.valid = valid;
+       }
+   }
+
+   static class HiddenClick {
+       private String key;
+
+       public String getKey() {
+           return key;
+       }
+
+       public void setKey(String key) {
+           this.key = key;
+       }
+   }
+
+   private static Object reflect(Object record, List<String> path)
+           throws Exception {
+       Object value = record;
+       for (String name : path) {
+           if (value == null) {
+               return null;
+           }
+           Method getter = value.getClass().getMethod(
+                   "get" + Character.toUpperCase(name.charAt(0))
+                           + name.substring(1));
+           value = getter.invoke(value);
+       }
+       return value;
+   }
+
+   private static Click click(Long userId, int count) {
+       Click click = new Click();
+       click.setCount(count);
+       click.setValid(true);
+       if (userId != null) {
+           User user = new User();
+           user.setId(userId);
+           user.setName("u" + userId);
+           click.setUser(user);
+       }
+       return click;
+   }
+
+   /**
+    * Generated accessors return what the getters return, boxing primitives.
+    */
+   @Test
+   public void testAccessorsMatchReflection() throws Exception {
+       Schema schema = new SchemaContainer().getSchema(Click.class);
+       List<List<String>> paths = new ArrayList<List<String>>();
+       paths.add(Arrays.asList("count"));
+       paths.add(Arrays.asList("valid"));
+       paths.add(Arrays.asList("user", "id"));
+       paths.add(Arrays.asList("user", "name"));
+
+       Click[] clicks = { click(42L, 7), click(-1L, 0), click(null, 3) };
+       for (List<String> path : paths) {
+           PropertyAccessor accessor = schema.getAccessor(path);
+           assertNotNull(path.toString(), accessor);
+           assertFalse(accessor instanceof AccessorGenerator.ReflectiveAccessor);
+           assertSame(accessor, schema.getAccessor(path));
+           for (Click click : clicks) {
+               assertEquals(path.toString(), reflect(click, path),
+                       accessor.get(click));
+           }
+       }
+
+       assertEquals(Integer.valueOf(7), schema.getProperties()
+               .get("count").getValue(clicks[0]));
+       assertEquals(Long.valueOf(42), schema.getAccessor(
+               Arrays.asList("user", "id")).get(clicks[0]));
+       // a null intermediate record gives null, not an exception
+       assertNull(schema.getAccessor(Arrays.asList("user", "id")).get(
+               clicks[2]));
+       assertNull(schema.getAccessor(Arrays.asList("user", "missing")));
+   }
+
+   /**
+    * Getters of non-public classes cannot be called from generated code and
+    * are called by reflection instead.
+    */
+   @Test
+   public void testNonPublicClassFallsBackToReflection() throws Exception {
+       Schema schema = new SchemaContainer().getSchema(HiddenClick.class);
+       PropertyAccessor accessor = schema.getAccessor(Arrays.asList("key"));
+       assertTrue(accessor instanceof AccessorGenerator.ReflectiveAccessor);
+
+       HiddenClick click = new HiddenClick();
+       assertNull(accessor.get(click));
+       click.setKey("k");
+       assertEquals("k", accessor.get(click));
+       assertEquals("k", schema.getProperties().get("key").getValue(click));
+   }
+
+   @Test
+   public void testSchemasAreCachedPerContainer() {
+       SchemaContainer container = new SchemaContainer();
+       Schema schema = container.getSchema(Click.class);
+       assertSame(schema, container.getSchema(Click.class));
+       assertTrue(schema != new SchemaContainer().getSchema(Click.class));
+   }
+}
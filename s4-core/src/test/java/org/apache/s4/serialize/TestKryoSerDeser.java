@@ -0,0 +1,262 @@
+package org.apache.s4.serialize;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.apache.s4.collector.EventWrapper;
+import org.apache.s4.dispatcher.partitioner.CompoundKeyInfo;
+import org.apache.s4.dispatcher.partitioner.KeyInfo;
+import org.junit.Test;
+
+import com.esotericsoftware.kryo.SerializationException;
+
+public class TestKryoSerDeser
+{
+
+   public static class Click {
+       private long user;
+       private String page;
+
+       public Click() {
+       }
+
+       public Click(long user, String page) {
+           this.user = user;
+           this.page = page;
+       }
+
+       public long getUser() {
+           return user;
+       }
+
+       public String getPage() {
+           return page;
+       }
+   }
+
+   /**
+    * Keys as built by the partitioner: raw values, converted to strings on
+    * first access only.
+    */
+   private static List<CompoundKeyInfo> keys(long user, boolean partial) {
+       KeyInfo keyInfo = new KeyInfo();
+       keyInfo.addElementToPath("user");
+       keyInfo.setRawValue(Long.valueOf(user));
+       CompoundKeyInfo key = new CompoundKeyInfo();
+       key.addKeyInfo(keyInfo);
+       key.setCompoundKey("user");
+       key.setRawCompoundValue(Long.valueOf(user));
+       key.setPartitionId(3);
+       key.setPartial(partial);
+       List<CompoundKeyInfo> keys = new ArrayList<CompoundKeyInfo>();
+       keys.add(key);
+       return keys;
+   }
+
+   private static void assertKeys(long user, boolean partial,
+           List<CompoundKeyInfo> keys) {
+       assertEquals(1, keys.size());
+       CompoundKeyInfo key = keys.get(0);
+       assertEquals(3, key.getPartitionId());
+       assertEquals(partial, key.isPartial());
+       assertEquals("user", key.getCompoundKey());
+       assertEquals(String.valueOf(user), key.getCompoundValue());
+       KeyInfo keyInfo = key.getKeyInfoList().get(0);
+       assertEquals(String.valueOf(user), keyInfo.getValue());
+       assertEquals("user", keyInfo.toString());
+   }
+
+   private static void assertClick(long user, String page, Object event) {
+       Click click = (Click) event;
+       assertEquals(user, click.getUser());
+       assertEquals(page, click.getPage());
+   }
+
+   @Test
+   public void testHeaderFirstRoundTrip() {
+       KryoSerDeser serDeser = new KryoSerDeser();
+       byte[] message = serDeser.serialize(new EventWrapper("clicks",
+               new Click(42, "home"), keys(42, true)));
+       assertEquals(0x00, message[0]);
+
+       EventWrapper received = (EventWrapper) serDeser.deserialize(message);
+       assertEquals("clicks", received.getStreamName());
+       assertNull(received.getCompoundKeyNames());
+       assertKeys(42, true, received.getCompoundKeys());
+       // the keys are read without decoding the event
+       assertFalse(received.isEventDecoded());
+       assertClick(42, "home", received.getEvent());
+       assertTrue(received.isEventDecoded());
+       assertTrue(received.getEvent() == received.getEvent());
+
+       // from a buffer holding other messages, as done by the listener
+       ByteBuffer buffer = ByteBuffer.allocateDirect(message.length * 2 + 5);
+       buffer.put(new byte[5]).put(message).put(message).flip();
+       buffer.position(5);
+       for (int i = 0; i < 2; i++) {
+           received = (EventWrapper) serDeser.deserialize(buffer);
+           assertKeys(42, true, received.getCompoundKeys());
+           assertClick(42, "home", received.getEvent());
+       }
+       assertEquals(0, buffer.remaining());
+
+       // a wrapper received lazily is written again as it was
+       assertTrue(Arrays.equals(message, serDeser.serialize(serDeser
+               .deserialize(message))));
+   }
+
+   @Test
+   public void testLegacyMessages() {
+       KryoSerDeser writer = new KryoSerDeser();
+       writer.setHeaderFirst(false);
+       byte[] message = writer.serialize(new EventWrapper("clicks",
+               new Click(7, "search"), keys(7, false)));
+       assertEquals(0x15, message[0]);
+
+       KryoSerDeser reader = new KryoSerDeser();
+       EventWrapper received = (EventWrapper) reader.deserialize(message);
+       assertTrue(received.isEventDecoded());
+       assertEquals("clicks", received.getStreamName());
+       assertKeys(7, false, received.getCompoundKeys());
+       assertClick(7, "search", received.getEvent());
+
+       // other messages are left to Kryo, including a lone null
+       assertEquals("text", reader.deserialize(reader.serialize("text")));
+       assertNull(reader.deserialize(reader.serialize(null)));
+   }
+
+   @Test
+   public void testCompoundKeyNamesArePlain() {
+       KryoSerDeser serDeser = new KryoSerDeser();
+       byte[] message = serDeser.serialize(new EventWrapper("clicks",
+               new String[] { "user", "page/name" }, new Click(9, "cart")));
+       assertEquals(0x15, message[0]);
+
+       EventWrapper received = (EventWrapper) serDeser.deserialize(message);
+       assertTrue(received.isEventDecoded());
+       List<List<String>> compoundKeyNames = received.getCompoundKeyNames();
+       assertEquals(2, compoundKeyNames.size());
+       assertEquals(Arrays.asList("user"), compoundKeyNames.get(0));
+       assertEquals(Arrays.asList("page", "name"), compoundKeyNames.get(1));
+       assertClick(9, "cart", received.getEvent());
+   }
+
+   /**
+    * A key value the receiver could not instantiate.
+    */
+   static class OpaqueKey {
+       private final int id;
+
+       OpaqueKey(int id) {
+           this.id = id;
+       }
+
+       public String toString() {
+           return "key-" + id;
+       }
+   }
+
+   private static List<CompoundKeyInfo> opaqueKeys(Object value) {
+       KeyInfo keyInfo = new KeyInfo();
+       keyInfo.addElementToPath("user");
+       CompoundKeyInfo key = new CompoundKeyInfo();
+       key.addKeyInfo(keyInfo);
+       if (value instanceof String) {
+           keyInfo.setValue((String) value);
+           key.setCompoundValue((String) value);
+       } else {
+           keyInfo.setRawValue(value);
+           key.setRawCompoundValue(value);
+       }
+       List<CompoundKeyInfo> keys = new ArrayList<CompoundKeyInfo>();
+       keys.add(key);
+       return keys;
+   }
+
+   /**
+    * Raw key values are sent as their string form, as formatted by the
+    * sender, and exactly as if the string had been set.
+    */
+   @Test
+   public void testRawKeyValuesAreSentAsStrings() throws Exception {
+       for (boolean headerFirst : new boolean[] { true, false }) {
+           KryoSerDeser serDeser = new KryoSerDeser();
+           serDeser.setHeaderFirst(headerFirst);
+           byte[] raw = serDeser.serialize(new EventWrapper("clicks",
+                   new Click(7, "home"), opaqueKeys(new OpaqueKey(7))));
+           byte[] strings = serDeser.serialize(new EventWrapper("clicks",
+                   new Click(7, "home"), opaqueKeys("key-7")));
+           assertTrue(Arrays.equals(strings, raw));
+           assertFalse(new String(raw, "ISO-8859-1").contains("OpaqueKey"));
+
+           EventWrapper received = (EventWrapper) serDeser.deserialize(raw);
+           CompoundKeyInfo key = received.getCompoundKeys().get(0);
+           assertEquals("key-7", key.getCompoundValue());
+           assertEquals("key-7", key.getKeyInfoList().get(0).getValue());
+       }
+
+       // Java serialization of a key alone
+       ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+       ObjectOutputStream out = new ObjectOutputStream(bytes);
+       out.writeObject(opaqueKeys(new OpaqueKey(8)).get(0));
+       out.close();
+       ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(bytes.toByteArray()));
+       CompoundKeyInfo key = (CompoundKeyInfo) in.readObject();
+       assertEquals("key-8", key.getCompoundValue());
+       assertEquals("key-8", key.getKeyInfoList().get(0).getValue());
+   }
+
+   private static void assertRejected(KryoSerDeser serDeser, byte[] message) {
+       try {
+           serDeser.deserialize(message);
+           fail("accepted " + Arrays.toString(message));
+       } catch (SerializationException e) {
+           // expected
+       }
+   }
+
+   @Test
+   public void testVersionMismatch() {
+       KryoSerDeser serDeser = new KryoSerDeser();
+       byte[] message = serDeser.serialize(new EventWrapper("clicks",
+               new Click(1, "home"), keys(1, false)));
+       message[1]++;
+       assertRejected(serDeser, message);
+   }
+
+   @Test
+   public void testTruncatedBody() {
+       KryoSerDeser serDeser = new KryoSerDeser();
+       byte[] message = serDeser.serialize(new EventWrapper("clicks",
+               new Click(1, "a page with a long enough name"), keys(1, false)));
+       assertRejected(serDeser, Arrays.copyOf(message, message.length - 1));
+       assertRejected(serDeser, Arrays.copyOf(message, message.length - 10));
+
+       // a corrupted, negative body length
+       int bodyLength = 0;
+       int lengthOffset = -1;
+       for (int offset = 2; offset + 4 <= message.length; offset++) {
+           bodyLength = ByteBuffer.wrap(message).getInt(offset);
+           if (offset + 4 + bodyLength == message.length) {
+               lengthOffset = offset;
+               break;
+           }
+       }
+       assertTrue(lengthOffset > 0);
+       byte[] corrupted = message.clone();
+       ByteBuffer.wrap(corrupted).putInt(lengthOffset, -bodyLength);
+       assertRejected(serDeser, corrupted);
+   }
+}
@@ -0,0 +1,197 @@
+package org.apache.s4.serialize;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Random;
+
+import org.junit.Test;
+
+public class TestMessageCompression
+{
+
+   private static byte[] random(int length, long seed) {
+       byte[] data = new byte[length];
+       new Random(seed).nextBytes(data);
+       return data;
+   }
+
+   private static byte[] repetitive(int length) {
+       byte[] data = new byte[length];
+       byte[] pattern = "event:clicks,user:42;".getBytes();
+       for (int i = 0; i < length; i++) {
+           data[i] = pattern[i % pattern.length];
+       }
+       return data;
+   }
+
+   /**
+    * Compresses and decompresses with the codec, away from the start of the
+    * arrays.
+    */
+   private static int codecRoundTrip(byte[] data) {
+       byte[] src = new byte[data.length + 7];
+       System.arraycopy(data, 0, src, 3, data.length);
+       byte[] block = new byte[Lz4Codec.maxCompressedLength(data.length) + 5];
+       int blockLength = Lz4Codec.compress(src, 3, data.length, block, 5);
+       assertTrue(blockLength <= Lz4Codec.maxCompressedLength(data.length));
+
+       byte[] dst = new byte[data.length + 4];
+       assertEquals(data.length, Lz4Codec.decompress(block, 5, blockLength,
+               dst, 2, data.length));
+       assertArrayEquals(data, Arrays.copyOfRange(dst, 2, 2 + data.length));
+       return blockLength;
+   }
+
+   /**
+    * Compresses a datagram, and decompresses it from behind other data.
+    */
+   private static byte[] datagramRoundTrip(byte[] data) {
+       byte[] datagram = MessageCompression.compress(data);
+       if (datagram != null) {
+           assertTrue(datagram.length < data.length);
+           ByteBuffer buffer = ByteBuffer.allocate(datagram.length + 3);
+           buffer.put(new byte[3]).put(datagram).flip();
+           buffer.position(3);
+           assertTrue(MessageCompression.isCompressed(buffer));
+           assertArrayEquals(data, MessageCompression.decompress(buffer));
+           assertEquals(3, buffer.position());
+       }
+       return datagram;
+   }
+
+   @Test
+   public void testEmpty() {
+       assertEquals(1, codecRoundTrip(new byte[0]));
+       assertNull(datagramRoundTrip(new byte[0]));
+   }
+
+   @Test
+   public void testIncompressible() {
+       for (int length : new int[] { 1, 100, 1472, 65536, 300000 }) {
+           int blockLength = codecRoundTrip(random(length, length));
+           assertTrue(blockLength > length);
+           assertNull(datagramRoundTrip(random(length, length)));
+       }
+   }
+
+   @Test
+   public void testRepetitive() {
+       for (int length : new int[] { 100, 1472, 65536, 65537, 300000 }) {
+           byte[] data = repetitive(length);
+           assertTrue(codecRoundTrip(data) < length / 10 + 32);
+           assertNotNull(datagramRoundTrip(data));
+       }
+       // a single long run of one byte
+       byte[] zeros = new byte[100000];
+       assertTrue(codecRoundTrip(zeros) < 1000);
+       assertNotNull(datagramRoundTrip(zeros));
+   }
+
+   /**
+    * Lengths on the boundaries of the format: the shortest input searched
+    * for matches, literal and match lengths needing extra bytes, and a match
+    * ending where the last literals start.
+    */
+   @Test
+   public void testBoundaryLengths() {
+       int[] lengths = { 1, 4, 5, 11, 12, 13, 14, 15, 16, 17, 18, 19, 20,
+               254, 255, 256, 269, 270, 271, 272, 510, 524, 525, 526,
+               65534, 65535, 65536 };
+       for (int length : lengths) {
+           codecRoundTrip(repetitive(length));
+           codecRoundTrip(random(length, length));
+           codecRoundTrip(new byte[length]);
+           datagramRoundTrip(repetitive(length));
+           datagramRoundTrip(new byte[length]);
+
+           // literals followed by a match of every length
+           byte[] mixed = new byte[length + 40];
+           System.arraycopy(random(length, -length), 0, mixed, 0, length);
+           codecRoundTrip(mixed);
+       }
+   }
+
+   private static void assertRejected(byte[] datagram) {
+       try {
+           MessageCompression.decompress(ByteBuffer.wrap(datagram));
+           fail("accepted " + datagram.length + " bytes");
+       } catch (IllegalArgumentException e) {
+           // expected
+       }
+   }
+
+   @Test
+   public void testTruncated() {
+       byte[] data = repetitive(5000);
+       System.arraycopy(random(500, 1), 0, data, 2000, 500);
+       byte[] datagram = datagramRoundTrip(data);
+       assertNotNull(datagram);
+       for (int length = 0; length < datagram.length; length++) {
+           assertRejected(Arrays.copyOf(datagram, length));
+       }
+   }
+
+   @Test
+   public void testCorrupted() {
+       byte[] data = repetitive(5000);
+       System.arraycopy(random(500, 2), 0, data, 2000, 500);
+       byte[] datagram = datagramRoundTrip(data);
+       Random random = new Random(3);
+       for (int i = 0; i < 20000; i++) {
+           byte[] corrupted = datagram.clone();
+           for (int j = random.nextInt(3); j >= 0; j--) {
+               int position = MessageCompression.HEADER_SIZE
+                       + random.nextInt(datagram.length
+                               - MessageCompression.HEADER_SIZE);
+               corrupted[position] = (byte) random.nextInt(256);
+           }
+           try {
+               // corrupted literals go unnoticed, the length cannot
+               assertEquals(data.length, MessageCompression.decompress(
+                       ByteBuffer.wrap(corrupted)).length);
+           } catch (IllegalArgumentException e) {
+               // expected
+           }
+       }
+
+       // declared length too short or too long for the block
+       byte[] corrupted = datagram.clone();
+       ByteBuffer.wrap(corrupted).putInt(4, data.length - 1);
+       assertRejected(corrupted);
+       ByteBuffer.wrap(corrupted).putInt(4, data.length + 1);
+       assertRejected(corrupted);
+
+       // a block of endless length bytes
+       byte[] lengths = new byte[MessageCompression.HEADER_SIZE + 100000];
+       Arrays.fill(lengths, (byte) 0xFF);
+       ByteBuffer.wrap(lengths).putInt(MessageCompression.MAGIC).putInt(1000);
+       assertRejected(lengths);
+   }
+
+   @Test
+   public void testDeclaredLengthLimit() {
+       byte[] datagram = datagramRoundTrip(new byte[1000]);
+       ByteBuffer.wrap(datagram).putInt(4, MessageCompression.MAX_LENGTH);
+       assertRejected(datagram);
+       ByteBuffer.wrap(datagram).putInt(4, MessageCompression.MAX_LENGTH + 1);
+       assertRejected(datagram);
+       ByteBuffer.wrap(datagram).putInt(4, Integer.MAX_VALUE);
+       assertRejected(datagram);
+       ByteBuffer.wrap(datagram).putInt(4, -1);
+       assertRejected(datagram);
+
+       // plain datagrams are not taken for compressed ones
+       assertFalse(MessageCompression.isCompressed(ByteBuffer.wrap(new byte[100])));
+       byte[] header = new byte[MessageCompression.HEADER_SIZE - 1];
+       ByteBuffer.wrap(header).putInt(MessageCompression.MAGIC);
+       assertFalse(MessageCompression.isCompressed(ByteBuffer.wrap(header)));
+   }
+}
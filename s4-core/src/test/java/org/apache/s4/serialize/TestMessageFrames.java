@@ -0,0 +1,181 @@
+package org.apache.s4.serialize;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.apache.s4.collector.EventWrapper;
+import org.apache.s4.dispatcher.partitioner.CompoundKeyInfo;
+import org.apache.s4.dispatcher.partitioner.KeyInfo;
+import org.junit.Test;
+
+public class TestMessageFrames
+{
+
+   private static byte[] message(int length, int seed) {
+       byte[] message = new byte[length];
+       for (int i = 0; i < length; i++) {
+           message[i] = (byte) (seed + i);
+       }
+       return message;
+   }
+
+   private static byte[] toArray(ByteBuffer buffer) {
+       byte[] bytes = new byte[buffer.remaining()];
+       buffer.duplicate().get(bytes);
+       return bytes;
+   }
+
+   @Test
+   public void testSingleMessageIsNotFramed() {
+       MessageFrames.Builder builder = new MessageFrames.Builder(1472);
+       byte[] message = message(100, 1);
+       assertTrue(builder.add(message));
+       assertSame(message, builder.build());
+       assertFalse(MessageFrames.isFrame(message));
+       assertFalse(MessageFrames.isFrame(ByteBuffer.wrap(message)));
+   }
+
+   @Test
+   public void testBuilderStopsAtMaxFrameSize() {
+       int maxFrameSize = MessageFrames.HEADER_SIZE + 2
+               * (MessageFrames.LENGTH_SIZE + 10);
+       MessageFrames.Builder builder = new MessageFrames.Builder(maxFrameSize);
+       byte[] first = message(10, 1);
+       byte[] second = message(10, 50);
+       assertTrue(builder.add(first));
+       assertTrue(builder.add(second));
+       assertFalse(builder.add(message(1, 0)));
+       assertEquals(2, builder.getCount());
+
+       byte[] frame = builder.build();
+       assertEquals(maxFrameSize, frame.length);
+       assertTrue(MessageFrames.isFrame(frame));
+
+       List<byte[]> messages = new ArrayList<byte[]>();
+       assertEquals(2, MessageFrames.unpack(frame, messages));
+       assertArrayEquals(first, messages.get(0));
+       assertArrayEquals(second, messages.get(1));
+
+       // from a direct buffer, behind other data
+       ByteBuffer buffer = ByteBuffer.allocateDirect(frame.length + 3);
+       buffer.put(new byte[3]).put(frame).flip();
+       buffer.position(3);
+       assertTrue(MessageFrames.isFrame(buffer));
+       List<ByteBuffer> views = new ArrayList<ByteBuffer>();
+       assertEquals(2, MessageFrames.unpack(buffer, views));
+       assertEquals(3, buffer.position());
+       assertArrayEquals(first, toArray(views.get(0)));
+       assertArrayEquals(second, toArray(views.get(1)));
+
+       builder.reset();
+       assertEquals(0, builder.getCount());
+       assertTrue(builder.add(second));
+       assertSame(second, builder.build());
+   }
+
+   @Test
+   public void testOversizedFirstMessageIsAccepted() {
+       MessageFrames.Builder builder = new MessageFrames.Builder(20);
+       byte[] large = message(100, 3);
+       assertTrue(builder.add(large));
+       assertFalse(builder.add(message(1, 0)));
+       assertSame(large, builder.build());
+   }
+
+   private static void assertRejected(byte[] frame) {
+       List<byte[]> messages = new ArrayList<byte[]>();
+       try {
+           MessageFrames.unpack(frame, messages);
+           fail("accepted " + Arrays.toString(frame));
+       } catch (IllegalArgumentException e) {
+           // expected
+       }
+       assertTrue(messages.isEmpty());
+       List<ByteBuffer> views = new ArrayList<ByteBuffer>();
+       try {
+           MessageFrames.unpack(ByteBuffer.wrap(frame), views);
+           fail("accepted " + Arrays.toString(frame));
+       } catch (IllegalArgumentException e) {
+           // expected
+       }
+       assertTrue(views.isEmpty());
+   }
+
+   @Test
+   public void testMalformedFramesAreRejected() {
+       MessageFrames.Builder builder = new MessageFrames.Builder(1472);
+       builder.add(message(10, 1));
+       builder.add(message(20, 2));
+       byte[] frame = builder.build();
+
+       // truncated
+       assertRejected(Arrays.copyOf(frame, frame.length - 1));
+       assertRejected(Arrays.copyOf(frame, MessageFrames.HEADER_SIZE + 2));
+       // trailing bytes
+       assertRejected(Arrays.copyOf(frame, frame.length + 1));
+
+       // bad counts
+       for (int count : new int[] { -1, 1, 3, Integer.MAX_VALUE }) {
+           byte[] bad = frame.clone();
+           ByteBuffer.wrap(bad).putInt(4, count);
+           assertRejected(bad);
+       }
+       // bad length
+       byte[] bad = frame.clone();
+       ByteBuffer.wrap(bad).putInt(MessageFrames.HEADER_SIZE, -5);
+       assertRejected(bad);
+   }
+
+   /**
+    * Serialized event wrappers never start with the magic number; other
+    * messages which do are framed.
+    */
+   @Test
+   public void testPlainMessagesAreNotFrames() {
+       KeyInfo keyInfo = new KeyInfo();
+       keyInfo.addElementToPath("user");
+       keyInfo.setValue("S4FR");
+       CompoundKeyInfo key = new CompoundKeyInfo();
+       key.addKeyInfo(keyInfo);
+       key.setCompoundValue("S4FR");
+       List<CompoundKeyInfo> keys = new ArrayList<CompoundKeyInfo>();
+       keys.add(key);
+
+       KryoSerDeser headerFirst = new KryoSerDeser();
+       KryoSerDeser plain = new KryoSerDeser();
+       plain.setHeaderFirst(false);
+       byte[][] messages = {
+               headerFirst.serialize(new EventWrapper("S4FR", "S4FR", keys)),
+               plain.serialize(new EventWrapper("S4FR", "S4FR", keys)),
+               headerFirst.serialize(new EventWrapper("S4FR",
+                       new String[] { "user" }, "S4FR")) };
+       assertEquals(0x00, messages[0][0]);
+       assertEquals(0x15, messages[1][0]);
+       assertEquals(0x15, messages[2][0]);
+       for (byte[] message : messages) {
+           assertFalse(MessageFrames.isFrame(message));
+           MessageFrames.Builder builder = new MessageFrames.Builder(1472);
+           builder.add(message);
+           assertSame(message, builder.build());
+       }
+
+       byte[] lookalike = message(12, 0);
+       ByteBuffer.wrap(lookalike).putInt(0, MessageFrames.MAGIC);
+       MessageFrames.Builder builder = new MessageFrames.Builder(1472);
+       builder.add(lookalike);
+       byte[] frame = builder.build();
+       assertTrue(frame != lookalike);
+       List<byte[]> unpacked = new ArrayList<byte[]>();
+       assertEquals(1, MessageFrames.unpack(frame, unpacked));
+       assertArrayEquals(lookalike, unpacked.get(0));
+   }
+}
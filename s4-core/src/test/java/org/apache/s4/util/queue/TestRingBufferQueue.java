@@ -0,0 +1,104 @@
+package org.apache.s4.util.queue;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.junit.Test;
+
+public class TestRingBufferQueue
+{
+
+   @Test
+   public void testBoundedFifo() {
+       RingBufferQueue<Integer> queue = new RingBufferQueue<Integer>(3);
+       assertEquals(4, queue.getCapacity());
+       for (int i = 0; i < 4; i++) {
+           assertTrue(queue.offer(i));
+       }
+       assertFalse(queue.offer(4));
+       assertEquals(4, queue.size());
+
+       assertEquals(Integer.valueOf(0), queue.poll());
+       assertTrue(queue.offer(4));
+
+       List<Integer> drained = new ArrayList<Integer>();
+       assertEquals(3, queue.drainTo(drained, 3));
+       assertEquals(Integer.valueOf(1), drained.get(0));
+       assertEquals(Integer.valueOf(3), drained.get(2));
+       assertEquals(Integer.valueOf(4), queue.poll());
+       assertNull(queue.poll());
+       assertTrue(queue.isEmpty());
+   }
+
+   /**
+    * Every element inserted by concurrent producers is consumed exactly once
+    * by concurrent consumers.
+    */
+   @Test
+   public void testConcurrentProducersAndConsumers() throws Exception {
+       final int producers = 4;
+       final int consumers = 3;
+       final int perProducer = 100000;
+       final RingBufferQueue<Long> queue = new RingBufferQueue<Long>(1024,
+               false, new YieldingWaitStrategy());
+       final AtomicLong sum = new AtomicLong();
+       final AtomicLong count = new AtomicLong();
+       final CountDownLatch done = new CountDownLatch(producers);
+
+       for (int p = 0; p < producers; p++) {
+           final long base = (long) p * perProducer;
+           new Thread() {
+               public void run() {
+                   try {
+                       for (int i = 1; i <= perProducer; i++) {
+                           queue.put(base + i);
+                       }
+                   } catch (InterruptedException e) {
+                       Thread.currentThread().interrupt();
+                   }
+                   done.countDown();
+               }
+           }.start();
+       }
+
+       List<Thread> consumerThreads = new ArrayList<Thread>();
+       for (int c = 0; c < consumers; c++) {
+           Thread t = new Thread() {
+               public void run() {
+                   List<Long> batch = new ArrayList<Long>();
+                   while (!isInterrupted() || !queue.isEmpty()) {
+                       if (queue.drainTo(batch, 16) == 0) {
+                           Thread.yield();
+                       }
+                       for (Long value : batch) {
+                           sum.addAndGet(value);
+                           count.incrementAndGet();
+                       }
+                       batch.clear();
+                   }
+               }
+           };
+           consumerThreads.add(t);
+           t.start();
+       }
+
+       done.await();
+       for (Thread t : consumerThreads) {
+           t.interrupt();
+       }
+       for (Thread t : consumerThreads) {
+           t.join();
+       }
+
+       long n = (long) producers * perProducer;
+       assertEquals(n, count.get());
+       assertEquals(n * (n + 1) / 2, sum.get());
+   }
+}
@@ -20,6 +20,8 @@ package org.apache.s4.example.twittertopiccount;
 import org.apache.s4.dispatcher.EventDispatcher;
 import org.apache.s4.processor.AbstractPE;
 
+import java.util.List;
+
 public class TopicCountAndReportPE extends AbstractPE {
     private String id;
     private transient EventDispatcher dispatcher;
@@ -59,6 +61,13 @@ public class TopicCountAndReportPE extends AbstractPE {
         count += topicSeen.getCount();
     }
 
+    @Override
+    public void processBatch(List<Object> events) {
+        for (Object event : events) {
+            count += ((TopicSeen) event).getCount();
+        }
+    }
+
     @Override
     public void output() {
         if (count < threshold) {